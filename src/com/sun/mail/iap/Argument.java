@@ -186,6 +186,44 @@ public class Argument {
 	}
     }
 
+    /**
+     * Will writing out this argument send any literals?
+     */
+    boolean hasLiterals() {
+	int size = items != null ? items.size() : 0;
+
+	for (int i=0; i < size; i++) {
+	    Object o = items.elementAt(i);
+	    if (o instanceof byte[] || o instanceof ByteArrayOutputStream ||
+		    o instanceof Literal)
+		return true;
+	    if (o instanceof AString && isLiteral(((AString)o).bytes))
+		return true;
+	    if (o instanceof Argument && ((Argument)o).hasLiterals())
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Must the given ASTRING be sent as a literal?
+     */
+    private static boolean isLiteral(byte[] bytes) {
+	int len = bytes.length;
+
+	// If length is greater than 1024 bytes, send as literal
+	if (len > 1024)
+	    return true;
+
+	for (int i = 0; i < len; i++) {
+	    byte b = bytes[i];
+	    if (b == '\0' || b == '\r' || b == '\n' || ((b & 0xff) > 0177))
+		// NUL, CR or LF means the bytes need to be sent as literals
+		return true;
+	}
+	return false;
+    }
+
     /**
      * Write out given String as either an Atom, QuotedString or Literal
      */
@@ -194,8 +232,7 @@ public class Argument {
 	DataOutputStream os = (DataOutputStream)protocol.getOutputStream();
 	int len = bytes.length;
 
-	// If length is greater than 1024 bytes, send as literal
-	if (len > 1024) {
+	if (isLiteral(bytes)) {
 	    literal(bytes, protocol);
 	    return;
 	}
@@ -207,11 +244,6 @@ public class Argument {
 	byte b;
 	for (int i = 0; i < len; i++) {
 	    b = bytes[i];
-	    if (b == '\0' || b == '\r' || b == '\n' || ((b & 0xff) > 0177)) {
-		// NUL, CR or LF means the bytes need to be sent as literals
-		literal(bytes, protocol);
-		return;
-	    }
 	    if (b == '*' || b == '%' || b == '(' || b == ')' || b == '{' ||
 		b == '"' || b == '\\' || ((b & 0xff) <= ' ')) {
 		quote = true;
@@ -59,7 +59,7 @@ import com.sun.mail.util.*;
 
 public class Protocol {
     protected String host;
-    private Socket socket;
+    private volatile Socket socket;	// volatile for abort
     // in case we turn on TLS, we'll need these later
     protected boolean debug;
     protected boolean quote;
@@ -74,10 +74,31 @@ public class Protocol {
     private TraceOutputStream traceOutput;	// the Tracer
     private volatile DataOutputStream output;
 
-    private int tagCounter = 0;
+    private volatile int tagCounter = 0;
+    private volatile long bytesRead = 0;	// bytes of responses read
 
     private volatile Vector handlers = null; // response handlers
 
+    // responses of the command in progress, reused by command()
+    private final Vector commandResponses = new Vector();
+
+    /*
+     * Response buffers released by releaseResponses(), for reuse by
+     * later responses on this connection, if enabled by the
+     * <prefix>.recycleresponses property.  Buffers are released by
+     * threads that may not hold the protocol lock (e.g., while another
+     * thread is blocked reading an IDLE response), so the pool has a
+     * lock of its own.
+     */
+    private boolean recycleResponses = false;
+    private final ByteArray[] freeBuffers = new ByteArray[maxFreeBuffers];
+    private int numFreeBuffers = 0;
+    private final Object freeBuffersLock = new Object();
+
+    private static final int maxFreeBuffers = 16;
+    private static final int maxRecycledSize = 16 * 1024;
+    private static final int recycledBufferSize = 1024;
+
     private volatile long timestamp;
 
     private static final byte[] CRLF = { (byte)'\r', (byte)'\n'};
@@ -107,6 +128,8 @@ public class Protocol {
 	    socket = SocketFetcher.getSocket(host, port, props, prefix, isSSL);
 	    String s = props.getProperty("mail.debug.quote");
 	    quote = s != null && s.equalsIgnoreCase("true");
+	    s = props.getProperty(prefix + ".recycleresponses");
+	    recycleResponses = s != null && s.equalsIgnoreCase("true");
 
 	    initStreams(out);
 
@@ -171,6 +194,29 @@ public class Protocol {
     public long getTimestamp() {
         return timestamp;
     }
+
+    /**
+     * Returns the number of commands sent on this connection,
+     * i.e. the number of round trips to the server.
+     */
+    public int getCommandCount() {
+	return tagCounter;
+    }
+
+    /**
+     * Returns the number of response bytes read on this connection.
+     */
+    public long getBytesRead() {
+	return bytesRead;
+    }
+
+    /**
+     * Count the bytes of a response read from the server.
+     * Responses are read by one thread at a time.
+     */
+    void countResponse(int count) {
+	bytesRead += count;
+    }
  
     /**
      * Adds a response handler.
@@ -251,17 +297,93 @@ public class Protocol {
 
     /**
      * Return a buffer to be used to read a response.
-     * The default implementation returns null, which causes
-     * a new buffer to be allocated for every response.
+     * The default implementation returns a buffer released by
+     * <code>releaseResponses</code> if response buffers are recycled,
+     * and null otherwise, which causes a new buffer to be allocated
+     * for every response.
      *
      * @since	JavaMail 1.4.1
      */
     protected ByteArray getResponseBuffer() {
-	return null;
+	if (!recycleResponses)
+	    return null;
+
+	synchronized (freeBuffersLock) {
+	    if (numFreeBuffers > 0) {
+		ByteArray ba = freeBuffers[--numFreeBuffers];
+		freeBuffers[numFreeBuffers] = null;
+		return ba;
+	    }
+	}
+	return new ByteArray(recycledBufferSize);
+    }
+
+    /**
+     * Release the buffers of the given responses, so that they can be
+     * reused by later responses on this connection, if response buffers
+     * are recycled (see the <code>&lt;prefix&gt;.recycleresponses</code>
+     * property).  This is done once the responses have been processed,
+     * e.g., after <code>notifyResponseHandlers</code> and
+     * <code>handleResult</code>. <p>
+     *
+     * The responses must not be used after they are released; neither
+     * can anything that refers to their buffers, such as the
+     * <code>ByteArray</code> of a <code>BODY</code> fetch item.  A caller
+     * that needs such data after the release must copy it first. <p>
+     *
+     * Null entries, and responses that were not read from this connection
+     * (e.g., synthetic BYE responses), are skipped.
+     *
+     * @param	responses	the responses to release
+     */
+    public void releaseResponses(Response[] responses) {
+	if (!recycleResponses)
+	    return;
+
+	synchronized (freeBuffersLock) {
+	    for (int i = 0; i < responses.length; i++)
+		release(responses[i]);
+	}
+    }
+
+    /**
+     * Release the buffer of the given response, as for
+     * <code>releaseResponses</code>.
+     *
+     * @param	response	the response to release
+     */
+    public void releaseResponse(Response response) {
+	if (!recycleResponses)
+	    return;
+
+	synchronized (freeBuffersLock) {
+	    release(response);
+	}
+    }
+
+    /**
+     * Return the buffer of the given response, if any, to the pool.
+     *
+     * ASSERT: This method must be called only when holding the
+     *	freeBuffersLock.
+     */
+    private void release(Response r) {
+	if (r == null || r.ba == null)
+	    return;
+	ByteArray ba = r.ba;
+	r.ba = null;	// release at most once
+	if (numFreeBuffers < maxFreeBuffers &&
+		ba.getBytes().length <= maxRecycledSize)
+	    freeBuffers[numFreeBuffers++] = ba;
     }
 
     public String writeCommand(String command, Argument args) 
 		throws IOException, ProtocolException {
+	return writeCommand(command, args, true);
+    }
+
+    private String writeCommand(String command, Argument args, boolean flush)
+		throws IOException, ProtocolException {
 	// assert Thread.holdsLock(this);
 	// can't assert because it's called from constructor
 	String tag = "A" + Integer.toString(tagCounter++, 10); // unique tag
@@ -274,7 +396,8 @@ public class Protocol {
 	}
 
 	output.write(CRLF);
-	output.flush();
+	if (flush)
+	    output.flush();
 	return tag;
     }
 
@@ -288,7 +411,8 @@ public class Protocol {
      * @return		array of Response objects returned by the server
      */
     public synchronized Response[] command(String command, Argument args) {
-	Vector v = new Vector();
+	Vector v = commandResponses;
+	v.removeAllElements();
 	boolean done = false;
 	String tag = null;
 	Response r = null;
@@ -327,10 +451,139 @@ public class Protocol {
 
 	Response[] responses = new Response[v.size()];
 	v.copyInto(responses);
+	v.removeAllElements();
+        timestamp = System.currentTimeMillis();
+	return responses;
+    }
+
+    /**
+     * Send several commands to the server, without waiting for the
+     * completion of one command before sending the next, so that all
+     * of them cost a single round trip.  Collect the responses of
+     * each command as <code>command</code> does, demultiplexed by tag:
+     * the responses returned for a command are the untagged responses
+     * received while it was the oldest command in progress, followed
+     * by its command completion response. <p>
+     *
+     * The server processes the commands in order, so a command may
+     * rely on the server state left by the commands before it (e.g.,
+     * a SEARCH following the SELECT of a mailbox), but not on their
+     * results.  A command that needs a synchronizing literal is sent
+     * only once the commands before it have completed, since the
+     * server's continuation request could not be told apart from
+     * their responses otherwise. <p>
+     *
+     * The caller processes the responses of each command in turn,
+     * as it would the result of <code>command</code>: it picks out
+     * the responses it knows about, passes the rest to
+     * <code>notifyResponseHandlers</code>, and checks the completion
+     * response with <code>handleResult</code>.  If the server sends
+     * a BYE response, or the connection fails, the responses of each
+     * command that has not completed end with that BYE response.
+     *
+     * @param	commands	the commands
+     * @param	args		the arguments of each command; the array
+     *				itself or any element may be null
+     * @return		array of the responses of each command
+     */
+    public synchronized Response[][] pipeline(String[] commands,
+					      Argument[] args) {
+	int count = commands.length;
+	Response[][] responses = new Response[count][];
+	String[] tags = new String[count];
+	Vector v = commandResponses;
+	v.removeAllElements();
+	int sent = 0;		// number of commands written
+	int next = 0;		// oldest command in progress
+	boolean flushed = true;
+
+	while (next < count) {
+	    // write the next command, if it can be pipelined
+	    Argument arg = sent < count && args != null ? args[sent] : null;
+	    if (sent < count && (next == sent || arg == null ||
+		    supportsNonSyncLiterals() || !arg.hasLiterals())) {
+		try {
+		    tags[sent] = writeCommand(commands[sent], arg, false);
+		    flushed = false;
+		    sent++;
+		} catch (LiteralException lex) {
+		    // no other command in progress, so this completes it
+		    responses[sent++] = new Response[] { lex.getResponse() };
+		    next++;
+		} catch (Exception ex) {
+		    // Convert this into a BYE response
+		    v.addElement(Response.byeResponse(ex));
+		    byeResponses(responses, next, v);
+		    break;
+		}
+		continue;
+	    }
+
+	    Response r = null;
+	    try {
+		if (!flushed) {
+		    output.flush();
+		    flushed = true;
+		}
+		r = readResponse();
+	    } catch (IOException ioex) {
+		// convert this into a BYE response
+		r = Response.byeResponse(ioex);
+	    } catch (ProtocolException pex) {
+		continue; // skip this response
+	    }
+
+	    v.addElement(r);
+
+	    if (r.isBYE()) { // shouldn't wait for command completion response
+		byeResponses(responses, next, v);
+		break;
+	    }
+
+	    // If this is a matching command completion response,
+	    // that command is done.  Servers may complete commands
+	    // out of order, so look at all the commands in progress.
+	    if (r.isTagged()) {
+		String tag = r.getTag();
+		for (int i = next; i < sent; i++) {
+		    if (responses[i] == null && tag.equals(tags[i])) {
+			responses[i] = new Response[v.size()];
+			v.copyInto(responses[i]);
+			v.removeAllElements();
+			break;
+		    }
+		}
+		while (next < sent && responses[next] != null)
+		    next++;
+	    }
+	}
+
+	v.removeAllElements();
         timestamp = System.currentTimeMillis();
 	return responses;
     }
 
+    /**
+     * Complete all the commands of a pipeline that are still in progress,
+     * or were not sent, with the given responses ending with a BYE.
+     * The oldest command gets all the responses, the others only the BYE.
+     */
+    private static void byeResponses(Response[][] responses, int next,
+				     Vector v) {
+	Response bye = (Response)v.lastElement();
+	for (int i = next; i < responses.length; i++) {
+	    if (responses[i] != null)
+		continue;
+	    if (v.isEmpty())
+		responses[i] = new Response[] { bye };
+	    else {
+		responses[i] = new Response[v.size()];
+		v.copyInto(responses[i]);
+		v.removeAllElements();
+	    }
+	}
+    }
+
     /**
      * Convenience routine to handle OK, NO, BAD and BYE responses.
      */
@@ -361,6 +614,7 @@ public class Protocol {
 
 	// Handle result of this command
 	handleResult(r[r.length-1]);
+	releaseResponses(r);
     }
 
     /**
@@ -389,6 +643,36 @@ public class Protocol {
 	}
     }
 
+    /**
+     * Abort the connection by closing the socket, without waiting
+     * for any command in progress.  A thread blocked reading a
+     * response or writing a command gets an IOException, and the
+     * connection is handled as if the server had dropped it.
+     * Unlike disconnect, this method does not synchronize on the
+     * Protocol object, so that it can be called while another thread
+     * is blocked in a command.
+     */
+    public void abort() {
+	Socket s = socket;
+	if (s != null) {
+	    try {
+		s.close();
+	    } catch (IOException e) {
+		// ignore it
+	    }
+	}
+    }
+
+    /**
+     * Is the socket of this connection still open?
+     *
+     * @return	false if the connection has been closed or aborted
+     */
+    public boolean isSocketOpen() {
+	Socket s = socket;
+	return s != null && !s.isClosed();
+    }
+
     /**
      * Finalizer.
      */
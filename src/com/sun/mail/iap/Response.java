@@ -60,6 +60,13 @@ public class Response {
     protected int type = 0;
     protected String tag = null;
 
+    /*
+     * The buffer this response was read into, to be returned to
+     * the Protocol by Protocol.releaseResponses; null if released,
+     * or if this response was not read from a Protocol.
+     */
+    ByteArray ba = null;
+
     private static final int increment = 100;
 
     // The first and second bits indicate whether this response
@@ -94,6 +101,8 @@ public class Response {
 	// read one response into 'buffer'
 	ByteArray ba = p.getResponseBuffer();
 	ByteArray response = p.getInputStream().readResponse(ba);
+	p.countResponse(response.getCount());
+	this.ba = response;
 	buffer = response.getBytes();
 	size = response.getCount() - 2; // Skip the terminating CRLF
 
@@ -109,6 +118,7 @@ public class Response {
 	buffer = r.buffer;
 	type = r.type;
 	tag = r.tag;
+	ba = r.ba;
     }
 
     /**
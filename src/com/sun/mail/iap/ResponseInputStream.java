@@ -47,7 +47,14 @@ import com.sun.mail.util.ASCIIUtility;
 
 /**
  *
- * Inputstream that is used to read a Response.
+ * Inputstream that is used to read a Response. <p>
+ *
+ * Responses are read into a private buffer in large chunks, and are
+ * scanned for the terminating CRLF, and for literals, over ranges of
+ * that buffer; the bytes are then bulk-copied into the response.  The
+ * bytes of large literals are read directly into the response. <p>
+ *
+ * Responses are read by one thread at a time, so no locking is done.
  *
  * @version 1.10, 07/05/04
  * @author  Arun Krishnan
@@ -59,15 +66,21 @@ public class ResponseInputStream {
     private static final int minIncrement = 256;
     private static final int maxIncrement = 256 * 1024;
     private static final int incrementSlop = 16;
+    private static final int bufferSize = 16 * 1024;
 
     // where we read from
-    private BufferedInputStream bin;
+    private final InputStream in;
+
+    // bytes read from 'in' but not yet consumed are buf[pos..limit-1]
+    private final byte[] buf = new byte[bufferSize];
+    private int pos = 0;
+    private int limit = 0;
 
     /**
      * Constructor.
      */
     public ResponseInputStream(InputStream in) {
-	bin = new BufferedInputStream(in, 2 * 1024);
+	this.in = in;
     }
 
     /**
@@ -89,31 +102,38 @@ public class ResponseInputStream {
 	byte[] buffer = ba.getBytes();
 	int idx = 0;
 	for (;;) {	// read until CRLF with no preceeding literal
-	    // XXX - b needs to be an int, to handle bytes with value 0xff
-	    int b = 0;
-	    boolean gotCRLF=false;
-
-	    // Read a CRLF terminated line from the InputStream
-	    while (!gotCRLF &&
-		   ((b =  bin.read()) != -1)) {
-		switch (b) {
-		case '\n':
-		    if ((idx > 0) && buffer[idx-1] == '\r')
-			gotCRLF = true;
-		default:
-		    if (idx >= buffer.length) {
-			int incr = buffer.length;
-			if (incr > maxIncrement)
-			    incr = maxIncrement;
-			ba.grow(incr);
-			buffer = ba.getBytes();
-		    }
-		    buffer[idx++] = (byte)b;
+	    boolean gotCRLF = false;
+
+	    // Read a CRLF terminated line from the InputStream,
+	    // a buffered chunk at a time
+	    while (!gotCRLF) {
+		if (pos >= limit)
+		    fill();	// throws IOException at end of stream
+
+		// scan the chunk for LF
+		int end = pos;
+		while (end < limit && buf[end] != '\n')
+		    end++;
+		if (end < limit)
+		    end++;	// include the LF
+
+		int n = end - pos;
+		if (idx + n > buffer.length) {
+		    int incr = buffer.length;
+		    if (incr > maxIncrement)
+			incr = maxIncrement;
+		    if (incr < idx + n - buffer.length)
+			incr = idx + n - buffer.length;
+		    ba.grow(incr);
+		    buffer = ba.getBytes();
 		}
-	    }
+		System.arraycopy(buf, pos, buffer, idx, n);
+		idx += n;
+		pos = end;
 
-	    if (b == -1)
-		throw new IOException(); // connection broken ?
+		if (buffer[idx-1] == '\n' && idx > 1 && buffer[idx-2] == '\r')
+		    gotCRLF = true;
+	    }
 
 	    // Now lets check for literals : {<digits>}CRLF
 	    // Note: index needs to >= 5 for the above sequence to occur
@@ -147,13 +167,22 @@ public class ResponseInputStream {
 		    buffer = ba.getBytes();
 		}
 
+		// first the bytes already buffered ..
+		int n = Math.min(count, limit - pos);
+		System.arraycopy(buf, pos, buffer, idx, n);
+		pos += n;
+		idx += n;
+		count -= n;
+
 		/*
+		 * .. then the rest directly from the InputStream;
 		 * read() might not return all the bytes in one shot,
 		 * so call repeatedly till we are done
 		 */
-		int actual;
 		while (count > 0) {
-		    actual = bin.read(buffer, idx, count);
+		    int actual = in.read(buffer, idx, count);
+		    if (actual == -1)
+			throw new IOException(); // connection broken ?
 		    count -= actual;
 		    idx += actual;
 		}
@@ -163,4 +192,19 @@ public class ResponseInputStream {
 	ba.setCount(idx);
 	return ba;
     }
+
+    /**
+     * Refill the buffer, which must be empty, from the InputStream.
+     */
+    private void fill() throws IOException {
+	int n;
+	do {
+	    n = in.read(buf, 0, buf.length);
+	} while (n == 0);
+
+	if (n < 0)
+	    throw new IOException(); // connection broken ?
+	pos = 0;
+	limit = n;
+    }
 }
@@ -42,7 +42,6 @@ package com.sun.mail.imap;
 
 import java.util.Date;
 import java.util.Vector;
-import java.util.Hashtable;
 import java.util.NoSuchElementException;
 import java.io.*;
 
@@ -106,8 +105,9 @@ import com.sun.mail.imap.protocol.*;
  * synchronized.  Note that methods in IMAPMessage will acquire the
  * messageCacheLock without acquiring the folder lock. <p>
  *
- * When a folder is opened, it creates a messageCache (a Vector) of 
- * empty IMAPMessage objects. Each Message has a messageNumber - which
+ * When a folder is opened, it creates a messageCache (a MessageCache),
+ * which creates empty IMAPMessage objects lazily, as they are accessed.
+ * Each Message has a messageNumber - which
  * is its index into the messageCache, and a sequenceNumber - which is
  * its IMAP sequence-number. All operations on a Message which involve
  * communication with the server, use the message's sequenceNumber. <p>
@@ -168,10 +168,10 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
     protected String[] attributes;	// name attributes from LIST response
 
     protected IMAPProtocol protocol; 	// this folder's own protocol object
-    protected Vector messageCache;  	// message cache
+    protected MessageCache messageCache;	// message cache
     protected Object messageCacheLock; 	// accessor lock for message cache
 
-    protected Hashtable uidTable;	// UID->Message hashtable
+    protected UIDTable uidTable;	// UID->Message table
 
     /* An IMAP delimiter is a 7bit US-ASCII character. (except NUL).
      * We use '\uffff' (a non 7bit character) to indicate that we havent
@@ -304,6 +304,30 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 	 */
 	public static final FetchProfileItem SIZE = 
 		new FetchProfileItem("SIZE");
+
+	/**
+	 * GMAIL_MSGID is a fetch profile item that can be included in a
+	 * <code>FetchProfile</code> during a fetch request to a Folder.
+	 * This item indicates that the Gmail message IDs (X-GM-MSGID) of
+	 * the messages in the specified range are desired to be prefetched.
+	 * The server must support the Gmail IMAP extensions (X-GM-EXT-1).
+	 *
+	 * @see IMAPMessage#getGmailMessageId
+	 */
+	public static final FetchProfileItem GMAIL_MSGID = 
+		new FetchProfileItem("GMAIL_MSGID");
+
+	/**
+	 * GMAIL_LABELS is a fetch profile item that can be included in a
+	 * <code>FetchProfile</code> during a fetch request to a Folder.
+	 * This item indicates that the Gmail labels (X-GM-LABELS) of
+	 * the messages in the specified range are desired to be prefetched.
+	 * The server must support the Gmail IMAP extensions (X-GM-EXT-1).
+	 *
+	 * @see IMAPMessage#getGmailLabels
+	 */
+	public static final FetchProfileItem GMAIL_LABELS = 
+		new FetchProfileItem("GMAIL_LABELS");
     }
 
     /**
@@ -890,9 +914,41 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
      * Open this folder in the given mode.
      */
     public synchronized void open(int mode) throws MessagingException {
+	open(mode, null);
+    }
+
+    /**
+     * Open this folder in the given mode, and search it for messages
+     * matching the given term, returning the UIDs of the matching
+     * messages as <code>searchUIDs</code> does.  The SELECT or EXAMINE
+     * and UID SEARCH commands are pipelined where possible, so that
+     * opening and searching the folder costs a single round trip.
+     *
+     * @param	mode	the open mode
+     * @param	term	the search term
+     * @return		array of UIDs of matching messages
+     * @see		#searchUIDs
+     */
+    public synchronized long[] openAndSearchUIDs(int mode, SearchTerm term)
+				throws MessagingException {
+	long[] uids = open(mode, term);
+	if (uids == null)	// not pipelined, or failed; search again
+	    uids = searchUIDs(term);
+	return uids;
+    }
+
+    /**
+     * Open this folder in the given mode.  If a search term is given,
+     * pipeline a UID SEARCH for it with the SELECT or EXAMINE, and
+     * return the UIDs found, or null if the search was not done.
+     */
+    private long[] open(int mode, SearchTerm term)
+				throws MessagingException {
 	checkClosed(); // insure that we are not already open
 	
 	MailboxInfo mi = null;
+	Response[][] r = null;	// pipelined responses
+	long[] uids = null;
 	// Request store for our own protocol connection.
 	protocol = ((IMAPStore)store).getProtocol(this);
 
@@ -909,18 +965,31 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 	    protocol.addResponseHandler(this);
 
 	    try {
-		if (mode == READ_ONLY)
+		if (term != null) {
+		    try {
+			r = protocol.selectAndUIDSearch(fullName,
+						mode == READ_ONLY, term);
+		    } catch (SearchException sex) {
+			// can't be pipelined; searchUIDs will do it
+		    }
+		}
+
+		if (r != null)
+		    mi = protocol.processSelect(r[0], mode == READ_ONLY);
+		else if (mode == READ_ONLY)
 		    mi = protocol.examine(fullName);
 		else
 		    mi = protocol.select(fullName);
 	    } catch (CommandFailedException cex) {
 		// got a NO; connection still good, return it
+		releaseSearch(r);
 		releaseProtocol(true);
 		protocol = null;
 		exc = cex;
 		break lock;
 	    } catch (ProtocolException pex) {
 		// got a BAD or a BYE; connection may be bad, close it
+		releaseSearch(r);
 		try {
 		    protocol.logout();
 		} catch (ProtocolException pex2) {
@@ -937,6 +1006,7 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 			((IMAPStore)store).allowReadOnlySelect()) {
 		    ;		// all ok, allow it
 		} else {	// otherwise, it's an error
+		    releaseSearch(r);
 		    try {
 			// close mailbox and return connection
 			protocol.close();
@@ -970,11 +1040,19 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 	    uidvalidity = mi.uidvalidity;
 	    uidnext = mi.uidnext;
 
-	    // Create the message cache vector of appropriate size
-	    messageCache = new Vector(total);
-	    // Fill up the cache with light-weight IMAPMessage objects
-	    for (int i = 0; i < total; i++)
-		messageCache.addElement(new IMAPMessage(this, i+1, i+1));
+	    // Create the message cache of appropriate size; the
+	    // light-weight IMAPMessage objects are created on demand
+	    messageCache = new MessageCache(this, total);
+
+	    // Now that we're ready for the untagged responses of this
+	    // folder, process those of the pipelined search
+	    if (r != null) {
+		try {
+		    uids = protocol.processUIDSearch(r[1]);
+		} catch (ProtocolException pex) {
+		    // let searchUIDs retry, or report a lost connection
+		}
+	    }
 
 	} // Release lock
 
@@ -997,6 +1075,16 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 
 	// notify listeners
 	notifyConnectionListeners(ConnectionEvent.OPENED);
+	return uids;
+    }
+
+    /**
+     * Release the responses of a pipelined search that won't be processed
+     * because the folder could not be opened.
+     */
+    private void releaseSearch(Response[][] r) {
+	if (r != null)
+	    protocol.releaseResponses(r[1]);
     }
 
     /**
@@ -1364,7 +1452,9 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 	checkOpened();
 	checkRange(msgnum);
 
-	return (Message)messageCache.elementAt(msgnum-1);
+	synchronized(messageCacheLock) {
+	    return messageCache.getMessage(msgnum);
+	}
     }
 
     /**
@@ -1593,39 +1683,22 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 
 	    // Cleanup expunged messages and sync messageCache with 
 	    // reality.
-	    for (int i = 0; i < messageCache.size(); ) {
-		IMAPMessage m = (IMAPMessage)messageCache.elementAt(i);
-		if (m.isExpunged()) {
-		    v.addElement(m); // add into vector of expunged messages
-
-		    /* remove this message from the messageCache.
-		     *
-		     * Note that this also causes all succeeding messages
-		     * in the cache to shifted downward in the vector,
-		     * therby decrementing the vector's size. (and hence
-		     * we need to do messageCache.size() at the top of
-		     * this loop.
-		     */
-		    messageCache.removeElementAt(i);
-
-		    /* remove this message from the UIDTable */
-		    if (uidTable != null) {
-			long uid = m.getUID();
-			if (uid != -1)
-			    uidTable.remove(new Long(uid));
-		    }
-		} else {
-		    /* Valid message, sync its message number with 
-		     * its sequence number.
-		     */
-		    m.setMessageNumber(m.getSequenceNumber());
-		    i++; // done; increment index, go check next message
+	    IMAPMessage[] removed = messageCache.removeExpungedMessages();
+	    for (int i = 0; i < removed.length; i++) {
+		IMAPMessage m = removed[i];
+		v.addElement(m); // add into vector of expunged messages
+
+		/* remove this message from the UIDTable */
+		if (uidTable != null) {
+		    long uid = m.getUID();
+		    if (uid != -1)
+			uidTable.remove(uid);
 		}
 	    }
-	}
 
-	// Update 'total'
-	total = messageCache.size();
+	    // Update 'total'
+	    total = messageCache.size();
+	}
 
 	// Notify listeners. This time its for real, guys.
 	Message[] rmsgs = new Message[v.size()];
@@ -1715,6 +1788,55 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 	}
     }
 
+    /**
+     * Search whole folder for messages matching the given term,
+     * returning the UIDs of the matching messages rather than
+     * Message objects. The UIDs are obtained with a single
+     * UID SEARCH command, so no per-message UID FETCH is needed.
+     * Returns an empty array if no matching messages are found. <p>
+     *
+     * If the search cannot be done on the server, the search is
+     * done on the client and the UIDs of the matching messages are
+     * fetched in bulk.
+     *
+     * @param	term	the search term
+     * @return		array of UIDs of matching messages
+     */
+    public synchronized long[] searchUIDs(SearchTerm term)
+				throws MessagingException {
+	checkOpened();
+
+	try {
+	    synchronized(messageCacheLock) {
+		return getProtocol().uidSearch(term);
+	    }
+	} catch (CommandFailedException cfx) {
+	    // unsupported charset or search criterion
+	} catch (SearchException sex) {
+	    // too complex for IMAP
+	} catch (ConnectionException cex) {
+	    throw new FolderClosedException(this, cex.getMessage());
+	} catch (ProtocolException pex) {
+	    // bug in our IMAP layer ?
+	    throw new MessagingException(pex.getMessage(), pex);
+	}
+
+	if (term instanceof GmailRawTerm)
+	    // cannot be done on the client; don't pretend nothing matched
+	    throw new SearchException("X-GM-RAW search failed");
+
+	// do the search on the client, then fetch the UIDs in bulk
+	Message[] msgs = super.search(term);
+	FetchProfile fp = new FetchProfile();
+	fp.add(UIDFolder.FetchProfileItem.UID);
+	fetch(msgs, fp);
+
+	long[] uids = new long[msgs.length];
+	for (int i = 0; i < msgs.length; i++)
+	    uids[i] = getUID(msgs[i]);
+	return uids;
+    }
+
     /***********************************************************
      *		UIDFolder interface methods
      **********************************************************/
@@ -1804,15 +1926,13 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 
 	try {
 	    synchronized(messageCacheLock) {
-		Long l = new Long(uid);
-
 		if (uidTable != null) {
 		    // Check in uidTable
-		    m = (IMAPMessage)uidTable.get(l);
+		    m = uidTable.get(uid);
 		    if (m != null) // found it
 			return m;
 		} else
-		    uidTable = new Hashtable();
+		    uidTable = new UIDTable();
 
 		// Check with the server
 		// Issue UID FETCH command
@@ -1821,8 +1941,8 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 		if (u != null && u.seqnum <= total) { // Valid UID 
 		    m = getMessageBySeqNumber(u.seqnum);
 		    m.setUID(u.uid); // set this message's UID ..
-		    // .. and put this into the hashtable
-		    uidTable.put(l, m);
+		    // .. and put this into the table
+		    uidTable.put(uid, m);
 		}
 	    }
 	} catch(ConnectionException cex) {
@@ -1847,21 +1967,11 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 
 	try {
 	    synchronized(messageCacheLock) {
-		if (uidTable == null)
-		    uidTable = new Hashtable();
-
 		// Issue UID FETCH for given range
 		UID[] ua = getProtocol().fetchSequenceNumbers(start, end);
 
-		msgs = new Message[ua.length];
-		IMAPMessage m;
 		// NOTE: Below must be within messageCacheLock region
-		for (int i = 0; i < ua.length; i++) {
-		    m = getMessageBySeqNumber(ua[i].seqnum);
-		    m.setUID(ua[i].uid);
-		    msgs[i] = m;
-		    uidTable.put(new Long(ua[i].uid), m);
-		}
+		msgs = putUIDs(ua);
 	    }
 	} catch(ConnectionException cex) {
 	    throw new FolderClosedException(this, cex.getMessage());
@@ -1887,36 +1997,32 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 	    synchronized(messageCacheLock) {
 		long[] unavailUids = uids;
 		if (uidTable != null) {
-		    Vector v = new Vector(); // to collect unavailable UIDs
-		    Long l;
+		    // collect unavailable UIDs
+		    int n = 0;
+		    unavailUids = new long[uids.length];
 		    for (int i = 0; i < uids.length; i++) {
-			if (!uidTable.containsKey(l = new Long(uids[i])))
+			if (!uidTable.containsKey(uids[i]))
 			    // This UID has not been loaded yet.
-			    v.addElement(l);
+			    unavailUids[n++] = uids[i];
 		    }
 
-		    int vsize = v.size();
-		    unavailUids = new long[vsize];
-		    for (int i = 0; i < vsize; i++)
-			unavailUids[i] = ((Long)v.elementAt(i)).longValue();
+		    if (n < uids.length) {
+			long[] a = new long[n];
+			System.arraycopy(unavailUids, 0, a, 0, n);
+			unavailUids = a;
+		    }
 		} else
-		    uidTable = new Hashtable();
+		    uidTable = new UIDTable();
 
 		if (unavailUids.length > 0) {
 		    // Issue UID FETCH request for given uids
-		    UID[] ua = getProtocol().fetchSequenceNumbers(unavailUids);
-		    IMAPMessage m;
-		    for (int i = 0; i < ua.length; i++) {
-			m = getMessageBySeqNumber(ua[i].seqnum);
-			m.setUID(ua[i].uid);
-			uidTable.put(new Long(ua[i].uid), m);
-		    }
+		    putUIDs(getProtocol().fetchSequenceNumbers(unavailUids));
 		}
 
 		// Return array of size = uids.length
 		Message[] msgs = new Message[uids.length];
 		for (int i = 0; i < uids.length; i++)
-		    msgs[i] = (Message)uidTable.get(new Long(uids[i]));
+		    msgs[i] = uidTable.get(uids[i]);
 		return msgs;
 	    }
 	} catch(ConnectionException cex) {
@@ -1955,8 +2061,8 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 
 		    // insert this message into uidTable
 		    if (uidTable == null)
-			uidTable = new Hashtable();
-		    uidTable.put(new Long(uid), m);
+			uidTable = new UIDTable();
+		    uidTable.put(uid, m);
 		}
 	    } catch (ConnectionException cex) {
 		throw new FolderClosedException(this, cex.getMessage());
@@ -2237,6 +2343,7 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 			messageCacheLock.notifyAll();
 			break;
 		    }
+		    protocol.releaseResponse(r);
 		}
 	    } catch (ConnectionException cex) {
 		// Oops, the store or folder died on us.
@@ -2331,16 +2438,11 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 		return;
 	
 	    int count = exists - realTotal; // number of new messages
-	    Message[] msgs = new Message[count];
 
 	    // Add 'count' new IMAPMessage objects into the messageCache
-	    for (int i = 0; i < count; i++) {
-		// Note that as a side-effect, we also increment
-		// total & realTotal
-		IMAPMessage msg = new IMAPMessage(this, ++total, ++realTotal);
-		msgs[i] = msg;
-		messageCache.addElement(msg);
-	    }
+	    Message[] msgs = messageCache.addMessages(count);
+	    total += count;
+	    realTotal += count;
 
 	    // Notify listeners.
 	    notifyMessageAddedListeners(msgs);
@@ -2348,21 +2450,11 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
 	} else if (ir.keyEquals("EXPUNGE")) {
 	    // EXPUNGE response.
 
-	    IMAPMessage msg = getMessageBySeqNumber(ir.getNumber());
-	    msg.setExpunged(true); // mark this message expunged.
-
-	    // Renumber the cache, starting from just beyond 
-	    // the expunged message.
-	    for (int i = msg.getMessageNumber(); i < total; i++) {
-		// Note that 'i' actually indexes the message
-		// beyond the expunged message.
-		IMAPMessage m = (IMAPMessage)messageCache.elementAt(i);
-		if (m.isExpunged()) // an expunged message, skip
-		    continue;
-
-		// Decrement this message's seqnum
-		m.setSequenceNumber(m.getSequenceNumber() - 1);
-	    } // Whew, done.
+	    // Mark this message expunged, and renumber the cache,
+	    // starting from just beyond the expunged message.
+	    IMAPMessage msg = messageCache.expungeMessage(ir.getNumber());
+	    if (msg == null) // Bad bad server ..
+		return;
 
 	    // decrement 'realTotal'; but leave 'total' unchanged
 	    realTotal--;
@@ -2684,6 +2776,32 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
         }
     }
 
+    /**
+     * Record the UIDs returned by a UID FETCH in the corresponding
+     * messages and in the uidTable, which is resized at most once,
+     * and return the messages.  A null entry is returned for a
+     * sequence number that isn't in the message cache.
+     *
+     * ASSERT: This method must be called only when holding the
+     *  messageCacheLock
+     */
+    private IMAPMessage[] putUIDs(UID[] ua) {
+	if (uidTable == null)
+	    uidTable = new UIDTable();
+	uidTable.ensureCapacity(ua.length);
+
+	IMAPMessage[] msgs = new IMAPMessage[ua.length];
+	for (int i = 0; i < ua.length; i++) {
+	    IMAPMessage m = getMessageBySeqNumber(ua[i].seqnum);
+	    if (m == null)
+		continue;
+	    m.setUID(ua[i].uid);
+	    uidTable.put(ua[i].uid, m);
+	    msgs[i] = m;
+	}
+	return msgs;
+    }
+
     /**
      * Get the message object for the given sequence number. If
      * none found, null is returned.
@@ -2692,16 +2810,11 @@ public class IMAPFolder extends Folder implements UIDFolder, ResponseHandler {
      *  messageCacheLock
      */
     IMAPMessage getMessageBySeqNumber(int seqnum) {
-	/* Check messageCache for message matching the given
-	 * sequence number. We start the search from position (seqnum-1)
-	 * and continue down the vector till we get a match.
+	/* The messageCache maps the sequence number to a message
+	 * number by skipping the expunged messages, and creates
+	 * the message if it has not been accessed before.
 	 */
-	for (int i = seqnum-1; i < total; i++) {
-	    IMAPMessage msg = (IMAPMessage)messageCache.elementAt(i);
-	    if (msg.getSequenceNumber() == seqnum)
-		return msg;
-	}
-	return null;
+	return messageCache.getMessageBySeqNumber(seqnum);
     }
 
     private boolean isDirectory() {
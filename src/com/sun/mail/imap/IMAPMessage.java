@@ -63,7 +63,8 @@ import com.sun.mail.imap.protocol.*;
  * when a prefetch is done using the FetchProfile. <p>
  *
  * An IMAPMessage has a messageNumber and a sequenceNumber. The 
- * messageNumber is its index into its containing folder's messageCache.
+ * messageNumber is its index into its containing folder's messageCache,
+ * which creates it when it is first accessed.
  * The sequenceNumber is its IMAP sequence-number.
  *
  * @version 1.47, 07/05/04
@@ -93,6 +94,11 @@ public class IMAPMessage extends MimeMessage {
     // this message's IMAP UID
     private long uid = -1;
 
+    // this message's Gmail message ID (X-GM-MSGID)
+    private long gmailMsgId = -1;
+    // this message's Gmail labels (X-GM-LABELS)
+    private String[] gmailLabels;
+
     // this message's IMAP sectionId (null for toplevel message, 
     // 	non-null for a nested message)
     protected String sectionId;
@@ -208,6 +214,29 @@ public class IMAPMessage extends MimeMessage {
 	this.uid = uid;
     }
 
+    /**
+     * Return the Gmail message ID (X-GM-MSGID) of this message, which
+     * is the same in every folder containing it.  It is only available
+     * if it has been prefetched with
+     * <code>IMAPFolder.FetchProfileItem.GMAIL_MSGID</code>.
+     *
+     * @return	the Gmail message ID, or -1 if not available
+     */
+    public synchronized long getGmailMessageId() {
+	return gmailMsgId;
+    }
+
+    /**
+     * Return the Gmail labels (X-GM-LABELS) of this message.  They are
+     * only available if they have been prefetched with
+     * <code>IMAPFolder.FetchProfileItem.GMAIL_LABELS</code>.
+     *
+     * @return	the Gmail labels, or null if not available
+     */
+    public synchronized String[] getGmailLabels() {
+	return (gmailLabels == null) ? null : (String[])gmailLabels.clone();
+    }
+
     // overrides super.setExpunged()
     protected void setExpunged(boolean set) {
 	super.setExpunged(set);
@@ -605,6 +634,54 @@ public class IMAPMessage extends MimeMessage {
 	    return is;
     }
 
+    /**
+     * Get the BODYSTRUCTURE of this message, fetching it from the
+     * server if it has not already been loaded (for example, by a
+     * prefetch of <code>FetchProfile.Item.CONTENT_INFO</code>).
+     */
+    public synchronized BODYSTRUCTURE getBodyStructure()
+		throws MessagingException {
+	checkExpunged();
+	loadBODYSTRUCTURE();
+	return bs;
+    }
+
+    /**
+     * Fetch <code>size</code> bytes of the given body section of
+     * this message, starting at offset <code>start</code>, without
+     * setting the SEEN flag.  The section is relative to this message,
+     * e.g., "1.2" or "TEXT".  Only the requested range is transferred
+     * from the server.  The returned bytes are still transfer-encoded.
+     *
+     * @return	the raw bytes of the range, or null if the server
+     *		did not return the section
+     */
+    public InputStream peekPartialBody(String section, int start, int size)
+		throws MessagingException {
+	BODY b;
+
+        // Acquire MessageCacheLock, to freeze seqnum.
+        synchronized(getMessageCacheLock()) {
+	    try {
+		IMAPProtocol p = getProtocol();
+
+		// This message could be expunged when we were waiting
+		// to acquire the lock ...
+		checkExpunged();
+
+		b = p.peekBody(getSequenceNumber(), toSection(section),
+			       start, size);
+	    } catch (ConnectionException cex) {
+		throw new FolderClosedException(folder, cex.getMessage());
+	    } catch (ProtocolException pex) {
+		forceCheckExpunged();
+		throw new MessagingException(pex.getMessage(), pex);
+	    }
+	}
+
+	return (b == null) ? null : b.getByteArrayInputStream();
+    }
+
     /**
      * Get the DataHandler object for this message.
      */
@@ -937,6 +1014,8 @@ public class IMAPMessage extends MimeMessage {
 	    private boolean needUID = false;
 	    private boolean needHeaders = false;
 	    private boolean needSize = false;
+	    private boolean needGmailMsgId = false;
+	    private boolean needGmailLabels = false;
 	    private String[] hdrs = null;
 
 	    public FetchProfileCondition(FetchProfile fp) {
@@ -952,6 +1031,10 @@ public class IMAPMessage extends MimeMessage {
 		    needHeaders = true;
 		if (fp.contains(IMAPFolder.FetchProfileItem.SIZE))
 		    needSize = true;
+		if (fp.contains(IMAPFolder.FetchProfileItem.GMAIL_MSGID))
+		    needGmailMsgId = true;
+		if (fp.contains(IMAPFolder.FetchProfileItem.GMAIL_LABELS))
+		    needGmailLabels = true;
 		hdrs = fp.getHeaderNames();
 	    }
 
@@ -969,6 +1052,10 @@ public class IMAPMessage extends MimeMessage {
 		    return true;
 		if (needSize && m.size == -1)		// no size
 		    return true;
+		if (needGmailMsgId && m.gmailMsgId == -1) // no Gmail message ID
+		    return true;
+		if (needGmailLabels && m.gmailLabels == null) // no Gmail labels
+		    return true;
 
 		// Is the desired header present ?
 		for (int i = 0; i < hdrs.length; i++) {
@@ -1013,6 +1100,14 @@ public class IMAPMessage extends MimeMessage {
 	    command.append(first ? "RFC822.SIZE" : " RFC822.SIZE");
 	    first = false;
 	}
+	if (fp.contains(IMAPFolder.FetchProfileItem.GMAIL_MSGID)) {
+	    command.append(first ? "X-GM-MSGID" : " X-GM-MSGID");
+	    first = false;
+	}
+	if (fp.contains(IMAPFolder.FetchProfileItem.GMAIL_LABELS)) {
+	    command.append(first ? "X-GM-LABELS" : " X-GM-LABELS");
+	    first = false;
+	}
 
 	// if we're not fetching all headers, fetch individual headers
 	String[] hdrs = null;
@@ -1053,6 +1148,13 @@ public class IMAPMessage extends MimeMessage {
 
 	    if (r == null)
 		return;
+
+	    // make room in the uid table for all the UIDs at once
+	    if (fp.contains(UIDFolder.FetchProfileItem.UID)) {
+		if (folder.uidTable == null)
+		    folder.uidTable = new UIDTable();
+		folder.uidTable.ensureCapacity(r.length);
+	    }
 	   
 	    for (int i = 0; i < r.length; i++) {
 		if (r[i] == null)
@@ -1090,6 +1192,10 @@ public class IMAPMessage extends MimeMessage {
 			msg.receivedDate = ((INTERNALDATE)item).getDate();
 		    else if (item instanceof RFC822SIZE)
 			msg.size = ((RFC822SIZE)item).size;
+		    else if (item instanceof X_GM_MSGID)
+			msg.gmailMsgId = ((X_GM_MSGID)item).msgid;
+		    else if (item instanceof X_GM_LABELS)
+			msg.gmailLabels = ((X_GM_LABELS)item).labels;
 
 		    // Check for the BODYSTRUCTURE item
 		    else if (item instanceof BODYSTRUCTURE)
@@ -1100,8 +1206,8 @@ public class IMAPMessage extends MimeMessage {
 			msg.uid = u.uid; // set uid
 			// add entry into uid table
 			if (folder.uidTable == null)
-			    folder.uidTable = new Hashtable();
-			folder.uidTable.put(new Long(u.uid), msg);
+			    folder.uidTable = new UIDTable();
+			folder.uidTable.put(u.uid, msg);
 		    }
 
 		    // Check for header items
@@ -1164,6 +1270,9 @@ public class IMAPMessage extends MimeMessage {
 		folder.handleResponses(responses);
 	    }
 
+	    // headers have been copied out above, the buffers can be reused
+	    folder.protocol.releaseResponses(r);
+
 	} // Release messageCacheLock
     }
 
@@ -184,6 +184,20 @@ public class IMAPStore extends Store
 
     private PrintStream out;		// debug output stream
 
+    // all connections created by this store that may still be open,
+    // so that abort can close them; guarded by its own lock, which is
+    // never held while doing I/O
+    private Vector connections = new Vector();
+    private volatile boolean aborted = false;
+
+    // traffic of connections no longer tracked, guarded by connections
+    private long retiredBytesRead = 0;
+    private long retiredCommandCount = 0;
+
+    // time taken to open and to log in the connection made by connect
+    private volatile long connectTime = -1;
+    private volatile long loginTime = -1;
+
     // Connection pool info
 
     static class ConnectionPool {
@@ -535,18 +549,23 @@ public class IMAPStore extends Store
             }
 
             if (poolEmpty) {
+		long start = System.currentTimeMillis();
                 protocol = new IMAPProtocol(name, host, port, 
 		    			    session.getDebug(),
 		    			    session.getDebugOut(),
 					    session.getProperties(),
 					    isSSL
 					   );
+		connectTime = System.currentTimeMillis() - start;
+		trackConnection(protocol);
 		if (debug)
 		    out.println("DEBUG: protocolConnect login" +
 				", host=" + host +
 				", user=" + user +
 				", password=<non-null>");
+		start = System.currentTimeMillis();
 	        login(protocol, user, password);
+		loginTime = System.currentTimeMillis() - start;
 
 	        protocol.addResponseHandler(this);
 
@@ -728,6 +747,7 @@ public class IMAPStore extends Store
                                          session.getProperties(),
 					 isSSL
                                         );
+                    trackConnection(p);
                     // Use cached auth info
                     login(p, user, password);
                 } catch(Exception ex1) {
@@ -831,6 +851,7 @@ public class IMAPStore extends Store
                                          session.getProperties(),
 					 isSSL
                                         );
+                    trackConnection(p);
                     // Use cached auth info
                     login(p, user, password);
                 } catch(Exception ex1) {
@@ -1158,6 +1179,117 @@ public class IMAPStore extends Store
 	return super.isConnected();
     }
 
+    /**
+     * Remember a new connection, so that abort can close it.
+     * Connections whose sockets have been closed are forgotten.
+     * If the store has already been aborted, the new connection
+     * is aborted right away.
+     */
+    private void trackConnection(IMAPProtocol p) {
+	synchronized (connections) {
+	    for (int i = connections.size() - 1; i >= 0; i--) {
+		IMAPProtocol c = (IMAPProtocol)connections.elementAt(i);
+		if (!c.isSocketOpen()) {
+		    retireConnection(c);
+		    connections.removeElementAt(i);
+		}
+	    }
+	    connections.addElement(p);
+	}
+	if (aborted)
+	    p.abort();
+    }
+
+    /**
+     * Add the traffic of a connection that is no longer tracked
+     * to the totals of this Store.  Called with the connections
+     * lock held.
+     */
+    private void retireConnection(IMAPProtocol p) {
+	retiredBytesRead += p.getBytesRead();
+	retiredCommandCount += p.getCommandCount();
+    }
+
+    /**
+     * Return the number of response bytes read on all connections
+     * of this Store since it was created.
+     *
+     * @return	the number of bytes read
+     */
+    public long getBytesRead() {
+	synchronized (connections) {
+	    long n = retiredBytesRead;
+	    for (int i = 0; i < connections.size(); i++)
+		n += ((IMAPProtocol)connections.elementAt(i)).getBytesRead();
+	    return n;
+	}
+    }
+
+    /**
+     * Return the number of commands sent on all connections of this
+     * Store since it was created, i.e. the number of round trips to
+     * the server.
+     *
+     * @return	the number of commands
+     */
+    public long getCommandCount() {
+	synchronized (connections) {
+	    long n = retiredCommandCount;
+	    for (int i = 0; i < connections.size(); i++)
+		n += ((IMAPProtocol)connections.elementAt(i)).getCommandCount();
+	    return n;
+	}
+    }
+
+    /**
+     * Return the time taken to open the connection made by the last
+     * successful <code>connect</code>, including reading the server
+     * greeting, or -1 if not known.
+     *
+     * @return	the time in milliseconds
+     */
+    public long getConnectTime() {
+	return connectTime;
+    }
+
+    /**
+     * Return the time taken to log in the connection made by the last
+     * successful <code>connect</code>, or -1 if not known.
+     *
+     * @return	the time in milliseconds
+     */
+    public long getLoginTime() {
+	return loginTime;
+    }
+
+    /**
+     * Abort this Store by closing the sockets of all its connections,
+     * including those used by open folders, without logging out. <p>
+     *
+     * Unlike <code>close</code>, this method does not wait for
+     * commands in progress and takes no lock that is held while
+     * doing I/O, so it may be called from any thread, even while
+     * other threads are blocked reading from an unresponsive server.
+     * Those threads get a connection failure, after which the store
+     * and its folders are closed as if the server had dropped the
+     * connections.  Connections created after the store is aborted
+     * are closed as soon as they are opened.
+     */
+    public void abort() {
+	aborted = true;
+	Object[] conns;
+	synchronized (connections) {
+	    conns = connections.toArray();
+	    for (int i = 0; i < conns.length; i++)
+		retireConnection((IMAPProtocol)conns[i]);
+	    connections.removeAllElements();
+	}
+	if (debug)
+	    out.println("DEBUG: IMAPStore abort, connections " + conns.length);
+	for (int i = 0; i < conns.length; i++)
+	    ((IMAPProtocol)conns[i]).abort();
+    }
+
     /**
      * Close this Store.
      */
@@ -1599,6 +1731,7 @@ public class IMAPStore extends Store
 		if (enableImapEvents && r.isUnTagged()) {
 		    notifyStoreListeners(IMAPStore.RESPONSE, r.toString());
 		}
+		p.releaseResponse(r);
 	    }
 
 	    /*
@@ -0,0 +1,272 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 1997-2007 Sun Microsystems, Inc. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License. You can obtain
+ * a copy of the License at https://glassfish.dev.java.net/public/CDDL+GPL.html
+ * or glassfish/bootstrap/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at glassfish/bootstrap/legal/LICENSE.txt.
+ * Sun designates this particular file as subject to the "Classpath" exception
+ * as provided by Sun in the GPL Version 2 section of the License file that
+ * accompanied this code.  If applicable, add the following below the License
+ * Header, with the fields enclosed by brackets [] replaced by your own
+ * identifying information: "Portions Copyrighted [year]
+ * [name of copyright owner]"
+ *
+ * Contributor(s):
+ *
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.mail.imap;
+
+/**
+ * The message cache of an open IMAPFolder, which maps message numbers
+ * to IMAPMessage objects. <p>
+ *
+ * The IMAPMessage objects are created lazily, when they are first
+ * accessed, and are kept in fixed-size pages that are allocated only
+ * when one of their messages is accessed.  Thus opening a folder with
+ * a very large number of messages costs nothing per message, and a
+ * client that accesses only a handful of the messages (e.g., those
+ * returned by a SEARCH) creates only those. <p>
+ *
+ * Until the first EXPUNGE response, the sequence number of a message is
+ * its message number.  After that, the message numbers of the expunged
+ * messages, which keep their places in the cache until the client
+ * removes them (see {@link #removeExpungedMessages}), are kept in a
+ * sorted array, from which the sequence number of any message, and the
+ * message number for any sequence number, are computed.  Expunged
+ * messages are always created, so that they can be marked expunged. <p>
+ *
+ * ASSERT: All methods must be called only when holding the folder's
+ *	messageCacheLock.
+ */
+
+final class MessageCache {
+
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int[] NO_MSGNUMS = new int[0];
+    private static final IMAPMessage[] NO_MESSAGES = new IMAPMessage[0];
+
+    private final IMAPFolder folder;
+
+    /*
+     * Pages of messages, indexed by (message number - 1) >> PAGE_SHIFT.
+     * The array grows, and the pages are allocated, only as messages
+     * are accessed; a null page or slot stands for messages that have
+     * not been created yet.
+     */
+    private IMAPMessage[][] pages = new IMAPMessage[0][];
+
+    private int size;			// number of messages in the cache
+
+    /*
+     * Message numbers of the expunged messages still in the cache,
+     * in increasing order.
+     */
+    private int[] expunged = NO_MSGNUMS;
+    private int nexpunged = 0;
+
+    /**
+     * Create a message cache for the given folder, with the given
+     * number of messages.  No message is created.
+     */
+    MessageCache(IMAPFolder folder, int size) {
+	this.folder = folder;
+	this.size = size;
+    }
+
+    /**
+     * Return the number of messages in the cache, including the
+     * expunged messages that have not been removed yet.
+     */
+    int size() {
+	return size;
+    }
+
+    /**
+     * Return the message with the given message number, creating
+     * it if it has not been accessed before.
+     */
+    IMAPMessage getMessage(int msgnum) {
+	int index = msgnum - 1;
+	int p = index >> PAGE_SHIFT;
+
+	if (p >= pages.length) {
+	    IMAPMessage[][] np = new IMAPMessage[p + 1][];
+	    System.arraycopy(pages, 0, np, 0, pages.length);
+	    pages = np;
+	}
+	if (pages[p] == null)
+	    pages[p] = new IMAPMessage[PAGE_SIZE];
+
+	IMAPMessage msg = pages[p][index & (PAGE_SIZE - 1)];
+	if (msg == null) {
+	    int rank = rank(msgnum);
+	    msg = new IMAPMessage(folder, msgnum, msgnum - rank);
+	    if (rank < nexpunged && expunged[rank] == msgnum)
+		msg.setExpunged(true);
+	    pages[p][index & (PAGE_SIZE - 1)] = msg;
+	}
+	return msg;
+    }
+
+    /**
+     * Return the message with the given sequence number, creating
+     * it if it has not been accessed before.  If there is no such
+     * message, null is returned.
+     */
+    IMAPMessage getMessageBySeqNumber(int seqnum) {
+	int msgnum = msgnumOf(seqnum);
+	return msgnum > 0 ? getMessage(msgnum) : null;
+    }
+
+    /**
+     * Add the given number of new messages to the end of the cache,
+     * and return them.
+     */
+    IMAPMessage[] addMessages(int count) {
+	IMAPMessage[] msgs = new IMAPMessage[count];
+	for (int i = 0; i < count; i++)
+	    msgs[i] = getMessage(++size);
+	return msgs;
+    }
+
+    /**
+     * Mark the message with the given sequence number expunged, and
+     * renumber the messages after it.  The expunged message is
+     * returned; if there is no such message, null is returned.
+     */
+    IMAPMessage expungeMessage(int seqnum) {
+	int msgnum = msgnumOf(seqnum);
+	if (msgnum <= 0)
+	    return null;
+
+	IMAPMessage msg = getMessage(msgnum);
+	msg.setExpunged(true);
+
+	// insert into the sorted expunged message numbers
+	int rank = rank(msgnum);
+	if (nexpunged == expunged.length) {
+	    int[] ne = new int[Math.max(16, nexpunged * 2)];
+	    System.arraycopy(expunged, 0, ne, 0, nexpunged);
+	    expunged = ne;
+	}
+	System.arraycopy(expunged, rank, expunged, rank + 1, nexpunged - rank);
+	expunged[rank] = msgnum;
+	nexpunged++;
+
+	// Renumber the messages that have been created, starting
+	// from just beyond the expunged message; the others get
+	// their sequence numbers when they are created.
+	for (int p = (msgnum - 1) >> PAGE_SHIFT; p < pages.length; p++) {
+	    IMAPMessage[] page = pages[p];
+	    if (page == null)
+		continue;
+	    for (int i = 0; i < PAGE_SIZE; i++) {
+		IMAPMessage m = page[i];
+		if (m == null || m.getMessageNumber() <= msgnum ||
+			m.isExpunged())
+		    continue;
+		m.setSequenceNumber(m.getSequenceNumber() - 1);
+	    }
+	}
+	return msg;
+    }
+
+    /**
+     * Remove the expunged messages from the cache, and sync the
+     * message numbers of the remaining messages with their sequence
+     * numbers.  The removed messages are returned, in order.
+     */
+    IMAPMessage[] removeExpungedMessages() {
+	if (nexpunged == 0)
+	    return NO_MESSAGES;
+
+	IMAPMessage[] removed = new IMAPMessage[nexpunged];
+	int nremoved = 0;
+	int newSize = size - nexpunged;
+	IMAPMessage[][] np =
+	    new IMAPMessage[(newSize + PAGE_SIZE - 1) >> PAGE_SHIFT][];
+
+	for (int p = 0; p < pages.length; p++) {
+	    IMAPMessage[] page = pages[p];
+	    if (page == null)
+		continue;
+	    for (int i = 0; i < PAGE_SIZE; i++) {
+		IMAPMessage m = page[i];
+		if (m == null)
+		    continue;
+		if (m.isExpunged()) {
+		    removed[nremoved++] = m;
+		} else {
+		    /* Valid message, sync its message number with 
+		     * its sequence number.
+		     */
+		    int index = m.getSequenceNumber() - 1;
+		    if (np[index >> PAGE_SHIFT] == null)
+			np[index >> PAGE_SHIFT] = new IMAPMessage[PAGE_SIZE];
+		    np[index >> PAGE_SHIFT][index & (PAGE_SIZE - 1)] = m;
+		    m.setMessageNumber(index + 1);
+		}
+	    }
+	}
+
+	pages = np;
+	size = newSize;
+	expunged = NO_MSGNUMS;
+	nexpunged = 0;
+	return removed;
+    }
+
+    /**
+     * Return the number of expunged messages with message numbers
+     * less than the given message number.  This is also the index
+     * of the given message number in the expunged message numbers,
+     * if it's there.
+     */
+    private int rank(int msgnum) {
+	int lo = 0, hi = nexpunged;
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (expunged[mid] < msgnum)
+		lo = mid + 1;
+	    else
+		hi = mid;
+	}
+	return lo;
+    }
+
+    /**
+     * Return the message number of the message with the given
+     * sequence number, skipping the expunged messages, or -1
+     * if there is no such message.
+     */
+    private int msgnumOf(int seqnum) {
+	if (seqnum <= 0)
+	    return -1;
+	int msgnum = seqnum;
+	for (int i = 0; i < nexpunged && expunged[i] <= msgnum; i++)
+	    msgnum++;
+	return msgnum <= size ? msgnum : -1;
+    }
+}
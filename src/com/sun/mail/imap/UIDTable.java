@@ -0,0 +1,192 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 1997-2007 Sun Microsystems, Inc. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License. You can obtain
+ * a copy of the License at https://glassfish.dev.java.net/public/CDDL+GPL.html
+ * or glassfish/bootstrap/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at glassfish/bootstrap/legal/LICENSE.txt.
+ * Sun designates this particular file as subject to the "Classpath" exception
+ * as provided by Sun in the GPL Version 2 section of the License file that
+ * accompanied this code.  If applicable, add the following below the License
+ * Header, with the fields enclosed by brackets [] replaced by your own
+ * identifying information: "Portions Copyrighted [year]
+ * [name of copyright owner]"
+ *
+ * Contributor(s):
+ *
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.mail.imap;
+
+/**
+ * A map from UIDs to the IMAPMessage objects of an open IMAPFolder. <p>
+ *
+ * The map uses open addressing with linear probing on parallel arrays
+ * of primitive <code>long</code> keys and message values, so that
+ * lookups don't box the UID and inserts don't allocate an entry. <p>
+ *
+ * UIDs are non-zero (RFC 3501, section 2.3.1.1), so a zero key marks
+ * an empty slot. <p>
+ *
+ * ASSERT: All methods must be called only when holding the folder's
+ *	messageCacheLock.
+ */
+
+final class UIDTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private IMAPMessage[] values;
+    private int size = 0;
+    private int mask;			// capacity - 1
+    private int shift;			// 64 - log2(capacity)
+
+    /**
+     * Create an empty UID table.
+     */
+    UIDTable() {
+	allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Return the number of UIDs in the table.
+     */
+    int size() {
+	return size;
+    }
+
+    /**
+     * Return the message with the given UID, or null if the UID
+     * is not in the table.
+     */
+    IMAPMessage get(long uid) {
+	if (uid == 0)
+	    return null;
+	for (int i = index(uid); ; i = (i + 1) & mask) {
+	    long k = keys[i];
+	    if (k == uid)
+		return values[i];
+	    if (k == 0)
+		return null;
+	}
+    }
+
+    /**
+     * Is the given UID in the table?
+     */
+    boolean containsKey(long uid) {
+	return get(uid) != null;
+    }
+
+    /**
+     * Map the given UID to the given message, replacing any previous
+     * mapping of the UID.
+     */
+    void put(long uid, IMAPMessage msg) {
+	if (uid == 0 || msg == null)
+	    return;
+	int i = index(uid);
+	for (; keys[i] != 0; i = (i + 1) & mask) {
+	    if (keys[i] == uid) {
+		values[i] = msg;
+		return;
+	    }
+	}
+	keys[i] = uid;
+	values[i] = msg;
+	if (++size > (mask + 1) >> 1)	// keep the load factor at most 1/2
+	    resize((mask + 1) << 1);
+    }
+
+    /**
+     * Make room for the given number of additional UIDs, e.g., before
+     * inserting the results of a UID FETCH, so that the table is
+     * resized at most once.
+     */
+    void ensureCapacity(int count) {
+	int capacity = mask + 1;
+	while (capacity >> 1 < size + count && capacity < (1 << 30))
+	    capacity <<= 1;
+	if (capacity > mask + 1)
+	    resize(capacity);
+    }
+
+    /**
+     * Remove the mapping of the given UID, if any.
+     */
+    void remove(long uid) {
+	if (uid == 0)
+	    return;
+	int i = index(uid);
+	for (; keys[i] != uid; i = (i + 1) & mask) {
+	    if (keys[i] == 0)
+		return;		// not found
+	}
+
+	// Shift back the following entries of the probe sequence, so
+	// that no entry is separated from its home slot by an empty slot.
+	for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+	    int home = index(keys[j]);
+	    // move entry j into the hole at i, unless its home slot
+	    // lies cyclically in (i, j]
+	    if (((j - home) & mask) >= ((j - i) & mask)) {
+		keys[i] = keys[j];
+		values[i] = values[j];
+		i = j;
+	    }
+	}
+	keys[i] = 0;
+	values[i] = null;
+	size--;
+    }
+
+    /**
+     * Return the home slot of the given UID.  UIDs are often
+     * consecutive, so they are spread with a multiplicative hash.
+     */
+    private int index(long uid) {
+	return (int)((uid * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private void allocate(int capacity) {
+	keys = new long[capacity];
+	values = new IMAPMessage[capacity];
+	mask = capacity - 1;
+	shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void resize(int capacity) {
+	long[] oldKeys = keys;
+	IMAPMessage[] oldValues = values;
+	allocate(capacity);
+	for (int j = 0; j < oldKeys.length; j++) {
+	    long k = oldKeys[j];
+	    if (k == 0)
+		continue;
+	    int i = index(k);
+	    while (keys[i] != 0)
+		i = (i + 1) & mask;
+	    keys[i] = k;
+	    values[i] = oldValues[j];
+	}
+    }
+}
@@ -182,6 +182,16 @@ public class FetchResponse extends IMAPResponse {
 		    i = new UID(this);
 		}
 		break;
+	    case 'X': 
+		if (match(X_GM_MSGID.name)) {
+		    index += X_GM_MSGID.name.length; // skip "X-GM-MSGID"
+		    i = new X_GM_MSGID(this);
+		}
+		else if (match(X_GM_LABELS.name)) {
+		    index += X_GM_LABELS.name.length; // skip "X-GM-LABELS"
+		    i = new X_GM_LABELS(this);
+		}
+		break;
 	    default: 
 	    }
 	    if (i != null)
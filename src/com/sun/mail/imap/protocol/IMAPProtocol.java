@@ -628,14 +628,30 @@ public class IMAPProtocol extends Protocol {
      * @see "RFC2060, section 6.3.1"
      */
     public MailboxInfo select(String mbox) throws ProtocolException {
-	// encode the mbox as per RFC2060
-	mbox = BASE64MailboxEncoder.encode(mbox);
-
-	Argument args = new Argument();	
-	args.writeString(mbox);
+	Response[] r = command("SELECT", mailboxArgument(mbox));
+	return processSelect(r, false);
+    }
 
-	Response[] r = command("SELECT", args);
+    /**
+     * EXAMINE Command.
+     *
+     * @see "RFC2060, section 6.3.2"
+     */
+    public MailboxInfo examine(String mbox) throws ProtocolException {
+	Response[] r = command("EXAMINE", mailboxArgument(mbox));
+	return processSelect(r, true);
+    }
 
+    /**
+     * Process the responses of a SELECT or EXAMINE command.
+     *
+     * @param	r		the responses of the command
+     * @param	readOnly	was the command an EXAMINE?
+     * @return	the information about the selected mailbox
+     * @see	#selectAndUIDSearch
+     */
+    public MailboxInfo processSelect(Response[] r, boolean readOnly)
+				throws ProtocolException {
 	// Note that MailboxInfo also removes those responses 
 	// it knows about
 	MailboxInfo minfo = new MailboxInfo(r);
@@ -645,7 +661,9 @@ public class IMAPProtocol extends Protocol {
 
 	Response response = r[r.length-1];
 
-	if (response.isOK()) { // command succesful 
+	if (readOnly)
+	    minfo.mode = Folder.READ_ONLY; // Obviously
+	else if (response.isOK()) { // command succesful 
 	    if (response.toString().indexOf("READ-ONLY") != -1)
 		minfo.mode = Folder.READ_ONLY;
 	    else
@@ -657,29 +675,58 @@ public class IMAPProtocol extends Protocol {
     }
 
     /**
-     * EXAMINE Command.
+     * SELECT or EXAMINE the given mailbox, and issue the given search
+     * criterion on all its messages using the UID SEARCH command,
+     * pipelining the two commands so that both cost a single round
+     * trip. <p>
      *
-     * @see "RFC2060, section 6.3.2"
+     * The responses are returned unprocessed, so that the caller can
+     * get ready for the untagged responses of the mailbox once it has
+     * been selected: the responses of the SELECT or EXAMINE are passed
+     * to <code>processSelect</code>, and then those of the UID SEARCH
+     * to <code>processUIDSearch</code>.  If the mailbox cannot be
+     * selected, the UID SEARCH fails too. <p>
+     *
+     * Only search criteria in US-ASCII are pipelined; others need
+     * <code>uidSearch</code>, which tries the search charsets in turn.
+     *
+     * @param	mbox		the mailbox
+     * @param	readOnly	EXAMINE rather than SELECT the mailbox?
+     * @param	term		SearchTerm
+     * @return	the responses of the SELECT or EXAMINE,
+     *		and of the UID SEARCH
+     * @exception	SearchException	if the search criterion is not in
+     *			US-ASCII, or is too complex for IMAP
+     */
+    public Response[][] selectAndUIDSearch(String mbox, boolean readOnly,
+				SearchTerm term) throws SearchException {
+	if (!SearchSequence.isAscii(term))
+	    throw new SearchException("Search term is not US-ASCII");
+
+	Argument[] args = new Argument[2];
+	args[0] = mailboxArgument(mbox);
+	try {
+	    args[1] = SearchSequence.generateSequence(term, null);
+	} catch (IOException ioex) {
+	    /* will not happen */
+	    throw new SearchException(ioex.toString());
+	}
+	args[1].writeAtom("ALL");
+
+	String[] commands = { readOnly ? "EXAMINE" : "SELECT", "UID SEARCH" };
+	return pipeline(commands, args);
+    }
+
+    /**
+     * Return the argument of a command that takes a mailbox name.
      */
-    public MailboxInfo examine(String mbox) throws ProtocolException {
+    private Argument mailboxArgument(String mbox) {
 	// encode the mbox as per RFC2060
 	mbox = BASE64MailboxEncoder.encode(mbox);
 
 	Argument args = new Argument();	
 	args.writeString(mbox);
-
-	Response[] r = command("EXAMINE", args);
-
-	// Note that MailboxInfo also removes those responses
-	// it knows about
-	MailboxInfo minfo = new MailboxInfo(r);
-	minfo.mode = Folder.READ_ONLY; // Obviously
-
-	// dispatch any remaining untagged responses
-	notifyResponseHandlers(r);
-
-	handleResult(r[r.length-1]);
-	return minfo;
+	return args;
     }
 
     /**
@@ -725,6 +772,7 @@ public class IMAPProtocol extends Protocol {
 			status = new Status(ir);
 		    else // collect 'em all
 			Status.add(status, new Status(ir));
+		    releaseResponse(ir);
 		    r[i] = null;
 		}
 	    }
@@ -733,6 +781,7 @@ public class IMAPProtocol extends Protocol {
 	// dispatch remaining untagged responses
 	notifyResponseHandlers(r);
 	handleResult(response);
+	releaseResponses(r);
 	return status;
     }
 
@@ -1120,7 +1169,7 @@ public class IMAPProtocol extends Protocol {
     protected ByteArray getResponseBuffer() {
 	ByteArray ret = ba;
 	ba = null;
-	return ret;
+	return ret != null ? ret : super.getResponseBuffer();
     }
 
     /**
@@ -1165,6 +1214,7 @@ public class IMAPProtocol extends Protocol {
 	    
 	    FetchResponse fr = (FetchResponse)r[i];
 	    if ((flags = (Flags)fr.getItem(Flags.class)) != null) {
+		releaseResponse(fr);
 		r[i] = null; // remove this response
 		break;
 	    }
@@ -1173,6 +1223,7 @@ public class IMAPProtocol extends Protocol {
 	// dispatch untagged responses
 	notifyResponseHandlers(r);
 	handleResult(r[r.length-1]);
+	releaseResponses(r);
 	return flags;
     }
 
@@ -1186,9 +1237,11 @@ public class IMAPProtocol extends Protocol {
 	notifyResponseHandlers(r);
 
 	Response response = r[r.length-1]; 
-	if (response.isOK())
-	    return (UID)FetchResponse.getItem(r, msgno, UID.class);
-	else if (response.isNO()) // XXX: Issue NOOP ?
+	if (response.isOK()) {
+	    UID u = (UID)FetchResponse.getItem(r, msgno, UID.class);
+	    releaseResponses(r);
+	    return u;
+	} else if (response.isNO()) // XXX: Issue NOOP ?
 	    return null;
 	else {
 	    handleResult(response);
@@ -1220,6 +1273,7 @@ public class IMAPProtocol extends Protocol {
 		
 	notifyResponseHandlers(r);
 	handleResult(r[r.length-1]);
+	releaseResponses(r);
 	return u;
     }
 
@@ -1248,6 +1302,7 @@ public class IMAPProtocol extends Protocol {
 		
 	notifyResponseHandlers(r);
 	handleResult(r[r.length-1]);
+	releaseResponses(r);
 
 	UID[] ua = new UID[v.size()];
 	v.copyInto(ua);
@@ -1282,6 +1337,7 @@ public class IMAPProtocol extends Protocol {
 		
 	notifyResponseHandlers(r);
 	handleResult(r[r.length-1]);
+	releaseResponses(r);
 
 	UID[] ua = new UID[v.size()];
 	v.copyInto(ua);
@@ -1533,6 +1589,7 @@ public class IMAPProtocol extends Protocol {
 		if (ir.keyEquals("SEARCH")) {
 		    while ((num = ir.readNumber()) != -1)
 			v.addElement(new Integer(num));
+		    releaseResponse(ir);
 		    r[i] = null;
 		}
 	    }
@@ -1547,6 +1604,125 @@ public class IMAPProtocol extends Protocol {
 	// dispatch remaining untagged responses
 	notifyResponseHandlers(r);
 	handleResult(response);
+	releaseResponses(r);
+	return matches;
+    }
+
+    /**
+     * Issue the given search criterion on all messages in this folder,
+     * using the UID SEARCH command.
+     * Returns array of matching UIDs. An empty array
+     * is returned if no matches are found. <p>
+     *
+     * Unlike <code>search</code>, this costs a single round trip no
+     * matter how many messages match, since the UIDs are returned
+     * directly instead of sequence numbers that have to be mapped
+     * to UIDs by a subsequent FETCH.
+     *
+     * @param	term	SearchTerm
+     * @return	array of matching UIDs.
+     */
+    public long[] uidSearch(SearchTerm term)
+			throws ProtocolException, SearchException {
+	// Check if the search "text" terms contain only ASCII chars
+	if (SearchSequence.isAscii(term)) {
+	    try {
+		return issueUIDSearch("ALL", term, null);
+	    } catch (IOException ioex) { /* will not happen */ }
+	}
+
+	// Cycle thru the list of charsets, as in search()
+	for (int i = 0; i < searchCharsets.length; i++) {
+	    if (searchCharsets[i] == null)
+		continue;
+
+	    try {
+		return issueUIDSearch("ALL", term, searchCharsets[i]);
+	    } catch (CommandFailedException cfx) {
+		searchCharsets[i] = null;
+		continue;
+	    } catch (IOException ioex) {
+		/* Charset conversion failed. Try the next one */
+		continue;
+	    }
+	}
+
+	// No luck.
+	throw new SearchException("Search failed");
+    }
+
+    /* Apply the given SearchTerm on the specified sequence, using the
+     * given charset, and the UID SEARCH command. <p>
+     * Returns array of matching UIDs. Note that an empty
+     * array is returned for no matches.
+     */
+    private long[] issueUIDSearch(String msgSequence, SearchTerm term,
+				  String charset)
+	     throws ProtocolException, SearchException, IOException {
+
+	// Generate a search-sequence with the given charset
+	Argument args = SearchSequence.generateSequence(term,
+			  charset == null ? null :
+					    MimeUtility.javaCharset(charset)
+			);
+	args.writeAtom(msgSequence);
+
+	Response[] r;
+
+	if (charset == null) // text is all US-ASCII
+	    r = command("UID SEARCH", args);
+	else
+	    r = command("UID SEARCH CHARSET " + charset, args);
+
+	return processUIDSearch(r);
+    }
+
+    /**
+     * Process the responses of a UID SEARCH command.
+     * Returns array of matching UIDs. Note that an empty
+     * array is returned for no matches.
+     *
+     * @param	r	the responses of the command
+     * @return	array of matching UIDs
+     * @see	#selectAndUIDSearch
+     */
+    public long[] processUIDSearch(Response[] r) throws ProtocolException {
+	Response response = r[r.length-1];
+	long[] matches = null;
+
+	// Grab all SEARCH responses
+	if (response.isOK()) { // command succesful
+	    long[] uids = new long[16];
+	    int count = 0;
+	    long uid;
+	    for (int i = 0, len = r.length; i < len; i++) {
+		if (!(r[i] instanceof IMAPResponse))
+		    continue;
+
+		IMAPResponse ir = (IMAPResponse)r[i];
+		// There *will* be one SEARCH response.
+		if (ir.keyEquals("SEARCH")) {
+		    while ((uid = ir.readLong()) != -1) {
+			if (count == uids.length) {
+			    long[] nuids = new long[count * 2];
+			    System.arraycopy(uids, 0, nuids, 0, count);
+			    uids = nuids;
+			}
+			uids[count++] = uid;
+		    }
+		    releaseResponse(ir);
+		    r[i] = null;
+		}
+	    }
+
+	    matches = new long[count];
+	    System.arraycopy(uids, 0, matches, 0, count);
+	}
+
+	// dispatch remaining untagged responses
+	notifyResponseHandlers(r);
+	handleResult(response);
+	releaseResponses(r);
 	return matches;
     }
 
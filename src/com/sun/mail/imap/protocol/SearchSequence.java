@@ -46,6 +46,7 @@ import java.io.IOException;
 import javax.mail.*;
 import javax.mail.search.*;
 import com.sun.mail.iap.*;
+import com.sun.mail.imap.GmailRawTerm;
 
 /**
  * This class traverses a search-tree and generates the 
@@ -105,6 +106,8 @@ class SearchSequence {
 	    return receiveddate((ReceivedDateTerm)term);
 	else if (term instanceof MessageIDTerm) // MessageID
 	    return messageid((MessageIDTerm)term, charset);
+	else if (term instanceof GmailRawTerm)	// X-GM-RAW
+	    return gmailraw((GmailRawTerm)term, charset);
 	else
 	    throw new SearchException("Search too complex");
     }
@@ -130,6 +133,8 @@ class SearchSequence {
 	    return isAscii(((StringTerm)term).getPattern());
 	else if (term instanceof AddressTerm)
 	    return isAscii(((AddressTerm)term).getAddress().toString());
+	else if (term instanceof GmailRawTerm)
+	    return isAscii(((GmailRawTerm)term).getPattern());
 	
 	// Any other term returns true.
 	return true;
@@ -245,6 +250,14 @@ class SearchSequence {
 	return result;
     }
 
+    private static Argument gmailraw(GmailRawTerm term, String charset) 
+			throws SearchException, IOException {
+	Argument result = new Argument();
+	result.writeAtom("X-GM-RAW");
+	result.writeString(term.getPattern(), charset);
+	return result;
+    }
+
     private static Argument flag(FlagTerm term) throws SearchException {
 	boolean set = term.getTestSet();
 
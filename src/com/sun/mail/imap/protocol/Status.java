@@ -56,6 +56,7 @@ public class Status {
     public long uidnext = -1;
     public long uidvalidity = -1;
     public int unseen = -1;
+    public long highestmodseq = -1;	// RFC 4551 (CONDSTORE)
 
     static final String[] standardItems =
 	{ "MESSAGES", "RECENT", "UNSEEN", "UIDNEXT", "UIDVALIDITY" };
@@ -78,6 +79,8 @@ public class Status {
 		uidvalidity = r.readLong();
 	    else if (attr.equalsIgnoreCase("UNSEEN"))
 		unseen = r.readNumber();
+	    else if (attr.equalsIgnoreCase("HIGHESTMODSEQ"))
+		highestmodseq = r.readLong();
 	} while (r.readByte() != ')');
     }
 
@@ -92,5 +95,7 @@ public class Status {
 	    s1.uidvalidity = s2.uidvalidity;
 	if (s2.unseen != -1)
 	    s1.unseen = s2.unseen;
+	if (s2.highestmodseq != -1)
+	    s1.highestmodseq = s2.highestmodseq;
     }
 }
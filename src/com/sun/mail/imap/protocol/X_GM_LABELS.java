@@ -0,0 +1,84 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 1997-2007 Sun Microsystems, Inc. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License. You can obtain
+ * a copy of the License at https://glassfish.dev.java.net/public/CDDL+GPL.html
+ * or glassfish/bootstrap/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at glassfish/bootstrap/legal/LICENSE.txt.
+ * Sun designates this particular file as subject to the "Classpath" exception
+ * as provided by Sun in the GPL Version 2 section of the License file that
+ * accompanied this code.  If applicable, add the following below the License
+ * Header, with the fields enclosed by brackets [] replaced by your own
+ * identifying information: "Portions Copyrighted [year]
+ * [name of copyright owner]"
+ *
+ * Contributor(s):
+ *
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package com.sun.mail.imap.protocol;
+
+import java.util.Vector;
+import com.sun.mail.iap.*; 
+
+/**
+ * This class represents the X-GM-LABELS data item of the Gmail
+ * IMAP extensions (X-GM-EXT-1): the labels of a message, e.g.,
+ * "\Inbox", "\Important", or a user label.
+ */
+
+public class X_GM_LABELS implements Item {
+    
+    static final char[] name = {'X','-','G','M','-','L','A','B','E','L','S'};
+    public int seqnum;
+
+    public String[] labels;
+
+    /**
+     * Constructor
+     */
+    public X_GM_LABELS(FetchResponse r) throws ParsingException {
+	seqnum = r.getNumber();
+	r.skipSpaces();
+
+	if (r.readByte() != '(')
+	    throw new ParsingException(
+		"error in X-GM-LABELS parsing, missing '('");
+
+	Vector v = new Vector();
+	r.skipSpaces();
+	while (r.peekByte() != ')') {
+	    String s;
+	    if (r.peekByte() == '\\') {
+		// system label, e.g., \Inbox; not an atom
+		r.readByte();
+		s = "\\" + r.readAtom();
+	    } else
+		s = BASE64MailboxDecoder.decode(r.readAtomString());
+	    v.addElement(s);
+	    r.skipSpaces();
+	}
+	r.readByte(); // skip ')'
+
+	labels = new String[v.size()];
+	v.copyInto(labels);
+    }
+}
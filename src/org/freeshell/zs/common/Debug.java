@@ -230,9 +230,6 @@ public final class Debug
 	 */
 	public static class ValueCapsule<T>
 	{
-		/** refresh interval in milliseconds */
-		private static final long REFRESH_INTERVAL_MILLISECONDS = 50L;
-
 		/** capsule value to be passed */
 		private T value;
 
@@ -278,6 +275,7 @@ public final class Debug
 			{
 				this.value = value;
 				setCalled = true;
+				valueLock.notifyAll();
 			}
 		}
 
@@ -291,17 +289,21 @@ public final class Debug
 		 */
 		public T get()
 		{
-			while (true)
+			synchronized (valueLock)
 			{
-				synchronized (valueLock)
+				while (!setCalled)
 				{
-					if (setCalled)
+					try
+					{
+						valueLock.wait();
+					}
+					catch (InterruptedException e)
 					{
-						return value;
+						/* ignore */
 					}
 				}
 
-				Debug.sleep(REFRESH_INTERVAL_MILLISECONDS);
+				return value;
 			}
 		}
 	}
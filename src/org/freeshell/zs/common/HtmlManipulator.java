@@ -21,6 +21,8 @@
 
 package org.freeshell.zs.common;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -85,8 +87,17 @@ public final class HtmlManipulator
 	/** value given by RAW_HTML_ENTITY_TABLE.hashCode(), used to guard against accidental modification */
 	private static final int RAW_HTML_ENTITY_TABLE_HASHCODE = -301953893;
 
-	/** mapping: HTML entity ---> Unicode character */
-	private static final Map<String,Character> HTML_ENTITY_TO_UNICODE_MAP = new HashMap<String,Character>();
+	/** maximum length of an HTML entity, without the surrounding "&" and ";", e.g. "thetasym" or "#x10FFFF" */
+	private static final int MAX_ENTITY_LENGTH = 8;
+
+	/** number of slots in the HTML entity hash table; a power of two, at least twice the number of entities */
+	private static final int ENTITY_TABLE_SIZE = 512;
+
+	/** HTML entity hash table (open addressing, linear probing): entity names, e.g. "nbsp" */
+	private static final char[][] ENTITY_TABLE_NAMES = new char[ENTITY_TABLE_SIZE][];
+
+	/** HTML entity hash table (open addressing, linear probing): Unicode characters */
+	private static final char[] ENTITY_TABLE_VALUES = new char[ENTITY_TABLE_SIZE];
 
 	/** mapping: Unicode character ---> HTML entity */
 	private static final Map<Character,String> UNICODE_TO_HTML_ENTITY_MAP = new HashMap<Character,String>();
@@ -94,7 +105,7 @@ public final class HtmlManipulator
 
 	/**
 	 * Static initialization block.
-	 * Populates HTML_ENTITY_TO_UNICODE_MAP and UNICODE_TO_HTML_ENTITY_MAP.
+	 * Populates the HTML entity hash table and UNICODE_TO_HTML_ENTITY_MAP.
 	 */
 	static
 	{
@@ -104,15 +115,29 @@ public final class HtmlManipulator
 			throw new RuntimeException("(INTERNAL) Malformed HtmlManipulator.RAW_HTML_ENTITY_TABLE.");
 		}
 
-		/* populate HTML entity <---> Unicode character maps */
+		/* populate HTML entity <---> Unicode character tables */
+		/* (numeric entities, e.g. "#160", are decoded directly) */
 		final String[] elements = RAW_HTML_ENTITY_TABLE.split("[\\s]++");
 
+		if (elements.length / 3 * 2 > ENTITY_TABLE_SIZE)
+		{
+			throw new RuntimeException("(INTERNAL) HtmlManipulator.ENTITY_TABLE_SIZE is too small.");
+		}
+
 		for (int i = 0; i < elements.length; i += 3)
 		{
 			final char unicode = (char) Integer.parseInt(elements[i + 2], 16);
-			HTML_ENTITY_TO_UNICODE_MAP.put(elements[i], unicode);
-			HTML_ENTITY_TO_UNICODE_MAP.put(elements[i + 1], unicode);
-			UNICODE_TO_HTML_ENTITY_MAP.put(unicode, elements[i]);
+			final String name = elements[i];
+			int k = hashEntity(name, 0, name.length());
+
+			while (ENTITY_TABLE_NAMES[k] != null)
+			{
+				k = (k + 1) & (ENTITY_TABLE_SIZE - 1);
+			}
+
+			ENTITY_TABLE_NAMES[k] = name.toCharArray();
+			ENTITY_TABLE_VALUES[k] = unicode;
+			UNICODE_TO_HTML_ENTITY_MAP.put(unicode, name);
 		}
 	}
 
@@ -135,27 +160,60 @@ public final class HtmlManipulator
 	public static String replaceHtmlEntities(
 				final String s)
 	{
-		final StringBuilder t = new StringBuilder();
+		final StringBuilder t = new StringBuilder(s.length());
+		replaceHtmlEntities(s, t);
+		return t.toString();
+	}
 
+
+	/**
+	 * Replace HTML entities in a given character sequence with their Unicode character
+	 * representations, and append the result to the specified StringBuilder.
+	 * Both named entities (e.g. "&amp;nbsp;") and numeric entities (e.g. "&amp;#160;" or
+	 * "&amp;#xA0;") are replaced; unknown or malformed entities are left as they are.
+	 * No objects are allocated per entity, and the lookahead from each "&amp;" is bounded
+	 * by the length of the longest entity, so the running time is linear in the input length.
+	 *
+	 * @param s
+	 *     input character sequence
+	 * @param t
+	 *     StringBuilder to which the result is appended
+	 */
+	public static void replaceHtmlEntities(
+				final CharSequence s,
+				final StringBuilder t)
+	{
+		NextChar:
 		for (int i = 0, n = s.length(); i < n; i++)
 		{
 			final char c = s.charAt(i);
 
 			if (c == '&')
 			{
-				/* candidate HTML entity */
-				final int j = s.indexOf(';', i);
+				/* candidate HTML entity; look for the terminating semicolon nearby */
+				final int limit = Math.min(n, i + MAX_ENTITY_LENGTH + 2);
 
-				if (j >= 0)
+				for (int j = i + 1; j < limit; j++)
 				{
-					final Character unicode = HTML_ENTITY_TO_UNICODE_MAP.get(s.substring(i + 1, j));
+					final char d = s.charAt(j);
 
-					if (unicode != null)
+					if (d == ';')
 					{
-						/* insert Unicode representation */
-						t.append((char) unicode);
-						i = j; /* advance index */
-						continue;
+						final int unicode = decodeHtmlEntity(s, i + 1, j);
+
+						if (unicode >= 0)
+						{
+							/* insert Unicode representation */
+							t.appendCodePoint(unicode);
+							i = j; /* advance index */
+							continue NextChar;
+						}
+
+						break;
+					}
+					else if (!Character.isLetterOrDigit(d) && (d != '#'))
+					{
+						break;
 					}
 				}
 			}
@@ -163,8 +221,129 @@ public final class HtmlManipulator
 			/* treat as a literal character */
 			t.append(c);
 		}
+	}
 
-		return t.toString();
+
+	/**
+	 * Decode a single HTML entity, given without the surrounding "&amp;" and ";",
+	 * e.g. "nbsp", "#160", or "#xA0".
+	 *
+	 * @param s
+	 *     character sequence containing the HTML entity
+	 * @param start
+	 *     index of the first character of the HTML entity
+	 * @param end
+	 *     index after the last character of the HTML entity
+	 * @return
+	 *     Unicode code point of the HTML entity; -1 if it is unknown or malformed
+	 */
+	public static int decodeHtmlEntity(
+				final CharSequence s,
+				final int start,
+				final int end)
+	{
+		final int length = end - start;
+
+		if ((length <= 0) || (length > MAX_ENTITY_LENGTH))
+		{
+			return -1;
+		}
+
+		if (s.charAt(start) == '#')
+		{
+			/* numeric entity */
+			int i = start + 1;
+			int radix = 10;
+
+			if ((i < end) && ((s.charAt(i) == 'x') || (s.charAt(i) == 'X')))
+			{
+				radix = 16;
+				i++;
+			}
+
+			if (i == end)
+			{
+				return -1;
+			}
+
+			int unicode = 0;
+
+			for (; i < end; i++)
+			{
+				final int digit = Character.digit(s.charAt(i), radix);
+
+				if (digit < 0)
+				{
+					return -1;
+				}
+
+				unicode = unicode * radix + digit;
+			}
+
+			if ((unicode == 0) ||
+					(unicode > Character.MAX_CODE_POINT) ||
+					((unicode >= Character.MIN_SURROGATE) && (unicode <= Character.MAX_SURROGATE)))
+			{
+				return -1;
+			}
+
+			return unicode;
+		}
+
+		/* named entity */
+		for (int k = hashEntity(s, start, end);
+				ENTITY_TABLE_NAMES[k] != null;
+				k = (k + 1) & (ENTITY_TABLE_SIZE - 1))
+		{
+			final char[] name = ENTITY_TABLE_NAMES[k];
+
+			if (name.length == length)
+			{
+				int i = 0;
+
+				while ((i < length) && (name[i] == s.charAt(start + i)))
+				{
+					i++;
+				}
+
+				if (i == length)
+				{
+					return ENTITY_TABLE_VALUES[k];
+				}
+			}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Compute the slot of an HTML entity name in the HTML entity hash table.
+	 *
+	 * @param s
+	 *     character sequence containing the HTML entity name
+	 * @param start
+	 *     index of the first character of the HTML entity name
+	 * @param end
+	 *     index after the last character of the HTML entity name
+	 * @return
+	 *     slot in the HTML entity hash table
+	 */
+	private static int hashEntity(
+				final CharSequence s,
+				final int start,
+				final int end)
+	{
+		int h = 0;
+
+		for (int i = start; i < end; i++)
+		{
+			h = 31 * h + s.charAt(i);
+		}
+
+		h ^= (h >>> 16);
+		h ^= (h >>> 7);
+		return h & (ENTITY_TABLE_SIZE - 1);
 	}
 
 
@@ -200,4 +379,572 @@ public final class HtmlManipulator
 
 		return t.toString();
 	}
+
+
+	/**
+	 * Extract the visible text of a given HTML string, in a single pass.
+	 * See {@link TextExtractor} for details.
+	 *
+	 * @param html
+	 *     input HTML
+	 * @param maxLength
+	 *     maximum number of characters of text to be extracted
+	 * @return
+	 *     visible text, with whitespace collapsed
+	 */
+	public static String htmlToText(
+				final CharSequence html,
+				final int maxLength)
+	{
+		final TextExtractor extractor = new TextExtractor(maxLength);
+		extractor.appendHtml(html);
+		return extractor.getText();
+	}
+
+	/******************
+	 * NESTED CLASSES *
+	 ******************/
+
+	/**
+	 * Extract visible text from HTML and plain text, in a single pass over the input.
+	 * Tags, comments, and the contents of the head, script, and style elements are skipped;
+	 * HTML entities are decoded; consecutive whitespace is collapsed into a single space,
+	 * and leading and trailing whitespace is dropped.
+	 * Extraction stops as soon as the maximum number of characters of text has been
+	 * produced, so that the cost is proportional to the length of the text extracted,
+	 * rather than the length of the input.
+	 * This class is not thread-safe.
+	 */
+	public static final class TextExtractor
+	{
+		/** maximum length of a tag name that is remembered */
+		private static final int MAX_TAG_NAME_LENGTH = 10;
+
+		/** size of the buffer used to read from a Reader */
+		private static final int READ_BUFFER_SIZE = 512;
+
+		/** elements whose contents are not visible */
+		private static final String[] INVISIBLE_ELEMENTS =
+		{
+			"head", "script", "style", "title"
+		};
+
+		/** elements that separate words, e.g. block-level elements */
+		private static final String[] SEPARATING_ELEMENTS =
+		{
+			"br", "p", "div", "tr", "td", "th", "li", "dt", "dd", "hr",
+			"h1", "h2", "h3", "h4", "h5", "h6", "table", "blockquote", "pre"
+		};
+
+		/** maximum number of characters of text to be extracted */
+		private final int maxLength;
+
+		/** text extracted so far */
+		private final StringBuilder text = new StringBuilder();
+
+		/** name of the current tag, in lowercase */
+		private final StringBuilder tagName = new StringBuilder();
+
+		/** name of the current HTML entity */
+		private final StringBuilder entity = new StringBuilder();
+
+		/** current lexical state */
+		private State state = State.TEXT;
+
+		/** is the current tag a closing tag? */
+		private boolean closingTag = false;
+
+		/** quote character of the current attribute value */
+		private char quote = '\0';
+
+		/** number of consecutive dashes seen within the current comment */
+		private int dashes = 0;
+
+		/** invisible element whose contents are being skipped; null if none */
+		private String invisibleElement = null;
+
+		/** is a space pending before the next visible character? */
+		private boolean pendingSpace = false;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param maxLength
+		 *     maximum number of characters of text to be extracted
+		 */
+		public TextExtractor(
+				final int maxLength)
+		{
+			this.maxLength = maxLength;
+		}
+
+
+		/**
+		 * Append the visible text of the specified HTML.
+		 *
+		 * @param html
+		 *     HTML
+		 * @return
+		 *     true if the maximum number of characters of text has been extracted
+		 */
+		public boolean appendHtml(
+				final CharSequence html)
+		{
+			startPart();
+
+			for (int i = 0, n = html.length(); (i < n) && !isFull(); i++)
+			{
+				put(html.charAt(i), true);
+			}
+
+			return isFull();
+		}
+
+
+		/**
+		 * Append the visible text of the HTML read from the specified Reader.
+		 * Reading stops as soon as the maximum number of characters of text has been extracted.
+		 *
+		 * @param r
+		 *     Reader of the HTML
+		 * @return
+		 *     true if the maximum number of characters of text has been extracted
+		 * @throws java.io.IOException
+		 *     if thrown by the Reader; the text extracted so far is kept
+		 */
+		public boolean appendHtml(
+				final Reader r)
+				throws IOException
+		{
+			return append(r, true);
+		}
+
+
+		/**
+		 * Append the specified plain text.
+		 *
+		 * @param s
+		 *     plain text
+		 * @return
+		 *     true if the maximum number of characters of text has been extracted
+		 */
+		public boolean appendText(
+				final CharSequence s)
+		{
+			startPart();
+
+			for (int i = 0, n = s.length(); (i < n) && !isFull(); i++)
+			{
+				put(s.charAt(i), false);
+			}
+
+			return isFull();
+		}
+
+
+		/**
+		 * Append the plain text read from the specified Reader.
+		 * Reading stops as soon as the maximum number of characters of text has been extracted.
+		 *
+		 * @param r
+		 *     Reader of the plain text
+		 * @return
+		 *     true if the maximum number of characters of text has been extracted
+		 * @throws java.io.IOException
+		 *     if thrown by the Reader; the text extracted so far is kept
+		 */
+		public boolean appendText(
+				final Reader r)
+				throws IOException
+		{
+			return append(r, false);
+		}
+
+
+		/**
+		 * Has the maximum number of characters of text been extracted?
+		 *
+		 * @return
+		 *     true if the maximum number of characters of text has been extracted
+		 */
+		public boolean isFull()
+		{
+			return (text.length() >= maxLength);
+		}
+
+
+		/**
+		 * Get the text extracted so far.
+		 *
+		 * @return
+		 *     text extracted so far, at most the maximum number of characters long
+		 */
+		public String getText()
+		{
+			flushEntity();
+			return text.toString();
+		}
+
+
+		/**
+		 * Append the text read from the specified Reader.
+		 *
+		 * @param r
+		 *     Reader
+		 * @param html
+		 *     is the text HTML?
+		 * @return
+		 *     true if the maximum number of characters of text has been extracted
+		 * @throws java.io.IOException
+		 *     if thrown by the Reader
+		 */
+		private boolean append(
+				final Reader r,
+				final boolean html)
+				throws IOException
+		{
+			startPart();
+
+			final char[] buffer = new char[READ_BUFFER_SIZE];
+			int n;
+
+			while (!isFull() && ((n = r.read(buffer)) >= 0))
+			{
+				for (int i = 0; (i < n) && !isFull(); i++)
+				{
+					put(buffer[i], html);
+				}
+			}
+
+			return isFull();
+		}
+
+
+		/**
+		 * Start a new part of the input; parts are separated by whitespace,
+		 * and do not share any unfinished tag or HTML entity.
+		 */
+		private void startPart()
+		{
+			flushEntity();
+			state = State.TEXT;
+			invisibleElement = null;
+			pendingSpace = true;
+		}
+
+
+		/**
+		 * Process a single character of the input.
+		 *
+		 * @param c
+		 *     character
+		 * @param html
+		 *     is the input HTML?
+		 */
+		private void put(
+				final char c,
+				final boolean html)
+		{
+			switch (state)
+			{
+				case TEXT:
+					if (html && (c == '<'))
+					{
+						state = State.TAG_NAME;
+						tagName.setLength(0);
+						closingTag = false;
+					}
+					else if (html && (c == '&'))
+					{
+						state = State.ENTITY;
+						entity.setLength(0);
+					}
+					else
+					{
+						emit(c);
+					}
+					break;
+
+				case TAG_NAME:
+					if ((c == '/') && (tagName.length() == 0) && !closingTag)
+					{
+						closingTag = true;
+					}
+					else if (Character.isLetter(c) ||
+							(Character.isDigit(c) && (tagName.length() > 0)) ||
+							(((c == '!') || (c == '-')) && !closingTag))
+					{
+						if (tagName.length() < MAX_TAG_NAME_LENGTH)
+						{
+							tagName.append(Character.toLowerCase(c));
+						}
+
+						if (nameEquals(tagName, "!--"))
+						{
+							state = State.COMMENT;
+							dashes = 0;
+						}
+					}
+					else if (c == '>')
+					{
+						endTag();
+					}
+					else if ((tagName.length() == 0) && !closingTag)
+					{
+						/* not a tag, e.g. "a < b" */
+						state = State.TEXT;
+						emit('<');
+						put(c, html);
+					}
+					else
+					{
+						state = State.TAG;
+						put(c, html);
+					}
+					break;
+
+				case TAG:
+					if ((c == '"') || (c == '\''))
+					{
+						state = State.TAG_QUOTE;
+						quote = c;
+					}
+					else if (c == '>')
+					{
+						endTag();
+					}
+					break;
+
+				case TAG_QUOTE:
+					if (c == quote)
+					{
+						state = State.TAG;
+					}
+					break;
+
+				case COMMENT:
+					if (c == '-')
+					{
+						dashes++;
+					}
+					else
+					{
+						if ((c == '>') && (dashes >= 2))
+						{
+							state = State.TEXT;
+						}
+
+						dashes = 0;
+					}
+					break;
+
+				case ENTITY:
+					if (c == ';')
+					{
+						state = State.TEXT;
+						decodeEntity();
+					}
+					else if ((Character.isLetterOrDigit(c) || ((c == '#') && (entity.length() == 0))) &&
+							(entity.length() < MAX_ENTITY_LENGTH))
+					{
+						entity.append(c);
+					}
+					else
+					{
+						/* not an HTML entity, e.g. "a & b" */
+						flushEntity();
+						put(c, html);
+					}
+					break;
+			}
+		}
+
+
+		/**
+		 * Process the end of the current tag.
+		 */
+		private void endTag()
+		{
+			state = State.TEXT;
+
+			if (invisibleElement != null)
+			{
+				/* skip everything until the end of the invisible element */
+				if (closingTag && nameEquals(tagName, invisibleElement))
+				{
+					invisibleElement = null;
+				}
+
+				return;
+			}
+
+			if (!closingTag)
+			{
+				for (String s : INVISIBLE_ELEMENTS)
+				{
+					if (nameEquals(tagName, s))
+					{
+						invisibleElement = s;
+						return;
+					}
+				}
+			}
+
+			for (String s : SEPARATING_ELEMENTS)
+			{
+				if (nameEquals(tagName, s))
+				{
+					pendingSpace = true;
+					return;
+				}
+			}
+		}
+
+
+		/**
+		 * Decode the current HTML entity, and emit its Unicode character.
+		 * Unknown entities are emitted literally.
+		 */
+		private void decodeEntity()
+		{
+			final int unicode = decodeHtmlEntity(entity, 0, entity.length());
+
+			if (unicode < 0)
+			{
+				emitLiteralEntity();
+				emit(';');
+			}
+			else if (Character.isSupplementaryCodePoint(unicode))
+			{
+				final int offset = unicode - Character.MIN_SUPPLEMENTARY_CODE_POINT;
+				emit((char) (Character.MIN_HIGH_SURROGATE + (offset >>> 10)));
+				emit((char) (Character.MIN_LOW_SURROGATE + (offset & 0x3FF)));
+			}
+			else
+			{
+				emit((char) unicode);
+			}
+		}
+
+
+		/**
+		 * Emit an unfinished HTML entity literally, if any.
+		 */
+		private void flushEntity()
+		{
+			if (state == State.ENTITY)
+			{
+				state = State.TEXT;
+				emitLiteralEntity();
+			}
+		}
+
+
+		/**
+		 * Emit the current HTML entity literally, without the terminating semicolon.
+		 */
+		private void emitLiteralEntity()
+		{
+			emit('&');
+
+			for (int i = 0; i < entity.length(); i++)
+			{
+				emit(entity.charAt(i));
+			}
+		}
+
+
+		/**
+		 * Emit a single character of text, collapsing consecutive whitespace.
+		 *
+		 * @param c
+		 *     character
+		 */
+		private void emit(
+				final char c)
+		{
+			if ((invisibleElement != null) || isFull())
+			{
+				return;
+			}
+
+			if (Character.isWhitespace(c) || (c == '\u00A0'))
+			{
+				pendingSpace = true;
+				return;
+			}
+
+			if (pendingSpace && (text.length() > 0))
+			{
+				text.append(' ');
+
+				if (isFull())
+				{
+					return;
+				}
+			}
+
+			pendingSpace = false;
+			text.append(c);
+		}
+
+
+		/**
+		 * Is the content of the specified StringBuilder equal to the specified string?
+		 *
+		 * @param sb
+		 *     StringBuilder
+		 * @param s
+		 *     string
+		 * @return
+		 *     true if the contents are equal
+		 */
+		private static boolean nameEquals(
+				final StringBuilder sb,
+				final String s)
+		{
+			final int n = s.length();
+
+			if (sb.length() != n)
+			{
+				return false;
+			}
+
+			for (int i = 0; i < n; i++)
+			{
+				if (sb.charAt(i) != s.charAt(i))
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+
+		/**
+		 * Lexical states.
+		 */
+		private static enum State
+		{
+			/** visible text */
+			TEXT,
+
+			/** name of a tag, immediately after "<" or "</" */
+			TAG_NAME,
+
+			/** remainder of a tag, after its name */
+			TAG,
+
+			/** quoted attribute value within a tag */
+			TAG_QUOTE,
+
+			/** comment, after "<!--" */
+			COMMENT,
+
+			/** HTML entity, after "&" */
+			ENTITY;
+		}
+	}
 }
@@ -0,0 +1,42 @@
+/**
+ * Logger.java
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://zs.freeshell.org/
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.freeshell.zs.common;
+
+
+/**
+ * Sink for debugging messages, such as a logger console or a stream.
+ * Implementations must be thread-safe.
+ */
+public interface Logger
+{
+	/**
+	 * Log the specified message.
+	 * This method can be called on any thread.
+	 *
+	 * @param format
+	 *     format string
+	 * @param args
+	 *     arguments referenced by the format specifiers in the format string
+	 */
+	void log(
+			final String format,
+			final Object... args);
+}
@@ -26,6 +26,11 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
@@ -44,6 +49,7 @@ import javax.swing.SwingUtilities;
  */
 public class LoggerConsole
 		extends JFrame
+		implements Logger
 {
 	/** time format string (yyyy-MM-dd HH:mm:ss.SSS) */
 	private static final String TIME_FORMAT_STRING = "%1$tF %1$tT.%1$tL";
@@ -63,6 +69,9 @@ public class LoggerConsole
 	/** is the logger currently on? */
 	private volatile boolean isLoggerOn = true;
 
+	/** source of the status shown at the top of the console; null if none */
+	private volatile StatusSource statusSource = null;
+
 
 	/**
 	 * Construct a logger console with the specified title and capacity of 1000.
@@ -226,6 +235,22 @@ public class LoggerConsole
 	}
 
 
+	/**
+	 * Set the source of the status shown at the top of the console,
+	 * such as counts of live threads. The status is obtained afresh
+	 * whenever the console is refreshed.
+	 * This method can be called on any thread.
+	 *
+	 * @param statusSource
+	 *     source of the status; null if none
+	 */
+	public void setStatusSource(
+			final StatusSource statusSource)
+	{
+		this.statusSource = statusSource;
+	}
+
+
 	/**
 	 * Reset the stored messages.
 	 * This method can be called on any thread.
@@ -247,7 +272,7 @@ public class LoggerConsole
 	 */
 	public void refresh()
 	{
-		consoleText.setText("");
+		consoleText.setText(getStatus());
 
 		synchronized (messages)
 		{
@@ -280,6 +305,69 @@ public class LoggerConsole
 	}
 
 
+	/**
+	 * Save the status and the stored messages to the specified file.
+	 * This method can be called on any thread.
+	 *
+	 * @param file
+	 *     file to be written
+	 * @throws java.io.IOException
+	 *     if the file cannot be written
+	 */
+	public void save(
+			final File file)
+			throws IOException
+	{
+		final StringBuilder sb = new StringBuilder(getStatus());
+
+		synchronized (messages)
+		{
+			for (int i = 0; i < capacity; i++)
+			{
+				final String s = messages[(messagesIndex + i) % capacity];
+
+				if (s != null)
+				{
+					sb.append(s);
+				}
+			}
+		}
+
+		final Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+		try
+		{
+			w.write(sb.toString());
+		}
+		finally
+		{
+			w.close();
+		}
+	}
+
+
+	/**
+	 * Get the timestamped status from the status source, followed by a blank line.
+	 *
+	 * @return
+	 *     status; empty if there is no status source
+	 */
+	private String getStatus()
+	{
+		final StatusSource source = statusSource;
+
+		if (source == null)
+		{
+			return "";
+		}
+
+		return String.format(
+				Locale.ENGLISH,
+				"[" + TIME_FORMAT_STRING + "] %2$s\n\n",
+				new Date(), source.getStatus());
+	}
+
+
 	/**
 	 * Show the console.
 	 * This method can be called on any thread.
@@ -316,6 +404,25 @@ public class LoggerConsole
 		});
 	}
 
+	/******************
+	 * NESTED CLASSES *
+	 ******************/
+
+	/**
+	 * Source of the status shown at the top of the console.
+	 */
+	public static interface StatusSource
+	{
+		/**
+		 * Get the current status.
+		 * This method is called on the thread refreshing the console.
+		 *
+		 * @return
+		 *     current status, possibly spanning several lines
+		 */
+		String getStatus();
+	}
+
 	/***************************
 	 * NETBEANS-GENERATED CODE *
 	 ***************************/
@@ -22,9 +22,6 @@
 
 package org.freeshell.zs.gmailassistant;
 
-import com.sun.mail.imap.IMAPFolder;
-import javax.mail.event.MessageCountEvent;
-import org.freeshell.zs.gmailassistant.Account;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Image;
@@ -33,25 +30,9 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.NavigableSet;
-import java.util.NoSuchElementException;
-import java.util.TreeSet;
 import java.util.regex.Pattern;
-import javax.mail.AuthenticationFailedException;
-import javax.mail.Flags;
-import javax.mail.Folder;
-import javax.mail.Message;
-import javax.mail.NoSuchProviderException;
-import javax.mail.Session;
-import javax.mail.Store;
-import javax.mail.event.MessageCountListener;
-import javax.mail.search.FlagTerm;
-import javax.mail.search.SearchTerm;
 import javax.swing.AbstractAction;
 import javax.swing.JCheckBox;
 import javax.swing.JColorChooser;
@@ -62,21 +43,19 @@ import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
 import javax.swing.event.DocumentEvent;
-import org.freeshell.zs.common.Debug;
 import org.freeshell.zs.common.SimpleProperties;
 import org.freeshell.zs.common.SwingManipulator;
 
 
 /**
- * Represent a Gmail or Google Apps email account.
+ * Represent a Gmail or Google Apps email account, as a form for editing its settings.
+ * The mail checks are run by the underlying {@link MailAccount}, whose changes are
+ * shown in the table of accounts and issued as alerts.
  */
 class Account
 		extends JFrame
-		implements Comparable<Account>
+		implements MailAccount.Listener
 {
-	/** timer refresh interval */
-	private static final long REFRESH_INTERVAL_MILLISECONDS = 200L;
-
 	/** parent GmailAssistant object */
 	private final GmailAssistant parent;
 
@@ -113,21 +92,6 @@ class Account
 	/** is the notify selection valid? */
 	private	boolean notifyValid = false;
 
-	/** mail identifier ---> mail mapping for the unread mails for this account */
-	private final Map<MailIdentifier,Mail> mailsMap = new HashMap<MailIdentifier,Mail>();
-
-	/** navigable set view of the unread mails for this account */
-	private final NavigableSet<Mail> mailsNavigableSet = new TreeSet<Mail>();
-
-	/** mutex lock for <code>mailsMap</code> and <code>mailsNavigableSet</code> */
-	private final Object mailsLock = new Object();
-
-	/** last received mail ID */
-	private int lastSequenceNumber = 0;
-
-	/** mutex lock for <code>lastSequenceNumber</code> */
-	final private Object lastSequenceNumberLock = new Object();
-
 	/** account properties */
 	final SimpleProperties properties;
 
@@ -137,26 +101,8 @@ class Account
 	/** HTML string representing the currently displayed color */
 	private String colorHtml;
 
-	/** current mail store for this email account */
-	private volatile Store currentMailStore;
-
-	/** check mail now? */
-	private volatile boolean checkMailNow = false;
-
-	/** ID of the current mail checker loop */
-	private int currentMailCheckerLoopId = 0;
-
-	/** mutex lock for <code>currentMailCheckerLoopId</code> */
-	private final Object currentMailCheckerLoopIdLock = new Object();
-
-	/** ID of the current mail store */
-	private int currentMailStoreId = 0;
-
-	/** mutex lock for <code>currentMailStoreId</code> */
-	private final Object currentMailStoreIdLock = new Object();
-
-	/** "alive" time continuously updated by the mail checker */
-	private volatile long mailCheckerAliveTime = 0L;
+	/** mail checking engine of this account */
+	final MailAccount mailAccount;
 
 
 	/**
@@ -181,15 +127,7 @@ class Account
 		this.parent = parent;
 		this.accountId = accountId;
 		this.properties = properties;
-
-		/* initialize additional properties */
-		properties.setString("status", "<html><font color='red'>Disabled</font></html>");
-		properties.setBoolean("error", false);
-		properties.setString("error.message", "");
-		properties.setInt("unread.mails", -1);
-		properties.setBoolean("new.unread.mails", false);
-		properties.setLong("last.mail.check.success", 0L);
-		properties.setLong("last.mail.check.attempt", 0L);
+		mailAccount = new MailAccount(parent.environment, accountId, properties, this);
 
 		/******************************
 		 * INITIALIZE FORM COMPONENTS *
@@ -338,15 +276,7 @@ class Account
 			notifyField6
 		};
 
-		notifyLabelProperties = new String[]
-		{
-			"notify.label1",
-			"notify.label2",
-			"notify.label3",
-			"notify.label4",
-			"notify.label5",
-			"notify.label6"
-		};
+		notifyLabelProperties = MailAccount.NOTIFY_LABEL_PROPERTIES;
 
 		for (final JTextField c : notifyLabelFields)
 		{
@@ -372,33 +302,6 @@ class Account
 			});
 		}
 
-		/* create mail labels for monitoring */
-		final List<MailLabel> labels = new ArrayList<MailLabel>();
-		final String notifyOn = properties.getString("notify.on");
-
-		if ("inbox".equals(notifyOn))
-		{
-			labels.add(new MailLabel("INBOX"));
-		}
-		else if ("any".equals(notifyOn))
-		{
-			labels.add(new MailLabel("All Mail"));
-		}
-		else if ("labels".equals(notifyOn))
-		{
-			for (String p : notifyLabelProperties)
-			{
-				final String s = properties.getString(p);
-
-				if (!s.isEmpty())
-				{
-					labels.add(new MailLabel(s));
-				}
-			}
-		}
-
-		properties.set("mail.labels.object", labels);
-
 		/* check boxes: alerts */
 		alertsBoxes = new JCheckBox[]
 		{
@@ -518,716 +421,13 @@ class Account
 		/* repopulate form */
 		repopulateForm();
 
-		/*******************************
-		 * CREATE MAIL CHECKER MONITOR *
-		 *******************************/
-
-		new Thread(new Runnable()
-		{
-			public void run()
-			{
-				while (true)
-				{
-					/* start a new mail checker if the current one becomes unresponsive */
-					if ((System.currentTimeMillis() - mailCheckerAliveTime) >=
-							parent.properties.getLong("mail.check.timeout.milliseconds"))
-					{
-						mailCheckerAliveTime = System.currentTimeMillis();
-						currentMailStore = null;
-
-						final int mailCheckerId;
-
-						synchronized (currentMailCheckerLoopIdLock)
-						{
-							mailCheckerId = ++currentMailCheckerLoopId;
-						}
-
-						startNewMailCheckerLoop(mailCheckerId);
-
-						if (parent.debug)
-						{
-							parent.logger.log("[%s] Started new mail checker #%d", properties.getString("username"), mailCheckerId);
-						}
-					}
-
-					Debug.sleep(10 * REFRESH_INTERVAL_MILLISECONDS);
-				}
-			}
-		}).start();
-	}
-
-
-	/**
-	 * Start a new loop to check for mail iteratively.
-	 * This method runs on a newly created thread.
-	 *
-	 * @param mailCheckerId
-	 *     ID for the new mail checker loop
-	 */
-	private void startNewMailCheckerLoop(
-			final int mailCheckerId)
-	{
-		new Thread(new Runnable()
-		{
-			/** interrupted exception, to be thrown by <code>checkIfInterrupted()</code> */
-			private final InterruptedException interruptedException = new InterruptedException();
-
-			/** search term for messages with the SEEN flag turned off */
-			private final SearchTerm unseenFlag = new FlagTerm(new Flags(Flags.Flag.SEEN), false);
-
-
-			/**
-			 * Check if this mail checker has been interrupted.
-			 * This method updates the "alive" time of the mail checker.
-			 *
-			 * @throws InterruptedException
-			 *     if this mail checker has been interrupted
-			 */
-			private void checkIfInterrupted()
-					throws InterruptedException
-			{
-				mailCheckerAliveTime = System.currentTimeMillis();
-
-				if (!properties.getBoolean("enabled"))
-				{
-					properties.setString("status", "<html><font color='red'>Disabled</font></html>");
-					parent.refreshAccountOnTable(Account.this);
-					throw interruptedException;
-				}
-
-				synchronized (currentMailCheckerLoopIdLock)
-				{
-					if (mailCheckerId != currentMailCheckerLoopId)
-					{
-						throw interruptedException;
-					}
-				}
-			}
-
-
-			/**
-			 * Perform mail check iteratively.
-			 */
-			public void run()
-			{
-				/* mail identifer ---> message mapping for all unread mails */
-				final Map<MailIdentifier,Message> messageMap = new HashMap<MailIdentifier,Message>();
-
-				/* mail identifer ---> message mapping for unread mails to be fetched */
-				final Map<MailIdentifier,Message> fetchMessageMap = new HashMap<MailIdentifier,Message>();
-
-				/* mail identifer ---> mail mapping for unread mails to be fetched */
-				final Map<MailIdentifier,Mail> fetchMailMap = new HashMap<MailIdentifier,Mail>();
-
-				NextMailCheckIteration:
-				while (true)
-				{
-					Debug.sleep(REFRESH_INTERVAL_MILLISECONDS);
-
-					/***********************************
-					 * (1) CHECK TERMINATING CONDITION *
-					 ***********************************/
-
-					mailCheckerAliveTime = System.currentTimeMillis();
-
-					/* check if this mail checker has been replaced */
-					synchronized (currentMailCheckerLoopIdLock)
-					{
-						if (mailCheckerId != currentMailCheckerLoopId)
-						{
-							break NextMailCheckIteration;
-						}
-					}
-
-					/******************************
-					 * (2) PROCEED TO CHECK MAIL? *
-					 ******************************/
-
-					boolean proceedToCheckNow = false;
-					final long mailCheckIntervalMilliseconds = parent.properties.getLong("mail.check.interval.milliseconds");
-
-					if (properties.getBoolean("enabled"))
-					{
-						if (checkMailNow)
-						{
-							proceedToCheckNow = true;
-							checkMailNow = false;
-						}
-						else
-						{
-							if (properties.getBoolean("error"))
-							{
-								if ((System.currentTimeMillis() - properties.getLong("last.mail.check.attempt")) >=
-										(mailCheckIntervalMilliseconds / 10))
-								{
-									proceedToCheckNow = true;
-								}
-							}
-							else
-							{
-								if ((System.currentTimeMillis() - properties.getLong("last.mail.check.attempt")) >=
-										mailCheckIntervalMilliseconds)
-								{
-									proceedToCheckNow = true;
-								}
-							}
-						}
-					}
-
-					if (!proceedToCheckNow)
-					{
-						continue NextMailCheckIteration;
-					}
-
-					/********************
-					 * GMAIL WORKAROUND *
-					 ********************/
-
-					/* Gmail prevents repeated calls to retrieve mails on a single login,  */
-					/* so we close the existing mail store and create a new one each time. */
-					closeMailStore(currentMailStore);
-					currentMailStore = null;
-
-					/**********************************
-					 * (3) CHECK IF MAIL STORE EXISTS *
-					 **********************************/
-
-					if (currentMailStore == null)
-					{
-						createNewMailStore();
-					}
-
-					final Store mailStore = currentMailStore;
-
-					if (mailStore == null)
-					{
-						continue NextMailCheckIteration;
-					}
-
-					try
-					{
-						/***************************
-						 * (4) BEGIN CHECKING MAIL *
-						 ***************************/
-
-						properties.setString("status", "<html>Checking mail...</html>");
-						parent.refreshAccountOnTable(Account.this);
-						checkIfInterrupted();
-
-						messageMap.clear();
-						fetchMessageMap.clear();
-						fetchMailMap.clear();
-
-						/*****************************************************
-						 * (5) FETCH UNREAD MAIL IDENTIFIERS FOR EACH FOLDER *
-						 *****************************************************/
-
-						final String notifyOn = properties.getString("notify.on");
-						final List<MailLabel> mailLabels = (List<MailLabel>) properties.get("mail.labels.object");
-						final IMAPFolder[] folders = new IMAPFolder[mailLabels.size()];
-
-						for (int i = 0; i < folders.length; i++)
-						{
-							folders[i] = (IMAPFolder) mailStore.getFolder(mailLabels.get(i).folder); /* throws IllegalStateException if store not connected */
-						}
-
-						if ("inbox".equals(notifyOn))
-						{
-							properties.setString("status", "<html>Fetching unread mails in Inbox...<</html>");
-							parent.refreshAccountOnTable(Account.this);
-						}
-						else if ("any".equals(notifyOn))
-						{
-							properties.setString("status", "<html>Fetching unread mails...</html>");
-							parent.refreshAccountOnTable(Account.this);
-						}
-
-						NextFolder:
-						for (int i = 0; i < folders.length; i++)
-						{
-							if ("labels".equals(notifyOn))
-							{
-								properties.setString("status", String.format("<html>Fetching unread \"%s\" mails...</html>", mailLabels.get(i).label));
-								parent.refreshAccountOnTable(Account.this);
-							}
-
-							checkIfInterrupted();
-
-							/* open folder in "read only" mode */
-							if (!folders[i].exists()) /* throws MessagingException if connection to server is lost */
-							{
-								continue NextFolder;
-							}
-
-							if (!folders[i].isOpen())
-							{
-								folders[i].open(Folder.READ_ONLY); /* throws MessagingException */
-							}
-
-							checkIfInterrupted();
-
-							/* fetch unseen mails from this folder */
-							for (Message msg : folders[i].search(unseenFlag)) /* throws MessagingException */
-							{
-								checkIfInterrupted();
-
-								messageMap.put(new MailIdentifier(
-										mailLabels.get(i).folder,
-										folders[i].getUID(msg)), /* throws MessagingException */
-										msg);
-							}
-						}
-
-						/****************************************************
-						 * (6) FETCH UNREAD MAILS THAT HAVE NOT BEEN CACHED *
-						 ****************************************************/
-
-						fetchMessageMap.putAll(messageMap);
-
-						synchronized (mailsLock)
-						{
-							fetchMessageMap.keySet().removeAll(mailsMap.keySet());
-						}
-
-						boolean newUnreadMails = !fetchMessageMap.isEmpty();
-
-						for (Map.Entry<MailIdentifier,Message> me : fetchMessageMap.entrySet())
-						{
-							checkIfInterrupted();
-
-							final int seq;
-
-							synchronized (lastSequenceNumberLock)
-							{
-								seq = ++lastSequenceNumber;
-							}
-
-							fetchMailMap.put(
-									me.getKey(),
-									new Mail(Account.this, me.getValue(), seq)); /* throws MessagingException */
-						}
-
-						/***********************
-						 * (7) UPDATE MAIL MAP *
-						 ***********************/
-
-						synchronized (mailsLock)
-						{
-							mailsMap.keySet().retainAll(messageMap.keySet());
-							mailsMap.putAll(fetchMailMap);
-							mailsNavigableSet.retainAll(mailsMap.values());
-							mailsNavigableSet.addAll(fetchMailMap.values());
-							properties.setInt("unread.mails", mailsMap.size());
-						}
-
-						properties.setString("status", "<html>Mail check completed</html>");
-						parent.refreshAccountOnTable(Account.this);
-						parent.refreshTotalUnreadMailCount();
-
-						/********************
-						 * (8) ISSUE ALERTS *
-						 ********************/
-
-						if (newUnreadMails)
-						{
-							properties.setBoolean("new.unread.mails", true);
-							parent.trayIcon.setHotIcon();
-							parent.trayIcon.blinkIcon();
-
-							if (properties.getBoolean("alert.chime"))
-							{
-								parent.chime.playChime();
-							}
-
-							if (properties.getBoolean("alert.periodic.bell"))
-							{
-								parent.chime.startPeriodicBell();
-							}
-
-							if (properties.getBoolean("alert.led"))
-							{
-								parent.led.start();
-							}
-						}
-
-						/* update popup messages for unread mails */
-						parent.popup.updateMessages(
-								Account.this,
-								properties.getBoolean("alert.popup"));
-
-						/***********************************
-						 * (9) REGISTER MAIL CHECK SUCCESS *
-						 ***********************************/
-
-						registerMailCheckSuccess();
-					}
-					catch (Exception e)
-					{
-						if (e instanceof InterruptedException)
-						{
-							/* mail checker has been interrupted */
-							if (parent.debug)
-							{
-								parent.logger.log("[%s] Mail checker #%d interruption (%s)",
-										properties.getString("username"), mailCheckerId, e.toString());
-							}
-						}
-						else
-						{
-							if (parent.debug)
-							{
-								parent.logger.log("[%s] Mail checker #%d exception caught (%s)",
-										properties.getString("username"), mailCheckerId, e.toString());
-							}
-
-							registerMailCheckFailure("Mail check failed", mailStore);
-						}
-					}
-				}
-			}
-		}).start();
-	}
-
-
-	/**
-	 * Register a successful mail check by updating the last mail check attempt and success times.
-	 * This method can be called on any thread.
-	 */
-	private void registerMailCheckSuccess()
-	{
-		final long time = System.currentTimeMillis();
-
-		/* update account properties */
-		properties.setLong("last.mail.check.attempt", time);
-		properties.setLong("last.mail.check.success", time);
-		properties.setBoolean("error", false);
-		properties.setString("error.message", "");
-		properties.setString("status", "<html>Waiting for next mail check</html>");
-		parent.refreshAccountOnTable(this);
-		parent.refreshTotalUnreadMailCount();
-	}
-
-
-	/**
-	 * Register a failed mail check by updating the last mail check attempt time,
-	 * and setting the given error message.
-	 * The specified mail store, if any, is also closed.
-	 * This method can be called on any thread.
-	 *
-	 * @param error
-	 *     error message (must not be null)
-	 * @param mailStore
-	 *     mail store to be closed if any; null otherwise
-	 */
-	private void registerMailCheckFailure(
-			final String error,
-			final Store mailStore)
-	{
-		/* trigger a new login attempt */
-		currentMailStore = null;
-
-		/* update account properties */
-		properties.setLong("last.mail.check.attempt", System.currentTimeMillis());
-		properties.setBoolean("error", true);
-		properties.setString("error.message", error);
-		properties.setString("status", String.format("<html><font color='red'>%s</font></html>", error));
-		parent.refreshAccountOnTable(this);
-		parent.refreshTotalUnreadMailCount();
-
-		/* close mail store, if any */
-		closeMailStore(mailStore);
-	}
-
-
-	/**
-	 * Close the specified mail store.
-	 * This method runs on a newly created thread.
-	 *
-	 * @param mailStore
-	 *     mail store to be closed.
-	 */
-	private void closeMailStore(
-			final Store mailStore)
-	{
-		if (mailStore != null)
-		{
-			new Thread(new Runnable()
-			{
-				public void run()
-				{
-					try
-					{
-						mailStore.close();
-					}
-					catch (Exception e)
-					{
-						/* ignore */
-					}
-				}
-			}).start();
-		}
-	}
-
-
-	/**
-	 * Create a new mail store for this email account.
-	 * This method can be called on any thread.
-	 */
-	private void createNewMailStore()
-	{
-		/* get username for login */
-		String username = properties.getString("username");
-
-		if (!username.contains("@"))
-		{
-			/* treat as Gmail account */
-			username += parent.properties.getString("gmail.username.suffix");
-		}
-
-		/* mail server parameters */
-		final String protocol = parent.properties.getString("incoming.protocol");
-		final String server = parent.properties.getString("incoming.server");
-		final int port = parent.properties.getInt("incoming.port");
-
-		Store mailStore = null;
-
-		try
-		{
-			SwingManipulator.updateLabel(loginError, "<html><font color='blue'>Logging in...</font></html>");
-			properties.setString("status", "<html><font color='blue'>Logging in...</font></html>");
-			parent.refreshAccountOnTable(Account.this);
-
-			/* create new mail store */
-			final Session session = Session.getInstance(System.getProperties(), null);
-			session.setDebug(false);
-
-			mailStore = session.getStore(protocol); /* throws NoSuchProviderException */
-
-			mailStore.connect(
-					server,
-					port,
-					username,
-					properties.getString("password")); /* throws AuthenticationFailedException, MessagingException, IllegalStateException */
-
-			registerMailStoreCreationSuccess(mailStore);
-		}
-		catch (Exception e)
-		{
-			if (parent.debug)
-			{
-				parent.logger.log("[%s] Mail store creation failure (%s)", properties.getString("username"), e.toString());
-			}
-
-			if (e instanceof NoSuchProviderException)
-			{
-				registerMailStoreCreationFailure(
-						String.format("(INTERNAL) Invalid incoming mail protocol \"%s\" (%s).", protocol, e.toString()),
-						mailStore);
-			}
-			else if (e instanceof AuthenticationFailedException)
-			{
-				registerMailStoreCreationFailure(
-						"Failed to connect to the Gmail server." +
-						"\nPlease check that IMAP access is enabled for your Gmail account " +
-						"(Settings > Forwarding and POP/IMAP > IMAP Access), and that your username and password are correct.",
-						mailStore);
-			}
-			else
-			{
-				registerMailStoreCreationFailure(String.format(
-						"Failed to connect to the Gmail server because of an unexpected error (%s).\n" +
-						"Please ensure that %s has internet access to the Gmail IMAP server at %s port %d.",
-						e.toString(), parent.name, server, port),
-						mailStore);
-			}
-		}
-
-		SwingUtilities.invokeLater(new Runnable()
-		{
-			public void run()
-			{
-				loginError.setText(" ");
-				okButton.setEnabled(true);
-				cancelButton.setEnabled(true);
-				passwordField.selectAll();
-				passwordField.requestFocus();
-			}
-		});
-	}
-
-
-	/**
-	 * Register successful creation of a new mail store.
-	 * This method can be called on any thread.
-	 *
-	 * @param mailStore
-	 *     mail store that was created
-	 */
-	private void registerMailStoreCreationSuccess(
-			final Store mailStore)
-	{
-		final int mailStoreId;
-
-		synchronized (currentMailStoreIdLock)
-		{
-			mailStoreId = ++currentMailStoreId;
-		}
-
-		if (parent.debug)
-		{
-			parent.logger.log("[%s] Mail store #%d creation success", properties.getString("username"), mailStoreId);
-		}
-
-		currentMailStore = mailStore;
-		startNewIdleLoop(mailStore, mailStoreId);
-
-		properties.setString("status", "<html><font color='blue'>Login successful</font></html>");
-		parent.refreshAccountOnTable(this);
-
-		SwingUtilities.invokeLater(new Runnable()
-		{
-			public void run()
-			{
-				loginError.setText("<html><font color='blue'>Login successful</font></html>");
-				setVisible(false);
-				enableAccount();
-			}
-		});
-	}
-
-
-	/**
-	 * Register failure in creating a new mail store.
-	 * This method can be called on any thread.
-	 *
-	 * @param error
-	 *     error message
-	 * @param mailStore
-	 *     mail store that was created
-	 */
-	private void registerMailStoreCreationFailure(
-			final String error,
-			final Store mailStore)
-	{
-		/* trigger a new login attempt */
-		currentMailStore = null;
-
-		/* close mail store, if any */
-		closeMailStore(mailStore);
-
-		/* update account properties */
-		properties.setLong("last.mail.check.attempt", System.currentTimeMillis());
-		properties.setBoolean("error", true);
-		properties.setString("error.message", "Login failed");
-		properties.setString("status", "<html><font color='red'>Login failed</font></html>");
-		parent.refreshAccountOnTable(this);
-		parent.refreshTotalUnreadMailCount();
-
-		SwingUtilities.invokeLater(new Runnable()
-		{
-			public void run()
-			{
-				loginError.setText("<html><font color='red'>Login failed</font></html>");
-
-				if (isVisible())
-				{
-					SwingManipulator.showErrorDialog(
-							Account.this,
-							getTitle(),
-							error);
-				}
-			}
-		});
-	}
-
-
-	/**
-	 * Start a new loop that calls the IMAP IDLE command iteratively.
-	 * This method runs on a newly created thread.
-	 *
-	 * @param mailStore
-	 *     mail store to be used
-	 * @param mailStoreId
-	 *     ID of the mail store to be used
-	 */
-	private void startNewIdleLoop(
-			final Store mailStore,
-			final int mailStoreId)
-	{
-		new Thread(new Runnable()
-		{
-			public void run()
-			{
-				final MessageCountListener idleListener = new MessageCountListener()
-				{
-					public void messagesAdded(MessageCountEvent e)
-					{
-						checkMailNow = true;
-					}
-
-					public void messagesRemoved(MessageCountEvent e)
-					{
-						checkMailNow = true;
-					}
-				};
-
-				final String allMailFolder = new MailLabel("All Mail").folder;
-
-				NextIdleIteration:
-				while (true)
-				{
-					Debug.sleep(10 * REFRESH_INTERVAL_MILLISECONDS);
-
-					/* check terminating condition */
-					synchronized (currentMailStoreIdLock)
-					{
-						if (mailStoreId != currentMailStoreId)
-						{
-							break NextIdleIteration;
-						}
-					}
+		/**************************************
+		 * REGISTER WITH MAIL CHECK SCHEDULER *
+		 **************************************/
 
-					try
-					{
-						final IMAPFolder folder = (IMAPFolder) mailStore.getFolder(allMailFolder); /* throws IllegalStateException */
-						folder.addMessageCountListener(idleListener);
-
-						if (!folder.exists()) /* throws MessagingException */
-						{
-							continue NextIdleIteration;
-						}
-
-						if (!folder.isOpen())
-						{
-							folder.open(Folder.READ_ONLY); /* throws MessagingException */
-						}
-
-						if (parent.debug)
-						{
-							parent.logger.log("[%s] IDLE for mail store #%d called", properties.getString("username"), mailStoreId);
-						}
-
-						folder.idle(); /* throws MessagingException, IllegalStateException */
-
-						if (parent.debug)
-						{
-							parent.logger.log("[%s] IDLE for mail store #%d returned", properties.getString("username"), mailStoreId);
-						}
-					}
-					catch (Exception e)
-					{
-						/* ignore */
-						if (parent.debug)
-						{
-							parent.logger.log("[%s] IDLE for mail store #%d exception caught (%s)", properties.getString("username"), mailStoreId, e.toString());
-						}
-					}
-				}
-			}
-		}).start();
+		mailAccount.start();
 	}
 
-
 	/**
 	 * Repopulate the form according to the current account properties.
 	 * This method must run on the EDT.
@@ -1324,31 +524,7 @@ class Account
 		}
 
 		/* mail labels for monitoring */
-		final List<MailLabel> labels = new ArrayList<MailLabel>();
-		final String notifyOn = properties.getString("notify.on");
-
-		if ("inbox".equals(notifyOn))
-		{
-			labels.add(new MailLabel("INBOX"));
-		}
-		else if ("any".equals(notifyOn))
-		{
-			labels.add(new MailLabel("All Mail"));
-		}
-		else if ("labels".equals(notifyOn))
-		{
-			for (String p : notifyLabelProperties)
-			{
-				final String s = properties.getString(p);
-
-				if (!s.isEmpty())
-				{
-					labels.add(new MailLabel(s));
-				}
-			}
-		}
-
-		properties.set("mail.labels.object", labels);
+		mailAccount.refreshMailLabels();
 
 		/* alerts */
 		for (int i = 0; i < alertsBoxes.length; i++)
@@ -1358,22 +534,15 @@ class Account
 
 		parent.refreshAccountOnTable(this);
 
-		if ((currentMailStore == null) || usernameEdited || passwordEdited)
+		if (!mailAccount.isLoggedIn() || usernameEdited || passwordEdited)
 		{
-			disableAccount();
 			usernameEdited = false;
 			passwordEdited = false;
-
-			new Thread(new Runnable()
-			{
-				public void run()
-				{
-					createNewMailStore();
-				}
-			}).start();
+			mailAccount.login();
 		}
 		else
 		{
+			mailAccount.refreshIdleLoops();
 			okButton.setEnabled(true);
 			cancelButton.setEnabled(true);
 			setVisible(false);
@@ -1553,26 +722,15 @@ class Account
 
 
 	/**
-	 * Enable the account.
+	 * Enable the account, or present the form for editing if the login credentials are missing.
 	 * This method must run on the EDT.
 	 */
 	void enableAccount()
 	{
-		if (properties.getString("username").isEmpty() ||
-				properties.getString("password").isEmpty())
+		if (!mailAccount.enable())
 		{
 			editAccount();
 		}
-		else
-		{
-			if (!properties.getBoolean("enabled"))
-			{
-				properties.setString("status", "<html>Waiting for next mail check</html>");
-				parent.refreshAccountOnTable(this);
-				checkMailNow = true;
-				properties.setBoolean("enabled", true);
-			}
-		}
 	}
 
 
@@ -1582,11 +740,7 @@ class Account
 	 */
 	void disableAccount()
 	{
-		properties.setBoolean("error", false);
-		properties.setBoolean("enabled", false);
-		properties.setString("status", "<html><font color='red'>Disabled</font></html>");
-		parent.refreshAccountOnTable(this);
-		parent.refreshTotalUnreadMailCount();
+		mailAccount.disable();
 	}
 
 
@@ -1600,8 +754,7 @@ class Account
 		{
 			public void run()
 			{
-				disableAccount();
-				closeMailStore(currentMailStore);
+				mailAccount.remove();
 				setVisible(false);
 				dispose();
 			}
@@ -1610,11 +763,106 @@ class Account
 
 
 	/**
-	 * Check for unread mails now, if the login credentials have been verified.
+	 * Refresh this account on the table of accounts.
+	 */
+	public void statusChanged(
+			final MailAccount ac)
+	{
+		parent.refreshAccountOnTable(this);
+	}
+
+
+	/**
+	 * Refresh the total number of unread mails for all accounts.
+	 */
+	public void unreadMailsChanged(
+			final MailAccount ac)
+	{
+		parent.refreshTotalUnreadMailCount();
+	}
+
+
+	/**
+	 * Issue alerts for the new unread mails, if any, and update the popup messages.
+	 */
+	public void mailsUpdated(
+			final MailAccount ac,
+			final List<Mail> newMails)
+	{
+		if (!newMails.isEmpty())
+		{
+			parent.trayIcon.setHotIcon();
+			parent.trayIcon.blinkIcon();
+
+			if (properties.getBoolean("alert.chime"))
+			{
+				parent.chime.playChime();
+			}
+
+			if (properties.getBoolean("alert.periodic.bell"))
+			{
+				parent.chime.startPeriodicBell();
+			}
+
+			if (properties.getBoolean("alert.led"))
+			{
+				parent.led.start();
+			}
+		}
+
+		/* update popup messages for unread mails */
+		parent.popup.updateMessages(
+				mailAccount,
+				properties.getBoolean("alert.popup"));
+	}
+
+
+	/**
+	 * Show the login progress on the form.
 	 */
-	void checkMailNow()
+	public void loginStarted(
+			final MailAccount ac)
 	{
-		checkMailNow = true;
+		SwingManipulator.updateLabel(loginError, "<html><font color='blue'>Logging in...</font></html>");
+	}
+
+
+	/**
+	 * Show the login result on the form, which is closed if the login was successful.
+	 */
+	public void loginCompleted(
+			final MailAccount ac,
+			final String error)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				if (error == null)
+				{
+					loginError.setText("<html><font color='blue'>Login successful</font></html>");
+					setVisible(false);
+				}
+				else
+				{
+					loginError.setText("<html><font color='red'>Login failed</font></html>");
+
+					if (isVisible())
+					{
+						SwingManipulator.showErrorDialog(
+								Account.this,
+								getTitle(),
+								error);
+					}
+				}
+
+				loginError.setText(" ");
+				okButton.setEnabled(true);
+				cancelButton.setEnabled(true);
+				passwordField.selectAll();
+				passwordField.requestFocus();
+			}
+		});
 	}
 
 
@@ -1654,7 +902,7 @@ class Account
 			sb.append(" (");
 
 			final long duration = time - properties.getLong("last.mail.check.attempt");
-			sb.append(GmailAssistant.timeDurationString(duration));
+			sb.append(MailCheckEnvironment.timeDurationString(duration));
 			sb.append((duration >= 0) ? " ago)</font><br />" : " in the future)</font><br />");
 		}
 
@@ -1668,7 +916,7 @@ class Account
 			sb.append((n == 1) ? "mail (" : "mails (");
 
 			final long duration = time - properties.getLong("last.mail.check.success");
-			sb.append(GmailAssistant.timeDurationString(duration));
+			sb.append(MailCheckEnvironment.timeDurationString(duration));
 			sb.append((duration >= 0) ? " ago)<br />" : " in the future)<br />");
 		}
 
@@ -1755,146 +1003,6 @@ class Account
 		return sb.toString();
 	}
 
-
-	/**
-	 * Compare this account to the specified account by account ID.
-	 */
-	public int compareTo(
-			Account o)
-	{
-		if (accountId < o.accountId) return -1;
-		if (accountId > o.accountId) return 1;
-		return 0;
-	}
-
-
-	/**
-	 * Check for equality between this account and the specified account by account ID.
-	 */
-	@Override
-	public boolean equals(
-			Object obj)
-	{
-		if (obj instanceof Account)
-		{
-			return (accountId == ((Account) obj).accountId);
-		}
-		else
-		{
-			return false;
-		}
-	}
-
-
-	/**
-	 * Generate hash code for this account, using the account ID.
-	 */
-	@Override
-	public int hashCode()
-	{
-		return accountId;
-	}
-
-
-	/**
-	 * Get total number of mails.
-	 * This method can be called on any thread.
-	 *
-	 * @return
-	 *     total number of mails
-	 */
-	int getTotalNumMails()
-	{
-		synchronized (mailsLock)
-		{
-			return mailsNavigableSet.size();
-		}
-	}
-
-
-	/**
-	 * Get the first mail.
-	 * This method can be called on any thread.
-	 *
-	 * @return
-	 *     first mail; null if there are no mails
-	 */
-	Mail getFirstMail()
-	{
-		try
-		{
-			synchronized (mailsLock)
-			{
-				return mailsNavigableSet.first();
-			}
-		}
-		catch (NoSuchElementException e)
-		{
-			return null;
-		}
-	}
-
-
-	/**
-	 * Get the last mail.
-	 * This method can be called on any thread.
-	 *
-	 * @return
-	 *     last mail; null if there are no mails
-	 */
-	Mail getLastMail()
-	{
-		try
-		{
-			synchronized (mailsLock)
-			{
-				return mailsNavigableSet.last();
-			}
-		}
-		catch (NoSuchElementException e)
-		{
-			return null;
-		}
-	}
-
-
-	/**
-	 * Get the next mail that comes after the specified mail.
-	 * This method can be called on any thread.
-	 *
-	 * @param m
-	 *     mail
-	 * @return
-	 *     next mail that comes after <code>m</code>; null if there is none
-	 */
-	Mail getNextMail(
-			final Mail m)
-	{
-		synchronized (mailsLock)
-		{
-			return mailsNavigableSet.higher(m);
-		}
-	}
-
-
-	/**
-	 * Get the previous mail that comes before the specified mail.
-	 * This method can be called on any thread.
-	 *
-	 * @param m
-	 *     mail
-	 * @return
-	 *     previous mail that comes before <code>m</code>; null if there is none
-	 */
-	Mail getPreviousMail(
-			final Mail m)
-	{
-		synchronized (mailsLock)
-		{
-			return mailsNavigableSet.lower(m);
-		}
-	}
-
 	/***************************
 	 * NETBEANS-GENERATED CODE *
 	 ***************************/
@@ -22,14 +22,17 @@
 
 package org.freeshell.zs.gmailassistant;
 
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Clip;
 import javax.sound.sampled.DataLine;
-import org.freeshell.zs.common.Debug;
+import javax.sound.sampled.LineEvent;
+import javax.sound.sampled.LineListener;
 import org.freeshell.zs.common.SwingManipulator;
 
 
@@ -38,8 +41,8 @@ import org.freeshell.zs.common.SwingManipulator;
  */
 class ChimePlayer
 {
-	/** refresh interval in milliseconds */
-	private static final long REFRESH_INTERVAL_MILLISECONDS = 200L;
+	/** additional time to wait for an audio clip to stop, beyond its length, in milliseconds */
+	private static final long CLIP_STOP_GRACE_MILLISECONDS = 1000L;
 
 	/** chime audio clip */
 	private Clip chime = null;
@@ -53,8 +56,8 @@ class ChimePlayer
 	/** time at which the periodic bell was last played */
 	private volatile long periodicBellLastPlayed = 0L;
 
-	/** queued actions to be performed by the timer */
-	private final Queue<ActionType> actions = new ArrayDeque<ActionType>();
+	/** queued actions to be performed by the thread that plays chimes */
+	private final BlockingQueue<ActionType> actions = new LinkedBlockingQueue<ActionType>();
 
 
 	/**
@@ -131,11 +134,25 @@ class ChimePlayer
 			{
 				while (true)
 				{
-					final ActionType action;
+					/* wait for the next action, or until the periodic bell is due */
+					ActionType action = null;
 
-					synchronized (actions)
+					try
 					{
-						action = actions.poll();
+						if (periodicBellPlay)
+						{
+							action = actions.poll(
+									periodicBellLastPlayed + parent.properties.getLong("alert.periodic.bell.interval.milliseconds") - System.currentTimeMillis(),
+									TimeUnit.MILLISECONDS);
+						}
+						else
+						{
+							action = actions.take();
+						}
+					}
+					catch (InterruptedException e)
+					{
+						/* ignore */
 					}
 
 					if (action == ActionType.CHIME)
@@ -163,8 +180,6 @@ class ChimePlayer
 						playClipAndWait(periodicBell);
 						periodicBellLastPlayed = System.currentTimeMillis();
 					}
-
-					Debug.sleep(REFRESH_INTERVAL_MILLISECONDS);
 				}
 			}
 		}).start();
@@ -176,10 +191,7 @@ class ChimePlayer
 	 */
 	void playChime()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.CHIME);
-		}
+		actions.add(ActionType.CHIME);
 	}
 
 
@@ -188,10 +200,7 @@ class ChimePlayer
 	 */
 	void testChime()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.TEST_CHIME);
-		}
+		actions.add(ActionType.TEST_CHIME);
 	}
 
 
@@ -200,10 +209,7 @@ class ChimePlayer
 	 */
 	void testPeriodicBell()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.TEST_PERIODIC_BELL);
-		}
+		actions.add(ActionType.TEST_PERIODIC_BELL);
 	}
 
 
@@ -212,10 +218,7 @@ class ChimePlayer
 	 */
 	void cancelAll()
 	{
-		synchronized (actions)
-		{
-			actions.clear();
-		}
+		actions.clear();
 	}
 
 
@@ -225,6 +228,9 @@ class ChimePlayer
 	void startPeriodicBell()
 	{
 		periodicBellPlay = true;
+
+		/* wake up the thread so that it waits for the periodic bell instead */
+		actions.add(ActionType.WAKE_UP);
 	}
 
 
@@ -242,16 +248,14 @@ class ChimePlayer
 	 */
 	void terminate()
 	{
-		synchronized (actions)
-		{
-			actions.clear();
-			actions.add(ActionType.TERMINATE);
-		}
+		actions.clear();
+		actions.add(ActionType.TERMINATE);
 	}
 
 
 	/**
 	 * Play the specified audio clip, and wait for it to finish.
+	 * The wait ends when the clip line reports a STOP event.
 	 *
 	 * @param c
 	 *      audio clip to be played
@@ -264,13 +268,39 @@ class ChimePlayer
 			return;
 		}
 
-		/* rewind the clip and start playing */
-		c.setFramePosition(0);
-		c.start();
+		final CountDownLatch stopped = new CountDownLatch(1);
 
-		while (c.isActive())
+		final LineListener listener = new LineListener()
+		{
+			public void update(
+					final LineEvent e)
+			{
+				if (e.getType() == LineEvent.Type.STOP)
+				{
+					stopped.countDown();
+				}
+			}
+		};
+
+		c.addLineListener(listener);
+
+		try
+		{
+			/* rewind the clip and start playing */
+			c.setFramePosition(0);
+			c.start();
+
+			stopped.await(
+					(c.getMicrosecondLength() / 1000L) + CLIP_STOP_GRACE_MILLISECONDS,
+					TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			/* ignore */
+		}
+		finally
 		{
-			Debug.sleep(REFRESH_INTERVAL_MILLISECONDS / 10);
+			c.removeLineListener(listener);
 		}
 	}
 
@@ -286,6 +316,7 @@ class ChimePlayer
 		CHIME,
 		TEST_CHIME,
 		TEST_PERIODIC_BELL,
+		WAKE_UP,
 		TERMINATE
 	}
 }
@@ -0,0 +1,552 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.freeshell.zs.gmailassistant;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.FutureTask;
+import org.freeshell.zs.common.SimpleProperties;
+
+
+/**
+ * Global budget for the server connections of all accounts, so that a single
+ * program can monitor many accounts without overwhelming the mail servers.
+ * <ul>
+ * <li>At most a given number of mail checks and logins are in flight at a time.</li>
+ * <li>At most a given number of connections are in use on each host, counting the
+ *     connections of mail checks and logins in flight, and those held by IDLE loops.</li>
+ * <li>At most a given number of logins are started per second (token bucket).</li>
+ * </ul>
+ * Requests that cannot be admitted wait in queues that are ordered by weighted fair
+ * queuing (self-clocked): each request is tagged with a virtual finish time that
+ * advances by the smoothed duration of its account's recent requests, so that an
+ * account with slow mail checks gets its fair share of the budget and no more,
+ * instead of starving the other accounts.
+ * A limit of zero means no limit.
+ * All the methods of this class are thread-safe.
+ */
+class ConnectionBudget
+{
+	/** weight of the latest duration in the smoothed duration of an account's requests */
+	private static final double COST_SMOOTHING = 0.25;
+
+	/** smoothed duration assumed for an account with no completed requests, in milliseconds */
+	private static final double INITIAL_COST_MILLISECONDS = 1000.0;
+
+	/** maximum number of requests in flight */
+	private final int maxInFlight;
+
+	/** maximum number of connections in use on each host */
+	private final int maxConnectionsPerHost;
+
+	/** maximum number of logins started per second */
+	private final int maxLoginsPerSecond;
+
+	/** state of each host, keyed on host name */
+	private final Map<String,Host> hosts = new HashMap<String,Host>();
+
+	/** state of each account, keyed on account */
+	private final Map<Object,Tenant> tenants = new HashMap<Object,Tenant>();
+
+	/** number of requests in flight */
+	private int numInFlight = 0;
+
+	/** virtual time, i.e. finish tag of the latest admitted request */
+	private double virtualTime = 0.0;
+
+	/** sequence number of the latest queued request, for breaking ties between equal tags */
+	private long sequence = 0L;
+
+	/** number of login tokens available */
+	private double loginTokens;
+
+	/** time at which login tokens were last replenished */
+	private long loginTokensTime = System.currentTimeMillis();
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param properties
+	 *      program properties
+	 */
+	ConnectionBudget(
+			final SimpleProperties properties)
+	{
+		maxInFlight = limit(properties.getInt("mail.budget.checks"));
+		maxConnectionsPerHost = limit(properties.getInt("mail.budget.connections.per.host"));
+		maxLoginsPerSecond = limit(properties.getInt("mail.budget.logins.per.second"));
+		loginTokens = Math.min(maxLoginsPerSecond, 1.0);
+	}
+
+
+	/**
+	 * Convert the specified configured limit to an effective limit.
+	 *
+	 * @param n
+	 *      configured limit; zero or negative for no limit
+	 * @return
+	 *      effective limit
+	 */
+	private static int limit(
+			final int n)
+	{
+		return (n > 0) ? n : Integer.MAX_VALUE;
+	}
+
+
+	/**
+	 * Queue the specified request, to be returned by {@link #poll()} once it is admitted.
+	 *
+	 * @param r
+	 *      request to be queued
+	 */
+	synchronized void enqueue(
+			final Request r)
+	{
+		final Tenant t = getTenant(r.tenant);
+		r.finishTag = Math.max(virtualTime, t.finishTag) + t.cost;
+		r.sequence = ++sequence;
+		t.finishTag = r.finishTag;
+
+		final Host h = getHost(r.host);
+		(r.login ? h.logins : h.checks).add(r);
+	}
+
+
+	/**
+	 * Remove the specified request from its queue, if it has not been admitted yet.
+	 *
+	 * @param r
+	 *      request to be removed
+	 */
+	synchronized void remove(
+			final Request r)
+	{
+		final Host h = hosts.get(r.host);
+
+		if (h != null)
+		{
+			(r.login ? h.logins : h.checks).remove(r);
+		}
+	}
+
+
+	/**
+	 * Admit the queued request with the earliest finish tag among those that fit
+	 * in the budget, and reserve its share of the budget.
+	 * Cancelled requests are discarded.
+	 *
+	 * @return
+	 *      admitted request, to be released with {@link #release(Request, long)}
+	 *      once it completes; null if no queued request can be admitted now
+	 */
+	synchronized Request poll()
+	{
+		if (numInFlight >= maxInFlight)
+		{
+			return null;
+		}
+
+		replenishLoginTokens();
+
+		Request best = null;
+
+		for (Host h : hosts.values())
+		{
+			final Request c = peek(h.checks);
+			final Request l = peek(h.logins);
+
+			if ((c != null) && h.fits(c) && precedes(c, best))
+			{
+				best = c;
+			}
+
+			if ((l != null) && (loginTokens >= 1.0) && h.fits(l) && precedes(l, best))
+			{
+				best = l;
+			}
+		}
+
+		if (best != null)
+		{
+			final Host h = hosts.get(best.host);
+			(best.login ? h.logins : h.checks).poll();
+			h.numConnections += best.connections;
+			numInFlight++;
+			virtualTime = Math.max(virtualTime, best.finishTag);
+
+			if (best.login)
+			{
+				loginTokens -= 1.0;
+			}
+		}
+
+		return best;
+	}
+
+
+	/**
+	 * Get the time until a queued login that is held back only for lack of
+	 * a login token can be admitted.
+	 *
+	 * @return
+	 *      time in milliseconds; negative if there is no such login
+	 */
+	synchronized long getLoginDelay()
+	{
+		if ((loginTokens >= 1.0) || (numInFlight >= maxInFlight))
+		{
+			return -1L;
+		}
+
+		for (Host h : hosts.values())
+		{
+			final Request l = peek(h.logins);
+
+			if ((l != null) && h.fits(l))
+			{
+				return 1L + (long) Math.ceil((1.0 - loginTokens) * 1000.0 / maxLoginsPerSecond);
+			}
+		}
+
+		return -1L;
+	}
+
+
+	/**
+	 * Release the share of the budget reserved by the specified admitted request,
+	 * and account for its duration in the smoothed duration of its account.
+	 *
+	 * @param r
+	 *      request that has completed
+	 * @param milliseconds
+	 *      duration of the request in milliseconds
+	 */
+	synchronized void release(
+			final Request r,
+			final long milliseconds)
+	{
+		numInFlight--;
+		getHost(r.host).numConnections -= r.connections;
+
+		final Tenant t = tenants.get(r.tenant);
+
+		if (t != null)
+		{
+			t.cost += COST_SMOOTHING * (Math.max(1L, milliseconds) - t.cost);
+		}
+	}
+
+
+	/**
+	 * Reserve a connection on the specified host, for as long as a long-lived
+	 * operation such as an IDLE loop runs. Long-lived operations do not wait;
+	 * they are refused if the host has no connection left.
+	 *
+	 * @param host
+	 *      host name
+	 * @return
+	 *      true if the connection was reserved; false otherwise
+	 */
+	synchronized boolean tryAcquireConnection(
+			final String host)
+	{
+		final Host h = getHost(host);
+
+		if (h.numConnections >= maxConnectionsPerHost)
+		{
+			return false;
+		}
+
+		h.numConnections++;
+		return true;
+	}
+
+
+	/**
+	 * Release a connection reserved by {@link #tryAcquireConnection(String)}.
+	 *
+	 * @param host
+	 *      host name
+	 */
+	synchronized void releaseConnection(
+			final String host)
+	{
+		getHost(host).numConnections--;
+	}
+
+
+	/**
+	 * Forget the state of the specified account, e.g. after it is removed.
+	 *
+	 * @param tenant
+	 *      account
+	 */
+	synchronized void removeTenant(
+			final Object tenant)
+	{
+		tenants.remove(tenant);
+	}
+
+
+	/**
+	 * Get a one-line summary of the budget, for the debug console.
+	 *
+	 * @return
+	 *      summary of the budget
+	 */
+	synchronized String getStatus()
+	{
+		int numQueued = 0;
+		int numQueuedLogins = 0;
+		int numConnections = 0;
+
+		for (Host h : hosts.values())
+		{
+			numQueued += h.checks.size();
+			numQueuedLogins += h.logins.size();
+			numConnections += h.numConnections;
+		}
+
+		return String.format("%d in flight, %d queued (%d logins), %d connections on %d host(s)",
+				numInFlight, numQueued + numQueuedLogins, numQueuedLogins, numConnections, hosts.size());
+	}
+
+
+	/**
+	 * Replenish the login tokens for the time elapsed since they were last replenished.
+	 */
+	private void replenishLoginTokens()
+	{
+		if (maxLoginsPerSecond == Integer.MAX_VALUE)
+		{
+			loginTokens = 1.0;
+			return;
+		}
+
+		final long now = System.currentTimeMillis();
+		loginTokens = Math.min(maxLoginsPerSecond,
+				loginTokens + (now - loginTokensTime) * maxLoginsPerSecond / 1000.0);
+		loginTokensTime = now;
+	}
+
+
+	/**
+	 * Get the first request of the specified queue that has not been cancelled,
+	 * discarding the cancelled ones.
+	 *
+	 * @param q
+	 *      queue
+	 * @return
+	 *      first request that has not been cancelled; null if there is none
+	 */
+	private static Request peek(
+			final PriorityQueue<Request> q)
+	{
+		Request r;
+
+		while (((r = q.peek()) != null) && r.task.isCancelled())
+		{
+			q.poll();
+		}
+
+		return r;
+	}
+
+
+	/**
+	 * Check if the specified request precedes another in weighted fair order.
+	 *
+	 * @param r
+	 *      request
+	 * @param other
+	 *      other request; may be null
+	 * @return
+	 *      true if the request precedes the other request, or if the other request is null
+	 */
+	private static boolean precedes(
+			final Request r,
+			final Request other)
+	{
+		return (other == null) || (r.compareTo(other) < 0);
+	}
+
+
+	/**
+	 * Get the state of the specified host, creating it if necessary.
+	 */
+	private Host getHost(
+			final String host)
+	{
+		Host h = hosts.get(host);
+
+		if (h == null)
+		{
+			h = new Host();
+			hosts.put(host, h);
+		}
+
+		return h;
+	}
+
+
+	/**
+	 * Get the state of the specified account, creating it if necessary.
+	 */
+	private Tenant getTenant(
+			final Object tenant)
+	{
+		Tenant t = tenants.get(tenant);
+
+		if (t == null)
+		{
+			t = new Tenant();
+			tenants.put(tenant, t);
+		}
+
+		return t;
+	}
+
+
+	/******************
+	 * NESTED CLASSES *
+	 ******************/
+
+	/**
+	 * Request for a share of the budget, to run a mail check or a login.
+	 */
+	static class Request
+			implements Comparable<Request>
+	{
+		/** task to be run once the request is admitted */
+		final FutureTask<?> task;
+
+		/** account making the request */
+		final Object tenant;
+
+		/** host to which the task connects */
+		final String host;
+
+		/** number of connections used by the task */
+		final int connections;
+
+		/** does the task log in? */
+		final boolean login;
+
+		/** virtual finish tag */
+		private double finishTag;
+
+		/** sequence number */
+		private long sequence;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param task
+		 *      task to be run once the request is admitted
+		 * @param tenant
+		 *      account making the request
+		 * @param host
+		 *      host to which the task connects
+		 * @param connections
+		 *      number of connections used by the task
+		 * @param login
+		 *      does the task log in?
+		 */
+		Request(
+				final FutureTask<?> task,
+				final Object tenant,
+				final String host,
+				final int connections,
+				final boolean login)
+		{
+			this.task = task;
+			this.tenant = tenant;
+			this.host = host;
+			this.connections = Math.max(1, connections);
+			this.login = login;
+		}
+
+
+		public int compareTo(
+				final Request o)
+		{
+			if (finishTag < o.finishTag) return -1;
+			if (finishTag > o.finishTag) return 1;
+			if (sequence < o.sequence) return -1;
+			if (sequence > o.sequence) return 1;
+			return 0;
+		}
+	}
+
+
+	/**
+	 * State of a host.
+	 */
+	private class Host
+	{
+		/** queued mail checks that do not log in */
+		final PriorityQueue<Request> checks = new PriorityQueue<Request>();
+
+		/** queued mail checks and logins that log in */
+		final PriorityQueue<Request> logins = new PriorityQueue<Request>();
+
+		/** number of connections in use */
+		int numConnections = 0;
+
+
+		/**
+		 * Check if the specified request fits in the connections left on this host.
+		 * A request that needs more connections than the limit is admitted
+		 * when the host has no connection in use, so that it is not queued forever.
+		 *
+		 * @param r
+		 *      request
+		 * @return
+		 *      true if the request fits; false otherwise
+		 */
+		boolean fits(
+				final Request r)
+		{
+			return (numConnections == 0) ||
+					(numConnections <= maxConnectionsPerHost - r.connections);
+		}
+	}
+
+
+	/**
+	 * State of an account.
+	 */
+	private static class Tenant
+	{
+		/** smoothed duration of the account's requests, in milliseconds */
+		double cost = INITIAL_COST_MILLISECONDS;
+
+		/** finish tag of the account's latest queued request */
+		double finishTag = 0.0;
+	}
+}
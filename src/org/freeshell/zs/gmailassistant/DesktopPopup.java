@@ -35,7 +35,6 @@ import javax.swing.BorderFactory;
 import javax.swing.JPanel;
 import javax.swing.JWindow;
 import javax.swing.SwingUtilities;
-import org.freeshell.zs.common.Debug;
 import org.freeshell.zs.common.Debug.ValueCapsule;
 import org.freeshell.zs.common.SlidingAnimator;
 import org.freeshell.zs.common.SwingManipulator;
@@ -47,9 +46,6 @@ import org.freeshell.zs.common.SwingManipulator;
 class DesktopPopup
 		extends JPanel
 {
-	/** refresh interval in milliseconds */
-	private static final long REFRESH_INTERVAL_MILLISECONDS = 200L;
-
 	/** popup duration for first popup message (4 seconds) */
 	private static final long FIRST_POPUP_DURATION_MILLISECONDS = 4000L;
 
@@ -86,11 +82,11 @@ class DesktopPopup
 	/** window that will contain the popup */
 	private final JWindow window = new JWindow();
 
-	/** queued actions to be performed by the timer */
+	/** queued actions to be performed by the popup thread (waiters are notified on every change) */
 	private final Deque<ActionType> actions = new ArrayDeque<ActionType>();
 
 	/** last mail sequence number for each account */
-	private final Map<Account,Integer> lastMailSequenceNumbers = new HashMap<Account,Integer>();
+	private final Map<MailAccount,Integer> lastMailSequenceNumbers = new HashMap<MailAccount,Integer>();
 
 
 	/**
@@ -154,13 +150,23 @@ class DesktopPopup
 				NextPopupEventIteration:
 				while (true)
 				{
-					Debug.sleep(REFRESH_INTERVAL_MILLISECONDS);
-
 					ActionType action;
 					ActionType interrupt;
 
 					synchronized (actions)
 					{
+						while (actions.isEmpty())
+						{
+							try
+							{
+								actions.wait();
+							}
+							catch (InterruptedException e)
+							{
+								/* ignore */
+							}
+						}
+
 						action = actions.pollFirst();
 					}
 
@@ -277,6 +283,9 @@ class DesktopPopup
 
 							if (showMail)
 							{
+								/* resolve snippets of the next few mails while this one is shown */
+								prefetchSnippets(m);
+
 								/* populate popup message */
 								final long duration = System.currentTimeMillis() - m.date.getTime();
 								int n = m.account.getTotalNumMails();
@@ -294,12 +303,12 @@ class DesktopPopup
 								message.append("</b><br/>");
 								message.append(m.from);
 								message.append(" (");
-								message.append(GmailAssistant.timeDurationString(duration));
+								message.append(MailCheckEnvironment.timeDurationString(duration));
 								message.append((duration >= 0) ? " ago" : " in the future");
 								message.append(")<br /><b>");
 								message.append(m.subject);
 								message.append("</b><br /><i>");
-								message.append(m.snippet);
+								message.append(m.getSnippet());
 								message.append("</i></div></html>");
 
 								coordinates = populatePopupMessage(
@@ -420,7 +429,7 @@ class DesktopPopup
 			final Mail mail,
 			final boolean loopback)
 	{
-		Account ac = null;
+		MailAccount ac = null;
 		Mail m = null;
 
 		if (mail == null)
@@ -489,6 +498,46 @@ class DesktopPopup
 	}
 
 
+	/**
+	 * Prefetch the email text snippets of the mails following the specified mail,
+	 * in the order in which they are shown. The number of mails is given by the
+	 * "alert.popup.snippet.prefetch" property. The snippets are resolved on a
+	 * background thread of the scheduler.
+	 *
+	 * @param mail
+	 *     mail currently being shown
+	 */
+	private void prefetchSnippets(
+			final Mail mail)
+	{
+		final int count = parent.properties.getInt("alert.popup.snippet.prefetch");
+		Mail m = mail;
+
+		for (int i = 0; i < count; i++)
+		{
+			m = advanceToNextMail(m, false);
+
+			if (m == null)
+			{
+				break;
+			}
+
+			if (m.requestSnippetPrefetch())
+			{
+				final Mail prefetchMail = m;
+
+				parent.scheduler.execute(new Runnable()
+				{
+					public void run()
+					{
+						prefetchMail.getSnippet();
+					}
+				});
+			}
+		}
+	}
+
+
 	/**
 	 * Show a single popup message.
 	 * This method blocks until the animation has finished; it should NOT be called on the EDT.
@@ -600,7 +649,7 @@ class DesktopPopup
 	 *     is the "Popup" alert active for the specified account?
 	 */
 	void updateMessages(
-			final Account ac,
+			final MailAccount ac,
 			final boolean alertPopup)
 	{
 		if (alertPopup)
@@ -636,6 +685,7 @@ class DesktopPopup
 		synchronized (actions)
 		{
 			actions.addFirst(ActionType.ADVANCE);
+			actions.notifyAll();
 		}
 	}
 
@@ -648,6 +698,7 @@ class DesktopPopup
 		synchronized (actions)
 		{
 			actions.addFirst(ActionType.CANCEL);
+			actions.notifyAll();
 		}
 	}
 
@@ -661,6 +712,7 @@ class DesktopPopup
 		{
 			actions.clear();
 			actions.addLast(ActionType.CANCEL);
+			actions.notifyAll();
 		}
 	}
 
@@ -674,6 +726,7 @@ class DesktopPopup
 			actions.clear();
 			actions.addLast(ActionType.CANCEL);
 			actions.addLast(ActionType.ALL);
+			actions.notifyAll();
 		}
 	}
 
@@ -686,6 +739,7 @@ class DesktopPopup
 		synchronized (actions)
 		{
 			actions.addLast(ActionType.RECENT);
+			actions.notifyAll();
 		}
 	}
 
@@ -698,6 +752,7 @@ class DesktopPopup
 		synchronized (actions)
 		{
 			actions.addLast(ActionType.TEST);
+			actions.notifyAll();
 		}
 	}
 
@@ -712,6 +767,7 @@ class DesktopPopup
 			actions.clear();
 			actions.addLast(ActionType.CANCEL);
 			actions.addLast(ActionType.TERMINATE);
+			actions.notifyAll();
 		}
 	}
 
@@ -728,9 +784,11 @@ class DesktopPopup
 	private ActionType sleepTillInterrupted(
 			final long duration)
 	{
-		if (duration <= 0L)
+		final long end = System.currentTimeMillis() + duration;
+
+		synchronized (actions)
 		{
-			synchronized (actions)
+			while (true)
 			{
 				final ActionType interrupt = actions.peekFirst();
 
@@ -739,35 +797,22 @@ class DesktopPopup
 				{
 					return actions.pollFirst();
 				}
-				else
+
+				final long remaining = end - System.currentTimeMillis();
+
+				if (remaining <= 0L)
 				{
 					return null;
 				}
-			}
-		}
-		else
-		{
-			final long start = System.currentTimeMillis();
 
-			while (true)
-			{
-				if ((System.currentTimeMillis() - start) >= duration)
+				try
 				{
-					return null;
+					actions.wait(remaining);
 				}
-
-				synchronized (actions)
+				catch (InterruptedException e)
 				{
-					final ActionType interrupt = actions.peekFirst();
-
-					if ((interrupt == ActionType.CANCEL) ||
-							(interrupt == ActionType.ADVANCE))
-					{
-						return actions.pollFirst();
-					}
+					/* ignore */
 				}
-
-				Debug.sleep(REFRESH_INTERVAL_MILLISECONDS / 10);
 			}
 		}
 	}
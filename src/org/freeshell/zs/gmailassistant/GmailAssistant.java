@@ -47,11 +47,11 @@ import java.util.Map;
 import java.util.NavigableSet;
 import java.util.NoSuchElementException;
 import java.util.TreeSet;
-import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenuItem;
@@ -84,10 +84,6 @@ final class GmailAssistant
 		extends JFrame
 		implements ListSelectionListener
 {
-	/** default program properties file */
-	private static final String DEFAULT_PROGRAM_PROPERTIES =
-			"/org/freeshell/zs/gmailassistant/resources/program.properties.txt";
-
 	/** refresh interval, in milliseconds */
 	private static final long REFRESH_INTERVAL_MILLISECONDS = 100L;
 
@@ -103,14 +99,17 @@ final class GmailAssistant
 	/** account properties that can be saved and loaded */
 	final SimpleProperties savedAccountProperties;
 
+	/** reader for the profiles to be loaded */
+	final ProfileReader profileReader;
+
 	/** program name */
 	final String name;
 
 	/** list view of email accounts */
 	private final List<Account> accountsList = new ArrayList<Account>();
 
-	/** navigable set view of email accounts */
-	private final NavigableSet<Account> accountsNavigableSet = new TreeSet<Account>();
+	/** navigable set view of the mail checking engines of the email accounts */
+	private final NavigableSet<MailAccount> accountsNavigableSet = new TreeSet<MailAccount>();
 
 	/** mutex lock for <code>accounts</code> and <code>accountsNavigableSet</code> */
 	private final Object accountsLock = new Object();
@@ -145,6 +144,12 @@ final class GmailAssistant
 	/** chime player */
 	final ChimePlayer chime;
 
+	/** environment shared by the mail checks of all accounts */
+	final MailCheckEnvironment environment;
+
+	/** scheduler for the mail checks of all accounts */
+	final MailCheckScheduler scheduler;
+
 	/** last used account ID */
 	private int lastId;
 
@@ -254,69 +259,13 @@ final class GmailAssistant
 		 *************************/
 
 		/* load default program properties */
-		try
-		{
-			properties = new SimpleProperties(ResourceManipulator.resourceAsString(GmailAssistant.DEFAULT_PROGRAM_PROPERTIES));
-		}
-		catch (Exception e)
-		{
-			throw new TerminatingException(String.format("(INTERNAL) Failed to load default program properties (%s).", e.toString()));
-		}
-
-		/* compile regex patterns, if any */
-		final List<String> patterns = new ArrayList<String>();
-
-		for (String k : properties.keySet())
-		{
-			if (k.endsWith(".pattern"))
-			{
-				patterns.add(k);
-			}
-		}
-
-		for (String k: patterns)
-		{
-			final String v = properties.getString(k);
-
-			try
-			{
-				properties.set(k + ".object", Pattern.compile(v));
-			}
-			catch (Exception e)
-			{
-				throw new TerminatingException(String.format("(INTERNAL) Failed to compile regex pattern \"%s\" (%s).", v, e.toString()));
-			}
-		}
-
-		/* load default account properties */
-		try
-		{
-			defaultAccountProperties = new SimpleProperties(ResourceManipulator.resourceAsString(properties.getString("account.properties")));
-		}
-		catch (Exception e)
-		{
-			throw new TerminatingException(String.format("(INTERNAL) Failed to load default account properties (%s).", e.toString()));
-		}
+		properties = MailCheckEnvironment.loadProgramProperties();
 
-		/* keys of program properties that can be saved/loaded in the profile */
-		try
-		{
-			savedProgramProperties = new SimpleProperties(ResourceManipulator.resourceAsString(properties.getString("saved.program.properties")));
-		}
-		catch (Exception e)
-		{
-			throw new TerminatingException(String.format("(INTERNAL) Failed to load saved program properties (%s).", e.toString()));
-		}
-
-		/* keys of account properties that should be saved/loaded in the profile */
-		try
-		{
-			savedAccountProperties = new SimpleProperties(ResourceManipulator.resourceAsString(properties.getString("saved.account.properties")));
-		}
-		catch (Exception e)
-		{
-			throw new TerminatingException(String.format("(INTERNAL) Failed to load saved account properties (%s).", e.toString()));
-		}
+		/* load default account properties, and keys of the properties saved/loaded in the profile */
+		profileReader = new ProfileReader(properties);
+		defaultAccountProperties = profileReader.defaultAccountProperties;
+		savedProgramProperties = profileReader.savedProgramProperties;
+		savedAccountProperties = profileReader.savedAccountProperties;
 
 		/* program name */
 		name = properties.getString("name");
@@ -901,6 +850,26 @@ final class GmailAssistant
 		{
 			logger = new LoggerConsole(String.format("Debug Console - %s", name));
 
+			/* report live threads of the scheduler, and mail check statistics of the accounts */
+			logger.setStatusSource(new LoggerConsole.StatusSource()
+			{
+				public String getStatus()
+				{
+					final StringBuilder sb = new StringBuilder(scheduler.getThreadStatus());
+
+					synchronized (accountsLock)
+					{
+						for (Account ac : accountsList)
+						{
+							sb.append('\n');
+							sb.append(ac.mailAccount.statistics.getSummary(ac.properties.getString("username")));
+						}
+					}
+
+					return sb.toString();
+				}
+			});
+
 			final JMenuItem debugItem = new JMenuItem("Show Debug Console", 'd');
 			debugItem.addActionListener(new ActionListener()
 			{
@@ -910,12 +879,29 @@ final class GmailAssistant
 				}
 			});
 			helpMenu.add(debugItem);
+
+			final JMenuItem saveDebugItem = new JMenuItem("Save Debug Console...", 'v');
+			saveDebugItem.addActionListener(new ActionListener()
+			{
+				public void actionPerformed(ActionEvent e)
+				{
+					saveDebugConsole();
+				}
+			});
+			helpMenu.add(saveDebugItem);
 		}
 		else
 		{
 			logger = null;
 		}
 
+		/***********************************
+		 * INITIALIZE MAIL CHECK SCHEDULER *
+		 ***********************************/
+
+		environment = new MailCheckEnvironment(properties, logger);
+		scheduler = environment.scheduler;
+
 		/*****************
 		 * LOAD PROFILES *
 		 *****************/
@@ -1189,7 +1175,23 @@ final class GmailAssistant
 		{
 			for (Account ac : accountsList)
 			{
-				ac.checkMailNow();
+				ac.mailAccount.checkMailNow();
+			}
+		}
+	}
+
+
+	/**
+	 * Reschedule the next mail check of all accounts,
+	 * e.g. after the mail check interval has been changed.
+	 */
+	void rescheduleMailChecks()
+	{
+		synchronized (accountsLock)
+		{
+			for (Account ac : accountsList)
+			{
+				ac.mailAccount.scheduleMailCheck();
 			}
 		}
 	}
@@ -1290,7 +1292,7 @@ final class GmailAssistant
 				synchronized (accountsLock)
 				{
 					accountsList.add(ac);
-					accountsNavigableSet.add(ac);
+					accountsNavigableSet.add(ac.mailAccount);
 				}
 
 				refreshTotalUnreadMailCount();
@@ -1337,7 +1339,7 @@ final class GmailAssistant
 			for (Account ac : accountsToRemove)
 			{
 				accountsList.remove(ac);
-				accountsNavigableSet.remove(ac);
+				accountsNavigableSet.remove(ac.mailAccount);
 				ac.removeAccount();
 			}
 		}
@@ -1575,6 +1577,35 @@ final class GmailAssistant
 	}
 
 
+	/**
+	 * Save the debug console, including the mail check statistics, to a file chosen by the user.
+	 * This method must run on the EDT.
+	 */
+	private void saveDebugConsole()
+	{
+		final JFileChooser fileChooser = new JFileChooser(new File("."));
+		fileChooser.setSelectedFile(new File(String.format("%s-debug.txt", name)));
+
+		if (fileChooser.showSaveDialog(logger) != JFileChooser.APPROVE_OPTION)
+		{
+			return;
+		}
+
+		try
+		{
+			logger.save(fileChooser.getSelectedFile()); /* throws IOException */
+		}
+		catch (Exception e)
+		{
+			SwingManipulator.showErrorDialog(
+					logger,
+					String.format("Save Debug Console - %s", name),
+					String.format("Failed to save the debug console to \"%s\" (%s).",
+					fileChooser.getSelectedFile().getPath(), e.toString()));
+		}
+	}
+
+
 	/**
 	 * Close the program.
 	 * This method can be called on any thread.
@@ -1636,7 +1667,7 @@ final class GmailAssistant
 	 * @return
 	 *     first account; null if there are no accounts
 	 */
-	Account getFirstAccount()
+	MailAccount getFirstAccount()
 	{
 		try
 		{
@@ -1659,7 +1690,7 @@ final class GmailAssistant
 	 * @return
 	 *     last account; null if there are no accounts
 	 */
-	Account getLastAccount()
+	MailAccount getLastAccount()
 	{
 		try
 		{
@@ -1684,8 +1715,8 @@ final class GmailAssistant
 	 * @return
 	 *     next account that comes after <code>ac</code>; null if there is none
 	 */
-	Account getNextAccount(
-			final Account ac)
+	MailAccount getNextAccount(
+			final MailAccount ac)
 	{
 		synchronized (accountsLock)
 		{
@@ -1703,8 +1734,8 @@ final class GmailAssistant
 	 * @return
 	 *     previous account that comes before <code>ac</code>; null if there is none
 	 */
-	Account getPreviousAccount(
-			final Account ac)
+	MailAccount getPreviousAccount(
+			final MailAccount ac)
 	{
 		synchronized (accountsLock)
 		{
@@ -1844,50 +1875,23 @@ final class GmailAssistant
 
 
 	/**
-	 * Provide a string description for a specified time duration.
+	 * Record the specified profile file as the profile of every account, after the accounts
+	 * have been saved to it, so that their mail summary caches are kept next to it from the
+	 * next mail check on.
 	 *
-	 * @param millis
-	 *      time duration in milliseconds
-	 * @return
-	 *      string description for the specified time duration (e.g. "5 minutes", "1 hour")
+	 * @param f
+	 *     profile file
 	 */
-	static String timeDurationString(
-			final long millis)
+	void setProfileFile(
+			final File f)
 	{
-		String s;
-
-		final long t = (millis == Long.MIN_VALUE) ? Long.MAX_VALUE : Math.abs(millis);
-		final long seconds = t / 1000L;
-		final long minutes = t / 60000L;
-		final long hours = t / 3600000L;
-		final long days = t / 86400000L;
-
-		if (days >= 2)
-		{
-			s = days + " days";
-		}
-		else if (hours >= 2)
-		{
-			s = hours + " hours";
-		}
-		else if (minutes >= 2)
-		{
-			s = minutes + " minutes";
-		}
-		else if (seconds >= 2)
-		{
-			s = seconds + " seconds";
-		}
-		else if (t > 0)
-		{
-			s = "1 second";
-		}
-		else
+		synchronized (accountsLock)
 		{
-			s = "0 seconds";
+			for (Account ac : accountsList)
+			{
+				ac.properties.set("profile.file.object", f);
+			}
 		}
-
-		return s;
 	}
 
 	/******************
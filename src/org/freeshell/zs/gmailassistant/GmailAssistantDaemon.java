@@ -0,0 +1,1115 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.freeshell.zs.gmailassistant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.freeshell.zs.common.Debug;
+import org.freeshell.zs.common.Logger;
+import org.freeshell.zs.common.SimpleProperties;
+import org.freeshell.zs.common.TerminatingException;
+
+
+/**
+ * Headless notifier for many Gmail and Google Apps email accounts.
+ * The accounts are loaded from profiles, or specified on the command line, and checked
+ * by the same mail checking engine as the GUI (see {@link MailAccount}), without loading
+ * AWT or Swing. New unread mails, logins, and errors are reported as events, one JSON
+ * object per line, on the standard output, a file, or a local TCP port.
+ * This is an alternative main class of the program.
+ */
+final class GmailAssistantDaemon
+{
+	/** environment variable holding the profile password */
+	private static final String PASSWORD_VARIABLE = "GMAILASSISTANT_PASSWORD";
+
+	/** empty password for decrypting */
+	private static final char[] EMPTY_PASSWORD = new char[0];
+
+	/** time format string for debugging messages (yyyy-MM-dd HH:mm:ss.SSS) */
+	private static final String TIME_FORMAT_STRING = "%1$tF %1$tT.%1$tL";
+
+	/** character set of the events */
+	private static final String CHARSET = "UTF-8";
+
+	/** maximum number of events waiting to be written to an output */
+	private static final int EVENT_QUEUE_CAPACITY = 1000;
+
+	/** time allowed for a TCP client to send the access token, in milliseconds */
+	private static final int TOKEN_TIMEOUT_MILLISECONDS = 10000;
+
+	/** time allowed for the outputs to write the pending events when the daemon stops, in milliseconds */
+	private static final long STOP_TIMEOUT_MILLISECONDS = 2000L;
+
+	/** environment shared by the mail checks of all accounts */
+	private final MailCheckEnvironment environment;
+
+	/** include the email text snippets of new mails in the events? */
+	private final boolean snippets;
+
+	/** outputs to which the events are written */
+	private final List<EventWriter> writers = new ArrayList<EventWriter>();
+
+	/** mail checking engines of the accounts */
+	private final List<MailAccount> accounts = new ArrayList<MailAccount>();
+
+
+	/**
+	 * Main entry point for the daemon.
+	 *
+	 * @param args
+	 *      command-line arguments
+	 */
+	public static void main(
+			final String[] args)
+	{
+		System.setProperty("java.awt.headless", "true");
+
+		try
+		{
+			run(args);
+		}
+		catch (TerminatingException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(e.getExitCode());
+		}
+		catch (Exception e)
+		{
+			System.err.println(String.format("Failed to run daemon because of an unexpected error:\n%s\n\n%s\n\n%s",
+					e.toString(), Debug.getSystemInformationString(), Debug.getStackTraceString(e)));
+			System.exit(1);
+		}
+	}
+
+
+	/**
+	 * Process the command-line arguments, load the accounts, and check them for unread mails
+	 * until the program is terminated.
+	 *
+	 * @param args
+	 *      command-line arguments
+	 * @throws java.lang.Exception
+	 *      if the accounts cannot be loaded, or the events cannot be written
+	 */
+	private static void run(
+			final String[] args)
+			throws Exception
+	{
+		/**********************************
+		 * PROCESS COMMAND-LINE ARGUMENTS *
+		 **********************************/
+
+		final List<File> profileFiles = new ArrayList<File>();
+		final List<String> accountSwitches = new ArrayList<String>();
+		File passwordFile = null;
+		File outputFile = null;
+		File tokenFile = null;
+		int port = -1;
+		boolean snippetsSwitch = false;
+		boolean debugSwitch = false;
+
+		for (String s : args)
+		{
+			final String a = s.substring(s.indexOf(':') + 1);
+
+			if (s.startsWith("--load:"))
+			{
+				/* "load profile" */
+				profileFiles.add(new File(checkParameter(s, a)));
+			}
+			else if (s.startsWith("--account:"))
+			{
+				/* account specified as "username:password-file" */
+				accountSwitches.add(checkParameter(s, a));
+			}
+			else if (s.startsWith("--passwordfile:"))
+			{
+				passwordFile = new File(checkParameter(s, a));
+			}
+			else if (s.startsWith("--output:"))
+			{
+				outputFile = new File(checkParameter(s, a));
+			}
+			else if (s.startsWith("--tokenfile:"))
+			{
+				tokenFile = new File(checkParameter(s, a));
+			}
+			else if (s.startsWith("--port:"))
+			{
+				try
+				{
+					port = Integer.parseInt(checkParameter(s, a));
+				}
+				catch (NumberFormatException e)
+				{
+					throw new TerminatingException(String.format("\"%s\" is not a valid port number.", a));
+				}
+			}
+			else if ("--snippets".equals(s))
+			{
+				snippetsSwitch = true;
+			}
+			else if ("--debug".equals(s))
+			{
+				debugSwitch = true;
+			}
+			else
+			{
+				/* invalid switch */
+				throw new TerminatingException(String.format("\"%s\" is not a valid command-line switch.", s));
+			}
+		}
+
+		if (profileFiles.isEmpty() && accountSwitches.isEmpty())
+		{
+			throw new TerminatingException("No accounts: at least one profile (--load:\"myprofile.ga\") " +
+					"or account (--account:\"username:passwordfile\") must be specified.");
+		}
+
+		/*************************
+		 * INITIALIZE PROPERTIES *
+		 *************************/
+
+		final SimpleProperties properties = MailCheckEnvironment.loadProgramProperties();
+		final ProfileReader profileReader = new ProfileReader(properties);
+		final List<SimpleProperties> accountsProperties = new ArrayList<SimpleProperties>();
+
+		for (File f : profileFiles)
+		{
+			accountsProperties.addAll(loadProfile(profileReader, f, passwordFile));
+		}
+
+		for (String s : accountSwitches)
+		{
+			final int i = s.indexOf(':');
+
+			if (i <= 0)
+			{
+				throw new TerminatingException(String.format(
+						"Invalid --account parameter \"%s\": it must be in the form username:passwordfile.", s));
+			}
+
+			final SimpleProperties p = new SimpleProperties(profileReader.defaultAccountProperties);
+			p.setString("username", s.substring(0, i));
+			p.setString("password", readPassword(new File(s.substring(i + 1))));
+			p.setBoolean("enabled", true);
+			accountsProperties.add(p);
+		}
+
+		/* proxy settings, as in the GUI */
+		Debug.setSystemProperty("socksProxyHost", properties.getString("proxy.host"));
+		Debug.setSystemProperty("socksProxyPort", properties.getString("proxy.port"));
+		Debug.setSystemProperty("java.net.socks.username", properties.getString("proxy.username"));
+		Debug.setSystemProperty("java.net.socks.password", properties.getString("proxy.password"));
+
+		/****************
+		 * START DAEMON *
+		 ****************/
+
+		final GmailAssistantDaemon daemon = new GmailAssistantDaemon(
+				new MailCheckEnvironment(properties, debugSwitch ? new StreamLogger() : null),
+				snippetsSwitch);
+
+		if (outputFile != null)
+		{
+			daemon.addOutputStream(new FileOutputStream(outputFile, true));
+		}
+
+		if (port >= 0)
+		{
+			daemon.listen(port, (tokenFile == null) ? null : readPassword(tokenFile));
+		}
+
+		if ((outputFile == null) && (port < 0))
+		{
+			daemon.addOutputStream(System.out);
+		}
+
+		daemon.start(accountsProperties);
+
+		/* the mail checker threads are daemon threads; block until the program is terminated */
+		while (true)
+		{
+			Debug.sleep(Long.MAX_VALUE);
+		}
+	}
+
+
+	/**
+	 * Check that the parameter of the specified command-line switch is not empty.
+	 *
+	 * @param s
+	 *      command-line switch
+	 * @param a
+	 *      parameter of the switch
+	 * @return
+	 *      parameter of the switch
+	 */
+	private static String checkParameter(
+			final String s,
+			final String a)
+	{
+		if (a.isEmpty())
+		{
+			throw new TerminatingException(String.format("Empty parameter for command-line switch \"%s\".", s));
+		}
+
+		return a;
+	}
+
+
+	/**
+	 * Load the account properties from the specified profile.
+	 * The profile password, if required, is read from the password file if specified,
+	 * and from the GMAILASSISTANT_PASSWORD environment variable otherwise.
+	 *
+	 * @param profileReader
+	 *      profile reader
+	 * @param f
+	 *      profile file
+	 * @param passwordFile
+	 *      file containing the profile password; null if not specified
+	 * @return
+	 *      properties of the accounts in the profile
+	 * @throws java.io.IOException
+	 *      if the password file cannot be read
+	 */
+	private static List<SimpleProperties> loadProfile(
+			final ProfileReader profileReader,
+			final File f,
+			final File passwordFile)
+			throws IOException
+	{
+		final ProfileReader.Profile profile = profileReader.read(f);
+		char[] password = EMPTY_PASSWORD;
+
+		try
+		{
+			if (profile.passwordProtected)
+			{
+				if (passwordFile != null)
+				{
+					password = readPassword(passwordFile).toCharArray();
+				}
+				else if (System.getenv(PASSWORD_VARIABLE) != null)
+				{
+					password = System.getenv(PASSWORD_VARIABLE).toCharArray();
+				}
+				else
+				{
+					throw new TerminatingException(String.format(
+							"Profile \"%s\" is protected by a password.\nPlease specify the password in the %s " +
+							"environment variable, or in a file (--passwordfile:\"password.txt\").",
+							f.getPath(), PASSWORD_VARIABLE));
+				}
+			}
+
+			final List<String> errors = new ArrayList<String>();
+			final List<SimpleProperties> accountsProperties = profileReader.parse(f, profileReader.decrypt(profile, password), errors);
+
+			for (String s : errors)
+			{
+				System.err.println(String.format("Profile \"%s\": %s", f.getPath(), s));
+			}
+
+			return accountsProperties;
+		}
+		finally
+		{
+			Arrays.fill(password, '\0');
+			profile.clear();
+		}
+	}
+
+
+	/**
+	 * Read a password from the first line of the specified file.
+	 * Passwords are not given on the command line, where other users may see them.
+	 *
+	 * @param f
+	 *      password file
+	 * @return
+	 *      password
+	 * @throws java.io.IOException
+	 *      if the file cannot be read
+	 */
+	private static String readPassword(
+			final File f)
+			throws IOException
+	{
+		final BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), CHARSET));
+
+		try
+		{
+			final String s = r.readLine();
+			return (s == null) ? "" : s;
+		}
+		finally
+		{
+			r.close();
+		}
+	}
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param environment
+	 *      environment shared by the mail checks of all accounts
+	 * @param snippets
+	 *      include the email text snippets of new mails in the events?
+	 */
+	private GmailAssistantDaemon(
+			final MailCheckEnvironment environment,
+			final boolean snippets)
+	{
+		this.environment = environment;
+		this.snippets = snippets;
+	}
+
+
+	/**
+	 * Write the events to the specified output stream.
+	 * If the output stream falls behind, the threads reporting the events wait for it.
+	 *
+	 * @param out
+	 *      output stream
+	 * @throws java.io.IOException
+	 *      if the character set of the events is not supported
+	 */
+	private void addOutputStream(
+			final OutputStream out)
+			throws IOException
+	{
+		new EventWriter(out, null, null).start();
+	}
+
+
+	/**
+	 * Listen on the specified TCP port of the loopback interface, and write the events
+	 * to every client that connects, from the time it connects (or, if an access token
+	 * is required, from the time it has sent the token).
+	 * A client that falls behind by more than a bounded number of events is disconnected,
+	 * so that it cannot hold up the mail checks.
+	 *
+	 * @param port
+	 *      TCP port
+	 * @param token
+	 *      access token to be sent by each client as its first line; null if not required
+	 * @throws java.io.IOException
+	 *      if the port cannot be listened on
+	 */
+	private void listen(
+			final int port,
+			final String token)
+			throws IOException
+	{
+		final ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+
+		final Thread t = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while (true)
+				{
+					try
+					{
+						final Socket socket = serverSocket.accept(); /* throws IOException */
+						new EventWriter(socket.getOutputStream(), socket, token).start();
+
+						if (environment.debug)
+						{
+							environment.logger.log("Event client %s connected", socket.getRemoteSocketAddress());
+						}
+					}
+					catch (IOException e)
+					{
+						if (environment.debug)
+						{
+							environment.logger.log("Event client connection failure (%s)", e.toString());
+						}
+					}
+				}
+			}
+		},
+		"Event listener");
+
+		t.setDaemon(true);
+		t.start();
+	}
+
+
+	/**
+	 * Create the mail checking engines of the specified accounts, and start checking
+	 * the enabled ones for unread mails.
+	 *
+	 * @param accountsProperties
+	 *      properties of the accounts
+	 */
+	private void start(
+			final List<SimpleProperties> accountsProperties)
+	{
+		emit("event", "start",
+				"accounts", accountsProperties.size());
+
+		for (SimpleProperties p : accountsProperties)
+		{
+			final MailAccount ac = new MailAccount(environment, accounts.size() + 1, p, new AccountListener());
+			accounts.add(ac);
+
+			if (p.getBoolean("enabled") && p.getString("password").isEmpty())
+			{
+				p.setBoolean("enabled", false);
+				emit("event", "error",
+						"account", p.getString("username"),
+						"message", "No password saved in the profile");
+			}
+
+			/* the first mail checks of the accounts are staggered in the order they are started */
+			ac.start();
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+		{
+			public void run()
+			{
+				emit("event", "stop");
+
+				/* the events are written by daemon threads; give them a chance to finish */
+				final long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLISECONDS;
+				final List<EventWriter> ws;
+
+				synchronized (writers)
+				{
+					ws = new ArrayList<EventWriter>(writers);
+				}
+
+				for (EventWriter w : ws)
+				{
+					w.awaitWritten(deadline);
+				}
+			}
+		}));
+	}
+
+
+	/**
+	 * Write an event, consisting of the specified key-value pairs, as a single-line JSON object.
+	 * The event is queued for each output, and written by the thread of that output, so that
+	 * a slow TCP client cannot block the caller (typically a mail checker thread). Outputs
+	 * that fail, e.g. clients that have disconnected or fallen behind, are dropped.
+	 * This method can be called on any thread.
+	 *
+	 * @param keyValues
+	 *      keys (strings) and values (strings, numbers, booleans, or null), alternately;
+	 *      the time of the event is added
+	 */
+	private void emit(
+			final Object... keyValues)
+	{
+		final StringBuilder sb = new StringBuilder("{");
+
+		for (int i = 0; i < keyValues.length; i += 2)
+		{
+			appendJson(sb, keyValues[i]);
+			sb.append(':');
+			appendJson(sb, keyValues[i + 1]);
+			sb.append(',');
+		}
+
+		sb.append("\"time\":");
+		sb.append(System.currentTimeMillis());
+		sb.append("}\n");
+
+		final String event = sb.toString();
+		final List<EventWriter> overflowed = new ArrayList<EventWriter>();
+
+		/* events are queued in the same order for every output */
+		synchronized (writers)
+		{
+			for (EventWriter w : writers)
+			{
+				if (!w.offer(event))
+				{
+					overflowed.add(w);
+				}
+			}
+		}
+
+		for (EventWriter w : overflowed)
+		{
+			w.drop("too many pending events");
+		}
+	}
+
+
+	/**
+	 * Append the specified value to the given string builder in JSON notation.
+	 *
+	 * @param sb
+	 *      string builder
+	 * @param value
+	 *      string, number, boolean, or null
+	 */
+	private static void appendJson(
+			final StringBuilder sb,
+			final Object value)
+	{
+		if (!(value instanceof String))
+		{
+			sb.append(value);
+			return;
+		}
+
+		final String s = (String) value;
+		sb.append('"');
+
+		for (int i = 0; i < s.length(); i++)
+		{
+			final char c = s.charAt(i);
+
+			switch (c)
+			{
+				case '"':  sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n");  break;
+				case '\r': sb.append("\\r");  break;
+				case '\t': sb.append("\\t");  break;
+
+				default:
+					if ((c < 0x20) || (c == 0x2028) || (c == 0x2029))
+					{
+						sb.append(String.format("\\u%04x", (int) c));
+					}
+					else
+					{
+						sb.append(c);
+					}
+			}
+		}
+
+		sb.append('"');
+	}
+
+	/******************
+	 * NESTED CLASSES *
+	 ******************/
+
+	/**
+	 * Listener that reports the changes to an account as events.
+	 * Only changes of interest are reported: new unread mails, changes in the number of
+	 * unread mails, logins, and new errors.
+	 */
+	private class AccountListener
+			implements MailAccount.Listener
+	{
+		/** last error message reported; empty if none */
+		private String lastError = "";
+
+		/** last number of unread mails reported; -1 if none */
+		private int lastUnreadMails = -1;
+
+		/** reports of new mails waiting for their snippets, in order; the first one is being run */
+		private final Queue<Runnable> reports = new LinkedList<Runnable>();
+
+		/** task running the queued reports in order, on a background thread of the scheduler */
+		private final Runnable reporter = new Runnable()
+		{
+			public void run()
+			{
+				while (true)
+				{
+					final Runnable r;
+
+					synchronized (AccountListener.this)
+					{
+						r = reports.peek();
+					}
+
+					try
+					{
+						r.run();
+					}
+					catch (RuntimeException e)
+					{
+						if (environment.debug)
+						{
+							environment.logger.log("Failed to report new mails (%s)", e.toString());
+						}
+					}
+
+					synchronized (AccountListener.this)
+					{
+						reports.remove();
+
+						if (reports.isEmpty())
+						{
+							return;
+						}
+					}
+				}
+			}
+		};
+
+
+		/**
+		 * Report a new error, if any.
+		 */
+		public synchronized void statusChanged(
+				final MailAccount ac)
+		{
+			final String error = ac.properties.getBoolean("error") ? ac.properties.getString("error.message") : "";
+
+			if (!error.isEmpty() && !error.equals(lastError))
+			{
+				emit("event", "error",
+						"account", ac.properties.getString("username"),
+						"message", error);
+			}
+
+			lastError = error;
+		}
+
+
+		/**
+		 * Nothing to report; the number of unread mails is reported with the new mails.
+		 */
+		public void unreadMailsChanged(
+				final MailAccount ac)
+		{
+			/* do nothing */
+		}
+
+
+		/**
+		 * Report the new unread mails, and the number of unread mails if it has changed.
+		 * The email text snippets, if requested, are fetched on a background thread of
+		 * the scheduler, not on the mail checker thread; the reports of each account are
+		 * still emitted in order.
+		 */
+		public synchronized void mailsUpdated(
+				final MailAccount ac,
+				final List<Mail> newMails)
+		{
+			final String username = ac.properties.getString("username");
+			final int unreadMails = ac.getTotalNumMails();
+			final boolean unreadChanged = (unreadMails != lastUnreadMails);
+			lastUnreadMails = unreadMails;
+
+			final Runnable report = new Runnable()
+			{
+				public void run()
+				{
+					for (Mail m : newMails)
+					{
+						emit("event", "mail",
+								"account", username,
+								"from", m.from,
+								"to", m.to,
+								"subject", m.subject,
+								"date", m.date.getTime(),
+								"gmailMessageId", (m.gmailMessageId < 0) ? null : Long.toString(m.gmailMessageId),
+								"snippet", snippets ? m.getSnippet() : null);
+					}
+
+					if (unreadChanged)
+					{
+						emit("event", "unread",
+								"account", username,
+								"count", unreadMails);
+					}
+				}
+			};
+
+			if (!snippets && reports.isEmpty())
+			{
+				/* nothing to fetch, and no earlier report to wait for */
+				report.run();
+				return;
+			}
+
+			reports.add(report);
+
+			if (reports.size() == 1)
+			{
+				environment.scheduler.execute(reporter);
+			}
+		}
+
+
+		/**
+		 * Nothing to report; the result is reported when the login completes.
+		 */
+		public void loginStarted(
+				final MailAccount ac)
+		{
+			/* do nothing */
+		}
+
+
+		/**
+		 * Report the result of the login.
+		 */
+		public synchronized void loginCompleted(
+				final MailAccount ac,
+				final String error)
+		{
+			emit("event", "login",
+					"account", ac.properties.getString("username"),
+					"error", error);
+		}
+	}
+
+
+	/**
+	 * Output to which the events are written, by a thread of its own.
+	 * The events waiting to be written are held in a bounded queue. When the queue is full,
+	 * a TCP client is dropped, whereas other outputs make the reporting thread wait.
+	 */
+	private class EventWriter
+			implements Runnable
+	{
+		/** writer for the output stream */
+		private final Writer writer;
+
+		/** socket of a TCP client; null for other outputs */
+		private final Socket socket;
+
+		/** access token to be sent by the TCP client; null if not required */
+		private final String token;
+
+		/** events waiting to be written */
+		private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(EVENT_QUEUE_CAPACITY);
+
+		/** number of events queued but not yet written (guarded by this) */
+		private int pending = 0;
+
+		/** thread writing the events */
+		private final Thread thread;
+
+		/** true if this output has been dropped */
+		private volatile boolean dropped = false;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param out
+		 *      output stream
+		 * @param socket
+		 *      socket of a TCP client; null for other outputs
+		 * @param token
+		 *      access token to be sent by the TCP client; null if not required
+		 * @throws java.io.IOException
+		 *      if the character set of the events is not supported
+		 */
+		EventWriter(
+				final OutputStream out,
+				final Socket socket,
+				final String token)
+				throws IOException
+		{
+			this.writer = new OutputStreamWriter(out, CHARSET);
+			this.socket = socket;
+			this.token = token;
+
+			thread = new Thread(this, (socket == null) ? "Event writer" : ("Event writer " + socket.getRemoteSocketAddress()));
+			thread.setDaemon(true);
+		}
+
+
+		/**
+		 * Start writing the events to this output.
+		 * A TCP client is added to the outputs only once it has sent the access token, if required.
+		 */
+		void start()
+		{
+			if (token == null)
+			{
+				synchronized (writers)
+				{
+					writers.add(this);
+				}
+			}
+
+			thread.start();
+		}
+
+
+		/**
+		 * Queue the specified event for writing.
+		 * This method is called with the lock on the list of outputs held.
+		 *
+		 * @param event
+		 *      event
+		 * @return
+		 *      true if the event has been queued; false if this TCP client is to be dropped
+		 */
+		boolean offer(
+				final String event)
+		{
+			synchronized (this)
+			{
+				pending++;
+			}
+
+			if (socket != null)
+			{
+				return queue.offer(event);
+			}
+
+			try
+			{
+				/* not an unbounded put: this output may be dropping itself, which needs the lock we hold */
+				while (!queue.offer(event, 100L, TimeUnit.MILLISECONDS)) /* throws InterruptedException */
+				{
+					if (dropped)
+					{
+						break;
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				/* event not written; keep the interrupted status for the caller */
+				Thread.currentThread().interrupt();
+				written();
+			}
+
+			return true;
+		}
+
+
+		/**
+		 * Stop writing the events to this output, and close it.
+		 * This method can be called on any thread.
+		 *
+		 * @param reason
+		 *      reason for dropping the output, for debugging
+		 */
+		void drop(
+				final String reason)
+		{
+			synchronized (this)
+			{
+				if (dropped)
+				{
+					return;
+				}
+
+				dropped = true;
+			}
+
+			synchronized (writers)
+			{
+				writers.remove(this);
+			}
+
+			if (environment.debug)
+			{
+				environment.logger.log("Event output dropped (%s)", reason);
+			}
+
+			thread.interrupt();
+
+			try
+			{
+				if (socket != null)
+				{
+					/* unblocks the thread if it is blocked writing to the client */
+					socket.close();
+				}
+				else
+				{
+					writer.close();
+				}
+			}
+			catch (Exception e)
+			{
+				/* ignore */
+			}
+
+			synchronized (this)
+			{
+				pending = 0;
+				notifyAll();
+			}
+		}
+
+
+		/**
+		 * Wait until the queued events have been written, or the specified deadline passes.
+		 *
+		 * @param deadline
+		 *      deadline, as a system time in milliseconds
+		 */
+		synchronized void awaitWritten(
+				final long deadline)
+		{
+			long remaining;
+
+			while ((pending > 0) && ((remaining = deadline - System.currentTimeMillis()) > 0L))
+			{
+				try
+				{
+					wait(remaining);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+			}
+		}
+
+
+		/**
+		 * Note that a queued event has been written, or discarded.
+		 */
+		private synchronized void written()
+		{
+			if (pending > 0)
+			{
+				pending--;
+			}
+
+			notifyAll();
+		}
+
+
+		/**
+		 * Authenticate the TCP client if required, then write the queued events until
+		 * the output fails or is dropped.
+		 */
+		public void run()
+		{
+			try
+			{
+				if (token != null)
+				{
+					authenticate(); /* throws IOException */
+
+					synchronized (writers)
+					{
+						writers.add(this);
+					}
+				}
+				else if (socket != null)
+				{
+					socket.shutdownInput(); /* throws IOException */
+				}
+
+				while (true)
+				{
+					final String event = queue.take(); /* throws InterruptedException */
+					writer.write(event); /* throws IOException */
+
+					/* flush once the queue is empty, so that a burst of events is written together */
+					if (queue.isEmpty())
+					{
+						writer.flush(); /* throws IOException */
+					}
+
+					written();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				drop("interrupted");
+			}
+			catch (IOException e)
+			{
+				drop(e.toString());
+			}
+		}
+
+
+		/**
+		 * Read the access token from the TCP client, which must send it as its first line
+		 * within a limited time.
+		 *
+		 * @throws java.io.IOException
+		 *      if the client does not send the access token
+		 */
+		private void authenticate()
+				throws IOException
+		{
+			socket.setSoTimeout(TOKEN_TIMEOUT_MILLISECONDS);
+			final BufferedReader r = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+
+			if (!token.equals(r.readLine()))
+			{
+				throw new IOException("invalid access token");
+			}
+
+			socket.shutdownInput();
+		}
+	}
+
+
+	/**
+	 * Logger that writes timestamped debugging messages to the standard error stream.
+	 */
+	private static class StreamLogger
+			implements Logger
+	{
+		/**
+		 * Log the specified message.
+		 */
+		public void log(
+				final String format,
+				final Object... args)
+		{
+			final String message = String.format(
+					Locale.ENGLISH,
+					"[" + TIME_FORMAT_STRING + "] %2$s",
+					new Date(), String.format(format, args));
+
+			synchronized (System.err)
+			{
+				System.err.println(message);
+			}
+		}
+	}
+}
@@ -25,8 +25,10 @@ package org.freeshell.zs.gmailassistant;
 import java.awt.Robot;
 import java.awt.Toolkit;
 import java.awt.event.KeyEvent;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import org.freeshell.zs.common.Debug;
 
 
@@ -41,11 +43,11 @@ class KeyboardLedBlinker
 	/** number of blinking iterations when performing a test */
 	private static final int TEST_ITERATIONS = 2;
 
-	/** queued actions to be performed by the timer */
-	private final Queue<ActionType> actions = new ArrayDeque<ActionType>();
+	/** queued actions to be performed by the thread for blinking keyboard LED */
+	private final BlockingQueue<ActionType> actions = new LinkedBlockingQueue<ActionType>();
 
-	/** has the thread for blinking keyboard LED been terminated? */
-	private volatile boolean threadTerminated = false;
+	/** released when the thread for blinking keyboard LED has been terminated */
+	private final CountDownLatch threadTerminated = new CountDownLatch(1);
 
 
 	/**
@@ -151,13 +153,28 @@ class KeyboardLedBlinker
 				/* is LED currently blinking? */
 				boolean blinking = false;
 
+				/* time at which the LED state is next toggled while blinking */
+				long nextToggleTime = 0L;
+
 				while (true)
 				{
-					final ActionType action;
+					/* wait for the next action, or until the LED state is due to be toggled */
+					ActionType action = null;
 
-					synchronized (actions)
+					try
 					{
-						action = actions.poll();
+						if (blinking)
+						{
+							action = actions.poll(nextToggleTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+						}
+						else
+						{
+							action = actions.take();
+						}
+					}
+					catch (InterruptedException e)
+					{
+						/* ignore */
 					}
 
 					if (action == ActionType.START)
@@ -169,6 +186,7 @@ class KeyboardLedBlinker
 							savedScrollLockState = getLockingKeyState(toolkit, KeyEvent.VK_SCROLL_LOCK);
 							state = false;
 							blinking = true;
+							nextToggleTime = 0L;
 						}
 					}
 					else if (action == ActionType.STOP)
@@ -201,17 +219,16 @@ class KeyboardLedBlinker
 					}
 					else if (action == ActionType.TERMINATE)
 					{
-						threadTerminated = true;
+						threadTerminated.countDown();
 						return;
 					}
 
-					if (blinking)
+					if (blinking && (System.currentTimeMillis() >= nextToggleTime))
 					{
 						state = !state;
 						setKeyboardLedState(state);
+						nextToggleTime = System.currentTimeMillis() + BLINK_INTERVAL_MILLISECONDS;
 					}
-
-					Debug.sleep(BLINK_INTERVAL_MILLISECONDS);
 				}
 			}
 		}).start();
@@ -223,10 +240,7 @@ class KeyboardLedBlinker
 	 */
 	void start()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.START);
-		}
+		actions.add(ActionType.START);
 	}
 
 
@@ -235,10 +249,7 @@ class KeyboardLedBlinker
 	 */
 	void stop()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.STOP);
-		}
+		actions.add(ActionType.STOP);
 	}
 
 
@@ -247,10 +258,7 @@ class KeyboardLedBlinker
 	 */
 	void test()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.TEST);
-		}
+		actions.add(ActionType.TEST);
 	}
 
 
@@ -259,11 +267,8 @@ class KeyboardLedBlinker
 	 */
 	void cancelAll()
 	{
-		synchronized (actions)
-		{
-			actions.clear();
-			actions.add(ActionType.STOP);
-		}
+		actions.clear();
+		actions.add(ActionType.STOP);
 	}
 
 
@@ -273,16 +278,17 @@ class KeyboardLedBlinker
 	 */
 	void terminate()
 	{
-		synchronized (actions)
+		actions.clear();
+		actions.add(ActionType.STOP);
+		actions.add(ActionType.TERMINATE);
+
+		try
 		{
-			actions.clear();
-			actions.add(ActionType.STOP);
-			actions.add(ActionType.TERMINATE);
+			threadTerminated.await();
 		}
-
-		while (!threadTerminated)
+		catch (InterruptedException e)
 		{
-			Debug.sleep(BLINK_INTERVAL_MILLISECONDS / 10);
+			/* ignore */
 		}
 	}
 
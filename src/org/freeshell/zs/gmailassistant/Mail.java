@@ -22,6 +22,13 @@
 
 package org.freeshell.zs.gmailassistant;
 
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.BODYSTRUCTURE;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.Deque;
@@ -33,6 +40,7 @@ import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
 import javax.mail.internet.NewsAddress;
 import org.freeshell.zs.common.HtmlManipulator;
 
@@ -43,7 +51,13 @@ import org.freeshell.zs.common.HtmlManipulator;
  * <p>Instances of this class are <i>naturally ordered</i> by their <code>account</code>
  * and <code>sequenceNumber</code> fields, in that order.</p>
  *
- * <p>Instances of this class are immutable.</p>
+ * <p>Instances of this class are immutable, except that the email text snippet
+ * of a mail retrieved from a mail server is resolved lazily, on the first call to
+ * {@link #getSnippet()}. Until then, the mail holds on to its Message object, and
+ * once the folder of that Message object has been closed, the mail is looked up
+ * again by folder and UID. The snippet is resolved without holding any lock, and
+ * published with a single assignment, so that reading it never waits for the
+ * mail server.</p>
  */
 class Mail
 		implements Comparable<Mail>
@@ -51,8 +65,20 @@ class Mail
 	/** maximum length of the email text snippet */
 	private static final int SNIPPET_MAX_LENGTH = 500;
 
+	/** maximum number of bytes fetched from a text/plain part for the email text snippet */
+	private static final int SNIPPET_MAX_PLAIN_BYTES = 2048;
+
+	/** maximum number of bytes fetched from a text/html part for the email text snippet */
+	private static final int SNIPPET_MAX_HTML_BYTES = 16384;
+
+	/** pattern matching "lines" of repeated punctuation, e.g. "-----" or "=====" */
+	private static final Pattern LINE_PATTERN = Pattern.compile("[" + Pattern.quote("~`!@#$%^&*()_-+={[}]|\\:;\"'<,>.?/") + "]{2,}");
+
+	/** pattern matching consecutive whitespace */
+	private static final Pattern WHITESPACE_PATTERN = Pattern.compile("[\\s\\xA0]++");
+
 	/** account to which this mail belongs */
-	final Account account;
+	final MailAccount account;
 
 	/** mail sequence number */
 	final int sequenceNumber;
@@ -69,25 +95,54 @@ class Mail
 	/** email subject */
 	final String subject;
 
-	/** email text snippet */
-	final String snippet;
+	/** Gmail message ID, the same under every label; -1 if not known */
+	final long gmailMessageId;
+
+	/** name of the folder containing this mail; null if not known */
+	final String folderName;
+
+	/** UIDVALIDITY of the folder containing this mail */
+	final long uidValidity;
+
+	/** UID of this mail */
+	final long uid;
+
+	/** email text snippet; null if not yet resolved */
+	private volatile String snippet;
+
+	/** Message object from which the email text snippet is resolved; null once resolved */
+	private volatile Message snippetMessage;
+
+	/** has a prefetch of the email text snippet been requested? */
+	private boolean snippetPrefetchRequested = false;
 
 
 	/**
 	 * Constructor.
+	 * Only the envelope of the specified Message object is accessed here;
+	 * the email text snippet is resolved lazily.
 	 *
 	 * @param account
 	 *     account to which this mail belongs
 	 * @param msg
 	 *      Message object corresponding to this mail
+	 * @param folderName
+	 *      name of the folder containing this mail
+	 * @param uidValidity
+	 *      UIDVALIDITY of the folder
+	 * @param uid
+	 *      UID of this mail
 	 * @param sequenceNumber
 	 *      sequence number of this mail
 	 * @throws javax.mail.MessagingException
 	 *      if thrown by the specified Message object when accessing it
 	 */
 	Mail(
-			final Account account,
+			final MailAccount account,
 			final Message msg,
+			final String folderName,
+			final long uidValidity,
+			final long uid,
 			final int sequenceNumber)
 			throws MessagingException
 	{
@@ -145,15 +200,211 @@ class Mail
 		final String msgSubject = msg.getSubject();
 		subject = (msgSubject == null) ? "(no subject)" : msgSubject;
 
+		/* Gmail message ID, if prefetched */
+		gmailMessageId = (msg instanceof IMAPMessage) ? ((IMAPMessage) msg).getGmailMessageId() : -1L;
+
+		/* location of the mail, for looking it up again */
+		this.folderName = folderName;
+		this.uidValidity = uidValidity;
+		this.uid = uid;
+
 		/* email text snippet */
-		if (msg instanceof MimeMessage)
+		snippet = null;
+		snippetMessage = msg;
+	}
+
+
+	/**
+	 * Constructor for a mail with the specified fields, e.g. from the mail summary cache.
+	 *
+	 * @param account
+	 *     account to which this mail belongs
+	 * @param from
+	 *     "from" addresses (senders)
+	 * @param to
+	 *     "to" addresses (recipients)
+	 * @param date
+	 *     email sent date
+	 * @param subject
+	 *     email subject
+	 * @param snippet
+	 *     email text snippet; null if not yet resolved
+	 * @param gmailMessageId
+	 *     Gmail message ID; -1 if not known
+	 * @param sequenceNumber
+	 *      sequence number of this mail
+	 */
+	Mail(
+			final MailAccount account,
+			final String from,
+			final String to,
+			final Date date,
+			final String subject,
+			final String snippet,
+			final long gmailMessageId,
+			final int sequenceNumber)
+	{
+		this.account = account;
+		this.sequenceNumber = sequenceNumber;
+		this.from = from;
+		this.to = to;
+		this.date = date;
+		this.subject = subject;
+		this.gmailMessageId = gmailMessageId;
+		this.folderName = null;
+		this.uidValidity = -1L;
+		this.uid = -1L;
+		this.snippet = snippet;
+		this.snippetMessage = null;
+	}
+
+
+	/**
+	 * Constructor for a mail with the same fields as the specified mail,
+	 * e.g. from the mail summary cache. If the email text snippet of the
+	 * specified mail has not been resolved, it is resolved lazily from the
+	 * same Message object, or by looking up the mail at the specified location.
+	 *
+	 * @param account
+	 *     account to which this mail belongs
+	 * @param m
+	 *     mail whose fields are to be copied
+	 * @param folderName
+	 *      name of the folder containing this mail
+	 * @param uidValidity
+	 *      UIDVALIDITY of the folder
+	 * @param uid
+	 *      UID of this mail
+	 * @param sequenceNumber
+	 *      sequence number of this mail
+	 */
+	Mail(
+			final MailAccount account,
+			final Mail m,
+			final String folderName,
+			final long uidValidity,
+			final long uid,
+			final int sequenceNumber)
+	{
+		this.account = account;
+		this.sequenceNumber = sequenceNumber;
+		this.from = m.from;
+		this.to = m.to;
+		this.date = m.date;
+		this.subject = m.subject;
+		this.gmailMessageId = m.gmailMessageId;
+		this.folderName = folderName;
+		this.uidValidity = uidValidity;
+		this.uid = uid;
+
+		/* the Message object is read first, so that it is not missed if the snippet is resolved meanwhile */
+		this.snippetMessage = m.snippetMessage;
+		this.snippet = m.snippet;
+	}
+
+
+	/**
+	 * Get the email text snippet of this mail, resolving it first if necessary.
+	 * The snippet is resolved from the Message object of the mail check that found
+	 * this mail while its folder is still open, and by looking up the mail again
+	 * through the current mail store of the account otherwise.
+	 * Resolving the snippet accesses the mail server; this method should NOT be
+	 * called on the mail checker thread. Concurrent calls may resolve the snippet
+	 * more than once.
+	 *
+	 * @return
+	 *      email text snippet; empty if it cannot be resolved (yet)
+	 */
+	String getSnippet()
+	{
+		String s = snippet;
+
+		if (s == null)
 		{
-			snippet = getEmailTextSnippet((MimeMessage) msg);
+			final Message msg = snippetMessage;
+
+			if ((msg != null) || (folderName != null))
+			{
+				final long start = MailCheckStatistics.start();
+				s = account.getSnippet(this, msg);
+				account.statistics.record(MailCheckStatistics.Phase.SNIPPET_FETCH, start);
+			}
+
+			/* the Message object is of no further use once its folder has been closed */
+			snippetMessage = null;
+
+			if (s != null)
+			{
+				snippet = s;
+			}
 		}
-		else
+
+		/* an unresolved snippet is retried on the next call, and not cached */
+		return (s == null) ? "" : s;
+	}
+
+
+	/**
+	 * Return the email text snippet of the specified message, while its folder is open.
+	 *
+	 * @param msg
+	 *      message
+	 * @return
+	 *      text snippet; null if the folder was closed before the snippet could be resolved
+	 */
+	static String getMessageSnippet(
+			final Message msg)
+	{
+		String msgSnippet = null;
+
+		if (msg instanceof IMAPMessage)
 		{
-			snippet = "";
+			msgSnippet = getImapTextSnippet((IMAPMessage) msg);
 		}
+
+		if ((msgSnippet == null) && (msg instanceof MimeMessage))
+		{
+			msgSnippet = getEmailTextSnippet((MimeMessage) msg);
+		}
+
+		if (!msg.getFolder().isOpen())
+		{
+			/* failures were due to the closed folder, not to the mail itself */
+			return null;
+		}
+
+		return (msgSnippet == null) ? "" : msgSnippet;
+	}
+
+
+	/**
+	 * Get the email text snippet of this mail, without resolving it.
+	 *
+	 * @return
+	 *      email text snippet; null if not yet resolved
+	 */
+	String getResolvedSnippet()
+	{
+		return snippet;
+	}
+
+
+	/**
+	 * Request a prefetch of the email text snippet of this mail.
+	 *
+	 * @return
+	 *      true if the caller should resolve the snippet in the background;
+	 *      false if it has already been resolved or its prefetch has already been requested
+	 */
+	synchronized boolean requestSnippetPrefetch()
+	{
+		if ((snippet != null) || snippetPrefetchRequested)
+		{
+			return false;
+		}
+
+		snippetPrefetchRequested = true;
+		return true;
 	}
 
 
@@ -230,7 +481,7 @@ class Mail
 		sb.append(date);
 
 		sb.append(" [SNIPPET] ");
-		sb.append(snippet);
+		sb.append(getResolvedSnippet());
 
 		return sb.toString();
 	}
@@ -248,7 +499,7 @@ class Mail
 			final MimeMessage mm)
 	{
 		/* text snippet */
-		final StringBuilder sb = new StringBuilder();
+		final HtmlManipulator.TextExtractor extractor = new HtmlManipulator.TextExtractor(SNIPPET_MAX_LENGTH);
 
 		/* stack of message parts to be processed */
 		final Deque<Part> stack = new ArrayDeque<Part>();
@@ -268,8 +519,7 @@ class Mail
 
 					if (o instanceof String)
 					{
-						sb.append(' ');
-						sb.append((String) o);
+						extractor.appendText((String) o);
 					}
 				}
 				else if (p.isMimeType("text/html"))
@@ -278,8 +528,7 @@ class Mail
 
 					if (o instanceof String)
 					{
-						sb.append(' ');
-						sb.append(HtmlManipulator.replaceHtmlEntities((String) o));
+						extractor.appendHtml((String) o);
 					}
 				}
 				else if (p.isMimeType("multipart/*"))
@@ -312,18 +561,174 @@ class Mail
 				/* ignore */
 			}
 
-			if (sb.length() >= SNIPPET_MAX_LENGTH)
+			if (extractor.isFull())
 			{
 				break;
 			}
 		}
 
-		return sb.toString()
-				.replaceAll("(?s)<head.*</head>", "")  /* ignore HTML header */
-				.replaceAll("(?s)<[^>]+>", "")         /* ignore HTML tags */
-				.replaceAll("[" + Pattern.quote("~`!@#$%^&*()_-+={[}]|\\:;\"'<,>.?/") + "]{2,}", " ") /* ignore "lines" */
-				.replaceAll("[\\s\\xA0]++", " ")      /* replace consecutive whitespace */
-				.trim();
+		return cleanTextSnippet(extractor.getText());
+	}
+
+
+	/**
+	 * Return an email text snippet for an IMAP message.
+	 * The first text part of the message is located using its BODYSTRUCTURE,
+	 * and only a bounded byte range of that part is fetched from the server
+	 * and decoded.
+	 *
+	 * @param msg
+	 *      IMAP message
+	 * @return
+	 *      text snippet; null if no suitable text part could be found or fetched
+	 */
+	private static String getImapTextSnippet(
+			final IMAPMessage msg)
+	{
+		try
+		{
+			/* locate first text/plain part, or failing that, the first text/html part */
+			final BODYSTRUCTURE root = msg.getBodyStructure(); /* throws MessagingException */
+
+			BODYSTRUCTURE plainPart = null;
+			String plainSection = null;
+			BODYSTRUCTURE htmlPart = null;
+			String htmlSection = null;
+
+			/* stacks of body structures and corresponding section IDs to be processed */
+			final Deque<BODYSTRUCTURE> stack = new ArrayDeque<BODYSTRUCTURE>();
+			final Deque<String> sectionStack = new ArrayDeque<String>();
+
+			stack.push(root);
+			sectionStack.push("");
+
+			while (!stack.isEmpty() && (plainPart == null))
+			{
+				final BODYSTRUCTURE bs = stack.pop();
+				final String section = sectionStack.pop();
+
+				if (bs.isMulti())
+				{
+					for (int i = bs.bodies.length - 1; i >= 0; i--)
+					{
+						stack.push(bs.bodies[i]);
+						sectionStack.push(section.isEmpty() ? Integer.toString(i + 1) : (section + "." + (i + 1)));
+					}
+				}
+				else if ("text".equalsIgnoreCase(bs.type) &&
+						!"attachment".equalsIgnoreCase(bs.disposition))
+				{
+					/* a non-multipart message has its body in the "TEXT" section */
+					final String s = section.isEmpty() ? "TEXT" : section;
+
+					if ("plain".equalsIgnoreCase(bs.subtype))
+					{
+						plainPart = bs;
+						plainSection = s;
+					}
+					else if ("html".equalsIgnoreCase(bs.subtype) && (htmlPart == null))
+					{
+						htmlPart = bs;
+						htmlSection = s;
+					}
+				}
+			}
+
+			final boolean html = (plainPart == null);
+			final BODYSTRUCTURE part = html ? htmlPart : plainPart;
+			final String section = html ? htmlSection : plainSection;
+
+			if (part == null)
+			{
+				return null;
+			}
+
+			/* fetch a bounded byte range of the part */
+			int size = html ? SNIPPET_MAX_HTML_BYTES : SNIPPET_MAX_PLAIN_BYTES;
+
+			if ((part.size >= 0) && (part.size < size))
+			{
+				size = part.size;
+			}
+
+			if (size == 0)
+			{
+				return "";
+			}
+
+			final InputStream in = msg.peekPartialBody(section, 0, size); /* throws MessagingException */
+
+			if (in == null)
+			{
+				return null;
+			}
+
+			/* decode the fetched window through the transfer encoding and the charset */
+			final InputStream decoded = MimeUtility.decode(in, (part.encoding == null) ? "7bit" : part.encoding); /* throws MessagingException */
+			final String charset = (part.cParams == null) ? null : part.cParams.get("charset");
+			Reader reader;
+
+			try
+			{
+				reader = new InputStreamReader(decoded, MimeUtility.javaCharset((charset == null) ? "us-ascii" : charset));
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				reader = new InputStreamReader(decoded, "ISO-8859-1");
+			}
+
+			/* extract text until the snippet is long enough */
+			final HtmlManipulator.TextExtractor extractor = new HtmlManipulator.TextExtractor(SNIPPET_MAX_LENGTH);
+
+			try
+			{
+				if (html)
+				{
+					extractor.appendHtml(reader);
+				}
+				else
+				{
+					extractor.appendText(reader);
+				}
+			}
+			catch (IOException e)
+			{
+				/* the window may end in the middle of an encoded unit; keep what was extracted */
+			}
+
+			/* the window may end in the middle of a multibyte character */
+			final String text = extractor.getText();
+			int end = text.length();
+
+			while ((end > 0) && (text.charAt(end - 1) == '\uFFFD'))
+			{
+				end--;
+			}
+
+			return cleanTextSnippet(text.substring(0, end));
+		}
+		catch (Exception e)
+		{
+			/* fall back on fetching the whole content */
+			return null;
+		}
+	}
+
+
+	/**
+	 * Clean up the text extracted for an email text snippet.
+	 * The text is already bounded in length, so this is cheap.
+	 *
+	 * @param s
+	 *      text extracted from the email, with HTML markup removed
+	 * @return
+	 *      text snippet
+	 */
+	private static String cleanTextSnippet(
+			final String s)
+	{
+		final String t = LINE_PATTERN.matcher(s).replaceAll(" "); /* ignore "lines" */
+		return WHITESPACE_PATTERN.matcher(t).replaceAll(" ").trim(); /* replace consecutive whitespace */
 	}
 
 
@@ -0,0 +1,2536 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.freeshell.zs.gmailassistant;
+
+import com.sun.mail.iap.BadCommandException;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.GmailRawTerm;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.Status;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.FolderNotFoundException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.event.MessageCountEvent;
+import javax.mail.event.MessageCountListener;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.SearchTerm;
+import org.freeshell.zs.common.Debug;
+import org.freeshell.zs.common.SimpleProperties;
+
+
+/**
+ * Mail checking engine of a Gmail or Google Apps email account: logs in, checks the
+ * monitored folders for unread mails, keeps the index of unread mails, and runs the
+ * IDLE loops that push new mails.
+ * It does not depend on AWT or Swing; changes are reported to a {@link Listener},
+ * such as the account form of the GUI, or the headless daemon.
+ */
+class MailAccount
+		implements Comparable<MailAccount>
+{
+	/** timer refresh interval */
+	private static final long REFRESH_INTERVAL_MILLISECONDS = 200L;
+
+	/** STATUS items used to detect changes in a folder */
+	private static final String[] FOLDER_STATUS_ITEMS = {"UIDVALIDITY", "UIDNEXT", "UNSEEN"};
+
+	/** STATUS items used to detect changes in a folder, if the server supports CONDSTORE */
+	private static final String[] CONDSTORE_FOLDER_STATUS_ITEMS = {"UIDVALIDITY", "UIDNEXT", "UNSEEN", "HIGHESTMODSEQ"};
+
+	/** All Mail label, which contains every mail except those in Spam and Trash */
+	private static final MailLabel ALL_MAIL_LABEL = new MailLabel("All Mail");
+
+	/** property keys corresponding to the notify labels */
+	static final String[] NOTIFY_LABEL_PROPERTIES =
+	{
+		"notify.label1",
+		"notify.label2",
+		"notify.label3",
+		"notify.label4",
+		"notify.label5",
+		"notify.label6"
+	};
+
+	/** environment shared by the mail checks of all accounts */
+	private final MailCheckEnvironment environment;
+
+	/** listener notified of changes to this account */
+	private final Listener listener;
+
+	/** account ID */
+	final int accountId;
+
+	/** index of the unread mails for this account, keyed by (folder, UID) */
+	private final UnreadMailIndex mailIndex = new UnreadMailIndex();
+
+	/** mutex lock for <code>mailIndex</code> */
+	private final Object mailsLock = new Object();
+
+	/** last received mail ID */
+	private int lastSequenceNumber = 0;
+
+	/** mutex lock for <code>lastSequenceNumber</code> */
+	final private Object lastSequenceNumberLock = new Object();
+
+	/** account properties */
+	final SimpleProperties properties;
+
+	/** current mail store for this email account */
+	private volatile Store currentMailStore;
+
+	/** check mail now? */
+	private volatile boolean checkMailNow = false;
+
+	/** thread running the current mail check; null if no mail check is in progress */
+	private final AtomicReference<Thread> mailCheckThread = new AtomicReference<Thread>();
+
+	/** sequence number of the current mail check, for debugging */
+	private volatile int mailCheckId = 0;
+
+	/** next scheduled mail check, if any */
+	private Future<?> nextMailCheck = null;
+
+	/** mutex lock for <code>nextMailCheck</code> */
+	private final Object nextMailCheckLock = new Object();
+
+	/** ID of the current mail store */
+	private int currentMailStoreId = 0;
+
+	/** mutex lock for <code>currentMailStoreId</code>, <code>currentMailStore</code> (when set), and <code>idleFolders</code> */
+	private final Object currentMailStoreIdLock = new Object();
+
+	/** folder name ---> folder mapping for the folders being IDLEd on the current mail store */
+	private final Map<String,IMAPFolder> idleFolders = new HashMap<String,IMAPFolder>();
+
+	/** names of folders with pending push notifications, to be checked in the next mail check */
+	private final Set<String> pushedFolders = new HashSet<String>();
+
+	/** interrupted exception, to be thrown by <code>checkIfInterrupted()</code> */
+	private final InterruptedException interruptedException = new InterruptedException();
+
+	/** search term for messages with the SEEN flag turned off */
+	private final SearchTerm unseenFlag = new FlagTerm(new Flags(Flags.Flag.SEEN), false);
+
+	/** fetch profile for prefetching the envelope and UID of new unread mails */
+	private final FetchProfile newMailProfile = new FetchProfile();
+
+	/** fetch profile for prefetching the envelope, UID, and Gmail message ID of new unread mails */
+	private final FetchProfile gmailNewMailProfile = new FetchProfile();
+
+	/** persistent cache of mail summaries, so that mails need not be fetched again after a restart */
+	private final MailSummaryCache mailCache;
+
+	/** policy that decides when the next full mail check is due */
+	private final MailCheckPolicy mailCheckPolicy;
+
+	/** latency histograms and counters of the mail checks */
+	final MailCheckStatistics statistics = new MailCheckStatistics();
+
+	/** folder name ---> folder status mapping, as of the last successful mail check (guarded by <code>mailsLock</code>) */
+	private final Map<String,Status> lastFolderStatus = new HashMap<String,Status>();
+
+	/** folder name ---> number of consecutive mail checks that skipped the folder as unchanged (guarded by <code>mailsLock</code>) */
+	private final Map<String,Integer> lastFolderSkips = new HashMap<String,Integer>();
+
+	/** folder name ---> open folder mapping, for reusing folders across mail checks (guarded by itself) */
+	private final Map<String,IMAPFolder> openFolders = new HashMap<String,IMAPFolder>();
+
+	/** mail store to which the folders in <code>openFolders</code> belong (guarded by <code>openFolders</code>) */
+	private Store openFoldersStore = null;
+
+
+	/**
+	 * Constructor.
+	 * No mail check is scheduled until the account is started (see {@link #start()}).
+	 *
+	 * @param environment
+	 *      environment shared by the mail checks of all accounts
+	 * @param accountId
+	 *      account ID assigned by the owner of this account
+	 * @param properties
+	 *      account properties for the new account
+	 * @param listener
+	 *      listener to be notified of changes to this account
+	 */
+	MailAccount(
+			final MailCheckEnvironment environment,
+			final int accountId,
+			final SimpleProperties properties,
+			final Listener listener)
+	{
+		this.environment = environment;
+		this.accountId = accountId;
+		this.properties = properties;
+		this.listener = listener;
+		mailCache = new MailSummaryCache(environment, this);
+		mailCheckPolicy = new MailCheckPolicy(environment, environment.scheduler.getNumAccounts());
+
+		newMailProfile.add(FetchProfile.Item.ENVELOPE);
+		newMailProfile.add(UIDFolder.FetchProfileItem.UID);
+		gmailNewMailProfile.add(FetchProfile.Item.ENVELOPE);
+		gmailNewMailProfile.add(UIDFolder.FetchProfileItem.UID);
+		gmailNewMailProfile.add(IMAPFolder.FetchProfileItem.GMAIL_MSGID);
+
+		/* initialize additional properties */
+		properties.setString("status", "<html><font color='red'>Disabled</font></html>");
+		properties.setBoolean("error", false);
+		properties.setString("error.message", "");
+		properties.setInt("unread.mails", -1);
+		properties.setBoolean("new.unread.mails", false);
+		properties.setLong("last.mail.check.success", 0L);
+		properties.setLong("last.mail.check.attempt", 0L);
+
+		refreshMailLabels();
+	}
+
+
+	/**
+	 * Register this account with the mail check scheduler, and schedule its first mail check
+	 * if it is enabled.
+	 * This method can be called on any thread.
+	 */
+	void start()
+	{
+		environment.scheduler.register(this);
+		scheduleMailCheck();
+	}
+
+
+	/**
+	 * Refresh the mail labels to be monitored, according to the "notify.on" and
+	 * "notify.label" account properties.
+	 * This method can be called on any thread.
+	 */
+	void refreshMailLabels()
+	{
+		final List<MailLabel> labels = new ArrayList<MailLabel>();
+		final String notifyOn = properties.getString("notify.on");
+
+		if ("inbox".equals(notifyOn))
+		{
+			labels.add(new MailLabel("INBOX"));
+		}
+		else if ("any".equals(notifyOn))
+		{
+			labels.add(new MailLabel("All Mail"));
+		}
+		else if ("labels".equals(notifyOn))
+		{
+			for (String p : NOTIFY_LABEL_PROPERTIES)
+			{
+				final String s = properties.getString(p);
+
+				if (!s.isEmpty())
+				{
+					labels.add(new MailLabel(s));
+				}
+			}
+		}
+
+		properties.set("mail.labels.object", labels);
+	}
+
+
+	/**
+	 * Get the file of the mail summary cache of this account.
+	 * The file is kept next to the profile from which the account was loaded, or to which
+	 * it was last saved, and is named after both the profile and the username, so that
+	 * the same account in two profiles does not share a cache. An account that has no
+	 * profile yet (or was specified on the daemon command line) keeps its cache in the
+	 * working directory, where profiles are looked for and saved by default.
+	 *
+	 * @return
+	 *      mail summary cache file
+	 */
+	private File getMailCacheFile()
+	{
+		final String username = properties.getString("username");
+		final String ext = environment.properties.getString("mail.cache.extension");
+		final File profileFile = (File) properties.get("profile.file.object");
+
+		if (profileFile == null)
+		{
+			return new File(String.format("%s.%s", username, ext));
+		}
+
+		final File f = profileFile.getAbsoluteFile();
+		return new File(f.getParentFile(), String.format("%s.%s.%s", f.getName(), username, ext));
+	}
+
+
+	/**
+	 * Schedule the next mail check for this account, replacing any previously scheduled one.
+	 * The mail check is due immediately if requested, and as decided by the mail check policy
+	 * otherwise.
+	 * No mail check is scheduled while the account is disabled.
+	 * This method can be called on any thread.
+	 */
+	void scheduleMailCheck()
+	{
+		synchronized (nextMailCheckLock)
+		{
+			if (nextMailCheck != null)
+			{
+				nextMailCheck.cancel(false);
+				nextMailCheck = null;
+			}
+
+			if (!properties.getBoolean("enabled"))
+			{
+				return;
+			}
+
+			long delay = getMailCheckDelay();
+
+			synchronized (pushedFolders)
+			{
+				if (!pushedFolders.isEmpty())
+				{
+					delay = 0L;
+				}
+			}
+
+			/* a mail check uses a connection per parallel folder check, */
+			/* and logs in unless it reuses the current session         */
+			nextMailCheck = environment.scheduler.scheduleBudgeted(
+					this,
+					environment.properties.getString("incoming.server"),
+					environment.properties.getInt("mail.check.parallel.folders"),
+					!isLoggedIn() || !environment.properties.getBoolean("mail.check.reuse.session"),
+					new Runnable()
+					{
+						public void run()
+						{
+							runMailCheck();
+						}
+					},
+					delay);
+		}
+	}
+
+
+	/**
+	 * Get the time remaining until the next full mail check of this account is due.
+	 * A full mail check is due immediately if requested, and as decided by the mail check
+	 * policy otherwise (see {@link MailCheckPolicy}).
+	 *
+	 * @return
+	 *     time remaining in milliseconds; zero or negative if the mail check is due
+	 */
+	private long getMailCheckDelay()
+	{
+		if (checkMailNow)
+		{
+			return 0L;
+		}
+
+		return mailCheckPolicy.getNextMailCheckTime(properties.getLong("last.mail.check.attempt")) -
+				System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Run a mail check for this account, unless one is already in progress,
+	 * and schedule the next mail check.
+	 * Only the folders with pending push notifications are checked,
+	 * unless a full mail check is due.
+	 * This method runs on a mail checker thread of the scheduler.
+	 */
+	private void runMailCheck()
+	{
+		final Thread t = Thread.currentThread();
+
+		if (!mailCheckThread.compareAndSet(null, t))
+		{
+			/* mail check in progress; pending requests are rescheduled once it completes */
+			if (mailCheckThread.get() == null)
+			{
+				scheduleMailCheck();
+			}
+
+			return;
+		}
+
+		final MailCheck check = new MailCheck(t);
+
+		/* abort the mail check if it becomes unresponsive */
+		final Future<?> deadline = environment.scheduler.scheduleDeadline(new Runnable()
+		{
+			public void run()
+			{
+				abortUnresponsiveMailCheck(check);
+			}
+		},
+		environment.properties.getLong("mail.check.timeout.milliseconds"));
+
+		try
+		{
+			mailCheckId++;
+
+			if (properties.getBoolean("enabled"))
+			{
+				final boolean fullCheck = (getMailCheckDelay() <= 0L);
+				final Set<String> foldersToCheck;
+
+				synchronized (pushedFolders)
+				{
+					foldersToCheck = fullCheck ? null : new HashSet<String>(pushedFolders);
+					pushedFolders.clear();
+				}
+
+				if (fullCheck || !foldersToCheck.isEmpty())
+				{
+					checkMailNow = false;
+					checkMail(check, foldersToCheck);
+				}
+			}
+		}
+		finally
+		{
+			deadline.cancel(false);
+
+			/* clear interrupted status before the thread is reused */
+			Thread.interrupted();
+
+			if (mailCheckThread.compareAndSet(t, null))
+			{
+				scheduleMailCheck();
+			}
+			else
+			{
+				/* mail check was aborted; its thread is back in the pool */
+				environment.scheduler.registerAbortedMailCheckReturn();
+			}
+		}
+	}
+
+
+	/**
+	 * Abort the mail check running on the specified mail checker thread, after it has
+	 * run past its deadline.
+	 * The mail checker thread is interrupted, and the mail store used by the mail check
+	 * is aborted, so that the thread is released even if it is blocked reading from the
+	 * server. A new mail store is created on the next mail check, which is scheduled
+	 * right away.
+	 * Aborting the mail store does not stop a mail check that is past its last network
+	 * operation; such a mail check runs on, but it no longer owns the account, so it does
+	 * not publish its results (see {@link #checkMail}). Conversely, a mail check that has
+	 * published its results is not aborted, so that it reports them.
+	 * This method runs on the watchdog thread of the scheduler, and does not block.
+	 *
+	 * @param check
+	 *     mail check
+	 */
+	private void abortUnresponsiveMailCheck(
+			final MailCheck check)
+	{
+		final Thread t = check.thread;
+
+		synchronized (mailsLock)
+		{
+			if (check.published || !mailCheckThread.compareAndSet(t, null))
+			{
+				return;
+			}
+		}
+
+		if (environment.debug)
+		{
+			environment.logger.log("[%s] Mail check #%d aborted (unresponsive)", properties.getString("username"), mailCheckId);
+		}
+
+		environment.scheduler.registerAbortedMailCheck();
+		t.interrupt();
+		currentMailStore = null;
+		abortMailStore(check.store);
+		scheduleMailCheck();
+	}
+
+
+	/**
+	 * Get the UIDVALIDITY, UIDNEXT, and UNSEEN values of the specified folder,
+	 * and also the HIGHESTMODSEQ value if the server supports CONDSTORE,
+	 * using a single STATUS command.
+	 *
+	 * @param folder
+	 *     folder
+	 * @return
+	 *     folder status; null if the status is not available
+	 * @throws javax.mail.MessagingException
+	 *     if the connection to the server is lost
+	 */
+	private static Status getFolderStatus(
+			final IMAPFolder folder)
+			throws MessagingException
+	{
+		return (Status) folder.doCommandIgnoreFailure(new IMAPFolder.ProtocolCommand()
+		{
+			public Object doCommand(
+					final IMAPProtocol p)
+					throws ProtocolException
+			{
+				try
+				{
+					return p.status(folder.getFullName(),
+							p.hasCapability("CONDSTORE") ? CONDSTORE_FOLDER_STATUS_ITEMS : FOLDER_STATUS_ITEMS);
+				}
+				catch (BadCommandException e)
+				{
+					/* STATUS not supported */
+					return null;
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Get the email text snippet of the specified mail, from the specified Message object
+	 * while its folder is still open, or else by looking the mail up again, by folder and
+	 * UID, through the current mail store.
+	 * Looking the mail up again is needed once the folder in which a mail check found the
+	 * mail has been closed, e.g. when the mail store is not reused across mail checks.
+	 * The folder is opened in "read only" mode for this, and closed again.
+	 * Either way, the mail store is aborted if the server does not respond before the
+	 * mail store deadline.
+	 * This method should NOT be called on the mail checker thread.
+	 *
+	 * @param m
+	 *     mail
+	 * @param msg
+	 *     Message object of the mail check that found the mail; null if none
+	 * @return
+	 *     email text snippet; empty if the mail no longer exists; null if it cannot be
+	 *     looked up now (e.g. the account is not logged in), so that it can be retried
+	 */
+	String getSnippet(
+			final Mail m,
+			final Message msg)
+	{
+		if ((msg != null) && msg.getFolder().isOpen())
+		{
+			final Future<?> deadline = scheduleMailStoreDeadline(msg.getFolder().getStore(), "Snippet fetch");
+
+			try
+			{
+				final String s = Mail.getMessageSnippet(msg);
+
+				if (s != null)
+				{
+					return s;
+				}
+			}
+			finally
+			{
+				deadline.cancel(false);
+			}
+		}
+
+		final Store mailStore = currentMailStore;
+
+		if ((m.folderName == null) || (mailStore == null) || !mailStore.isConnected())
+		{
+			return null;
+		}
+
+		final Future<?> deadline = scheduleMailStoreDeadline(mailStore, "Snippet fetch");
+		IMAPFolder folder = null;
+
+		try
+		{
+			folder = (IMAPFolder) mailStore.getFolder(m.folderName); /* throws MessagingException */
+			folder.open(Folder.READ_ONLY); /* throws MessagingException */
+
+			if (folder.getUIDValidity() != m.uidValidity) /* throws MessagingException */
+			{
+				return "";
+			}
+
+			final Message folderMsg = folder.getMessageByUID(m.uid); /* throws MessagingException */
+			return (folderMsg == null) ? "" : Mail.getMessageSnippet(folderMsg);
+		}
+		catch (FolderNotFoundException e)
+		{
+			return "";
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+		finally
+		{
+			if (folder != null)
+			{
+				closeFolder(folder);
+			}
+
+			deadline.cancel(false);
+		}
+	}
+
+
+	/**
+	 * Close the specified folder, ignoring any errors.
+	 *
+	 * @param folder
+	 *     folder to be closed
+	 */
+	private static void closeFolder(
+			final Folder folder)
+	{
+		try
+		{
+			if (folder.isOpen())
+			{
+				folder.close(false);
+			}
+		}
+		catch (Exception e)
+		{
+			/* ignore */
+		}
+	}
+
+
+	/**
+	 * Check if the current mail check has been interrupted.
+	 *
+	 * @throws InterruptedException
+	 *     if the current mail check has been interrupted
+	 */
+	private void checkIfInterrupted()
+			throws InterruptedException
+	{
+		checkIfInterrupted(Thread.currentThread());
+	}
+
+
+	/**
+	 * Check if the mail check running on the specified mail checker thread has been interrupted.
+	 * This method can also be called on a folder checker thread working for that mail check.
+	 *
+	 * @param checker
+	 *     mail checker thread
+	 * @throws InterruptedException
+	 *     if the mail check has been interrupted
+	 */
+	private void checkIfInterrupted(
+			final Thread checker)
+			throws InterruptedException
+	{
+		if (!properties.getBoolean("enabled"))
+		{
+			properties.setString("status", "<html><font color='red'>Disabled</font></html>");
+			listener.statusChanged(this);
+			throw interruptedException;
+		}
+
+		if (checker.isInterrupted() ||
+				Thread.currentThread().isInterrupted() ||
+				(mailCheckThread.get() != checker))
+		{
+			throw interruptedException;
+		}
+	}
+
+
+	/**
+	 * Get the Gmail search expression (for X-GM-RAW) that finds the unread mails with any
+	 * of the specified mail labels in All Mail.
+	 *
+	 * @param notifyOn
+	 *     "notify.on" property of the account
+	 * @param mailLabels
+	 *     mail labels being monitored
+	 * @return
+	 *     Gmail search expression; null if the mail labels are better checked one folder
+	 *     at a time (e.g. a single label, or a label such as Spam whose mails are not in All Mail)
+	 */
+	private static String getGmailRawQuery(
+			final String notifyOn,
+			final List<MailLabel> mailLabels)
+	{
+		if (!"labels".equals(notifyOn) || (mailLabels.size() < 2))
+		{
+			return null;
+		}
+
+		final StringBuilder sb = new StringBuilder("is:unread {");
+
+		for (MailLabel l : mailLabels)
+		{
+			if ("INBOX".equals(l.label))
+			{
+				sb.append("in:inbox ");
+			}
+			else if ("All Mail".equals(l.label))
+			{
+				return "is:unread";
+			}
+			else if ("Starred".equals(l.label))
+			{
+				sb.append("is:starred ");
+			}
+			else if ("Drafts".equals(l.label))
+			{
+				sb.append("in:drafts ");
+			}
+			else if ("Sent Mail".equals(l.label))
+			{
+				sb.append("in:sent ");
+			}
+			else if ("Spam".equals(l.label) ||
+					"Trash".equals(l.label) ||
+					(l.label.indexOf('"') >= 0))
+			{
+				return null;
+			}
+			else
+			{
+				sb.append("label:\"");
+				sb.append(l.label);
+				sb.append("\" ");
+			}
+		}
+
+		sb.setCharAt(sb.length() - 1, '}');
+		return sb.toString();
+	}
+
+
+	/**
+	 * Run the specified folder checks, using up to "mail.check.parallel.folders" threads.
+	 * The mail checker thread takes part in the work, so the folder checks make progress
+	 * even when all the folder checker threads of the scheduler are busy.
+	 * This method runs on a mail checker thread of the scheduler.
+	 *
+	 * @param checks
+	 *     folder checks to be run; null elements are ignored
+	 * @param useCache
+	 *     use the mail summary cache?
+	 * @throws java.lang.Exception
+	 *     the first exception thrown by a folder check, in folder order
+	 */
+	private void runFolderChecks(
+			final FolderCheck[] checks,
+			final boolean useCache)
+			throws Exception
+	{
+		final Thread checker = Thread.currentThread();
+		final AtomicInteger next = new AtomicInteger(0);
+
+		final Runnable worker = new Runnable()
+		{
+			public void run()
+			{
+				int i;
+
+				while ((i = next.getAndIncrement()) < checks.length)
+				{
+					final FolderCheck fc = checks[i];
+
+					if (fc == null)
+					{
+						continue;
+					}
+
+					try
+					{
+						checkFolder(fc, useCache, checker);
+					}
+					catch (Exception e)
+					{
+						fc.exception = e;
+
+						/* no point checking the remaining folders */
+						next.set(checks.length);
+					}
+				}
+			}
+		};
+
+		int numChecks = 0;
+
+		for (FolderCheck fc : checks)
+		{
+			if (fc != null)
+			{
+				numChecks++;
+			}
+		}
+
+		final int numHelpers = Math.min(numChecks, environment.properties.getInt("mail.check.parallel.folders")) - 1;
+		final List<Future<?>> helpers = new ArrayList<Future<?>>();
+
+		try
+		{
+			for (int i = 0; i < numHelpers; i++)
+			{
+				helpers.add(environment.scheduler.submitFolderCheck(worker));
+			}
+
+			worker.run();
+
+			/* all folders have been taken; wait only for helpers that have started */
+			for (Future<?> f : helpers)
+			{
+				if (!environment.scheduler.removeFolderCheck(f))
+				{
+					f.get(); /* throws InterruptedException */
+				}
+			}
+		}
+		finally
+		{
+			/* stop helpers that have not started yet */
+			next.set(checks.length);
+		}
+
+		for (FolderCheck fc : checks)
+		{
+			if ((fc != null) && (fc.exception != null))
+			{
+				throw fc.exception;
+			}
+		}
+	}
+
+
+	/**
+	 * Check a single folder for unread mails: compare its status with that of the last mail
+	 * check, search for the UIDs of its unseen mails, look up the uncached ones in the mail
+	 * summary cache, and fetch the envelopes of the rest from the server.
+	 * The results are left in the specified folder check, to be merged by the mail checker thread.
+	 * Each open folder has its own connection, so folders can be checked in parallel.
+	 * This method runs on the mail checker thread or a folder checker thread of the scheduler.
+	 *
+	 * @param fc
+	 *     folder check
+	 * @param useCache
+	 *     use the mail summary cache?
+	 * @param checker
+	 *     mail checker thread
+	 * @throws java.lang.Exception
+	 *     if the connection to the server is lost, or the mail check has been interrupted
+	 */
+	private void checkFolder(
+			final FolderCheck fc,
+			final boolean useCache,
+			final Thread checker)
+			throws Exception
+	{
+		final IMAPFolder folder = fc.folder;
+		final String folderName = fc.folderName;
+		long time = MailCheckStatistics.start();
+
+		checkIfInterrupted(checker);
+
+		/* skip folder if unchanged since the last mail check (single STATUS) */
+		fc.status = getFolderStatus(folder); /* throws MessagingException */
+
+		if (fc.status != null)
+		{
+			checkIfInterrupted(checker);
+
+			final Status lastStatus;
+			final int lastSkips;
+
+			synchronized (mailsLock)
+			{
+				lastStatus = lastFolderStatus.get(folderName);
+				lastSkips = getFolderSkips(folderName);
+			}
+
+			/* without HIGHESTMODSEQ (zero for a mailbox without persistent mod-sequences), */
+			/* flag changes that leave the number of unseen mails unchanged (one mail read, */
+			/* another marked unread) go unnoticed, so the folder is searched anyway after  */
+			/* a number of consecutive skips; label changes, which an X-GM-RAW search on    */
+			/* All Mail depends on, leave UIDNEXT and UNSEEN unchanged altogether, so such  */
+			/* a search is never skipped without HIGHESTMODSEQ                              */
+			final boolean rawSearch = (fc.searchTerm instanceof GmailRawTerm);
+
+			if (!fc.pushed &&
+					(lastStatus != null) &&
+					(lastStatus.uidvalidity == fc.status.uidvalidity) &&
+					(lastStatus.uidnext == fc.status.uidnext) &&
+					(lastStatus.unseen == fc.status.unseen) &&
+					(lastStatus.highestmodseq == fc.status.highestmodseq) &&
+					((fc.status.highestmodseq > 0) ||
+							(!rawSearch && (lastSkips < environment.properties.getInt("mail.check.status.max.skips")))))
+			{
+				fc.unchanged = true;
+				fc.skips = lastSkips + 1;
+				statistics.record(MailCheckStatistics.Phase.FOLDER_OPEN, time);
+				return;
+			}
+		}
+
+		long[] uids = null;
+
+		if (folder.isOpen())
+		{
+			if (fc.status == null)
+			{
+				/* reused folder: NOOP to pick up changes since the last mail check */
+				folder.getMessageCount(); /* throws MessagingException if connection to server is lost */
+			}
+		}
+		else
+		{
+			/* open folder in "read only" mode and fetch UIDs of unseen mails */
+			/* from it (EXAMINE and UID SEARCH pipelined in one round trip)   */
+			try
+			{
+				uids = folder.openAndSearchUIDs(Folder.READ_ONLY, fc.searchTerm); /* throws MessagingException */
+			}
+			catch (FolderNotFoundException e)
+			{
+				return;
+			}
+		}
+
+		time = statistics.record(MailCheckStatistics.Phase.FOLDER_OPEN, time);
+		checkIfInterrupted(checker);
+
+		if (uids == null)
+		{
+			/* fetch UIDs of unseen mails from this folder (single UID SEARCH) */
+			uids = folder.searchUIDs(fc.searchTerm); /* throws MessagingException */
+		}
+
+		final long uidValidity = folder.getUIDValidity(); /* throws MessagingException */
+		Arrays.sort(uids);
+		fc.uids = uids;
+		time = statistics.record(MailCheckStatistics.Phase.SEARCH, time);
+
+		if (useCache)
+		{
+			mailCache.retain(folderName, uidValidity, uids);
+		}
+
+		checkIfInterrupted(checker);
+
+		final long[] fetchUids;
+
+		synchronized (mailsLock)
+		{
+			fetchUids = mailIndex.getUncachedUids(mailIndex.getFolderIndex(folderName), uids);
+		}
+
+		fc.pendingMails = new PendingMail[fetchUids.length];
+
+		if (fetchUids.length == 0)
+		{
+			return;
+		}
+
+		/* look up uncached UIDs in the mail summary cache first */
+		final long[] serverUids = new long[fetchUids.length];
+		final PendingMail[] serverMails = new PendingMail[fetchUids.length];
+		int numServerUids = 0;
+
+		for (int j = 0; j < fetchUids.length; j++)
+		{
+			final PendingMail p = new PendingMail(folderName, uidValidity, fetchUids[j]);
+
+			if (useCache)
+			{
+				p.cached = mailCache.get(folderName, uidValidity, p.uid);
+			}
+
+			fc.pendingMails[j] = p;
+
+			if (p.cached == null)
+			{
+				serverMails[numServerUids] = p;
+				serverUids[numServerUids++] = p.uid;
+			}
+		}
+
+		if (numServerUids == 0)
+		{
+			return;
+		}
+
+		/* resolve the remaining UIDs to messages (single UID FETCH) */
+		final Message[] msgs = folder.getMessagesByUID(Arrays.copyOf(serverUids, numServerUids)); /* throws MessagingException */
+		final List<Message> fetchMsgs = new ArrayList<Message>(msgs.length);
+
+		for (int j = 0; j < msgs.length; j++)
+		{
+			if (msgs[j] != null)
+			{
+				fetchMsgs.add(msgs[j]);
+				serverMails[j].message = msgs[j];
+			}
+		}
+
+		time = statistics.record(MailCheckStatistics.Phase.UID_RESOLUTION, time);
+		checkIfInterrupted(checker);
+
+		/* prefetch envelopes of the new mails (single FETCH) */
+		folder.fetch(fetchMsgs.toArray(new Message[fetchMsgs.size()]), fc.fetchProfile); /* throws MessagingException */
+		statistics.record(MailCheckStatistics.Phase.ENVELOPE_FETCH, time);
+	}
+
+
+	/**
+	 * Perform a single mail check.
+	 * The mail index, folder statuses, and mail summary cache are updated only if the
+	 * mail check still owns the account at that point, since an aborted mail check
+	 * may run on until its next I/O operation while the next one has started.
+	 * This method runs on a mail checker thread of the scheduler.
+	 *
+	 * @param check
+	 *     mail check
+	 * @param foldersToCheck
+	 *     names of the folders to be checked; null to check all monitored folders
+	 */
+	private void checkMail(
+			final MailCheck check,
+			final Set<String> foldersToCheck)
+	{
+		/********************
+		 * GMAIL WORKAROUND *
+		 ********************/
+
+		/* Gmail prevents repeated calls to retrieve mails on a single login,  */
+		/* so we close the existing mail store and create a new one each time, */
+		/* unless the session is to be reused (in which case the open folders  */
+		/* are synchronized with NOOP instead, and a new mail store is created */
+		/* only after a failed mail check).                                    */
+		final long mailCheckStart = MailCheckStatistics.start();
+		final boolean reuseSession = environment.properties.getBoolean("mail.check.reuse.session");
+		check.store = currentMailStore;
+
+		if (!reuseSession ||
+				((currentMailStore != null) && !currentMailStore.isConnected()))
+		{
+			closeMailStore(currentMailStore);
+			currentMailStore = null;
+		}
+
+		/**********************************
+		 * (3) CHECK IF MAIL STORE EXISTS *
+		 **********************************/
+
+		if (currentMailStore == null)
+		{
+			createNewMailStore();
+		}
+
+		final Store mailStore = currentMailStore;
+		check.store = mailStore;
+
+		if (mailStore == null)
+		{
+			return;
+		}
+
+		try
+		{
+			/***************************
+			 * (4) BEGIN CHECKING MAIL *
+			 ***************************/
+
+			properties.setString("status", "<html>Checking mail...</html>");
+			listener.statusChanged(this);
+			checkIfInterrupted();
+
+			final boolean useCache = environment.properties.getBoolean("mail.cache.enabled");
+
+			if (useCache)
+			{
+				mailCache.open(getMailCacheFile(), properties.getString("password"));
+			}
+
+			/*****************************************************
+			 * (5) FETCH UNREAD MAIL IDENTIFIERS FOR EACH FOLDER *
+			 *****************************************************/
+
+			final String notifyOn = properties.getString("notify.on");
+			final List<MailLabel> mailLabels = (List<MailLabel>) properties.get("mail.labels.object");
+
+			/* with the Gmail IMAP extensions, several labels are checked with a single */
+			/* X-GM-RAW search on All Mail, in which each mail appears only once        */
+			final boolean gmailExtensions = environment.properties.getBoolean("mail.gmail.extensions") &&
+					(mailStore instanceof IMAPStore) &&
+					((IMAPStore) mailStore).hasCapability("X-GM-EXT-1"); /* throws MessagingException */
+
+			final String gmailQuery = gmailExtensions ? getGmailRawQuery(notifyOn, mailLabels) : null;
+			final List<String> folderNames = new ArrayList<String>();
+
+			if (gmailQuery == null)
+			{
+				for (MailLabel l : mailLabels)
+				{
+					folderNames.add(l.folder);
+				}
+			}
+			else
+			{
+				folderNames.add(ALL_MAIL_LABEL.folder);
+			}
+
+			final SearchTerm searchTerm = (gmailQuery == null) ? unseenFlag : new GmailRawTerm(gmailQuery);
+			final FetchProfile fetchProfile = gmailExtensions ? gmailNewMailProfile : newMailProfile;
+			final IMAPFolder[] folders = new IMAPFolder[folderNames.size()];
+
+			synchronized (openFolders)
+			{
+				/* the open folders are not handed over by an aborted mail check */
+				checkIfInterrupted();
+
+				if (mailStore != openFoldersStore)
+				{
+					/* folders of a previous mail store cannot be reused */
+					openFolders.clear();
+					openFoldersStore = mailStore;
+				}
+
+				for (int i = 0; i < folders.length; i++)
+				{
+					final String folderName = folderNames.get(i);
+
+					folders[i] = reuseSession ? openFolders.get(folderName) : null;
+
+					if (folders[i] == null)
+					{
+						folders[i] = (IMAPFolder) mailStore.getFolder(folderName); /* throws IllegalStateException if store not connected */
+					}
+				}
+
+				if (reuseSession)
+				{
+					/* close folders that are no longer monitored */
+					openFolders.values().removeAll(Arrays.asList(folders));
+
+					for (IMAPFolder f : openFolders.values())
+					{
+						closeFolder(f);
+					}
+
+					openFolders.clear();
+
+					for (int i = 0; i < folders.length; i++)
+					{
+						openFolders.put(folderNames.get(i), folders[i]);
+					}
+				}
+			}
+
+			if ("inbox".equals(notifyOn))
+			{
+				properties.setString("status", "<html>Fetching unread mails in Inbox...<</html>");
+				listener.statusChanged(this);
+			}
+			else if ("any".equals(notifyOn))
+			{
+				properties.setString("status", "<html>Fetching unread mails...</html>");
+				listener.statusChanged(this);
+			}
+			else if ("labels".equals(notifyOn))
+			{
+				properties.setString("status", String.format("<html>Fetching unread mails with %d %s...</html>",
+						mailLabels.size(), (mailLabels.size() == 1) ? "label" : "labels"));
+				listener.statusChanged(this);
+			}
+
+			checkIfInterrupted();
+
+			/* check the folders in parallel, each on its own connection */
+			final FolderCheck[] checks = new FolderCheck[folders.length];
+
+			for (int i = 0; i < folders.length; i++)
+			{
+				final String folderName = folderNames.get(i);
+
+				/* skip folder without push notification in a partial mail check */
+				/* (a push notification on any label affects All Mail)            */
+				if ((foldersToCheck == null) || (gmailQuery != null) || foldersToCheck.contains(folderName))
+				{
+					checks[i] = new FolderCheck(folderName, folders[i], searchTerm, fetchProfile, foldersToCheck != null);
+				}
+			}
+
+			runFolderChecks(checks, useCache);
+
+			/* merge the results in folder order */
+			for (int i = 0; i < folders.length; i++)
+			{
+				final String folderName = folderNames.get(i);
+				final FolderCheck fc = checks[i];
+
+				if (fc == null)
+				{
+					/* folder skipped in a partial mail check */
+					final Status lastStatus;
+					final int lastSkips;
+
+					synchronized (mailsLock)
+					{
+						lastStatus = lastFolderStatus.get(folderName);
+						lastSkips = getFolderSkips(folderName);
+					}
+
+					if (lastStatus != null)
+					{
+						check.newFolderStatus.put(folderName, lastStatus);
+						check.newFolderSkips.put(folderName, lastSkips);
+					}
+
+					retainCachedMails(check, folderName);
+					continue;
+				}
+
+				if (fc.status != null)
+				{
+					check.newFolderStatus.put(folderName, fc.status);
+					check.newFolderSkips.put(folderName, fc.skips);
+				}
+
+				if (fc.unchanged)
+				{
+					retainCachedMails(check, folderName);
+					continue;
+				}
+
+				if (fc.uids == null)
+				{
+					/* folder does not exist */
+					continue;
+				}
+
+				final int folderIndex;
+
+				synchronized (mailsLock)
+				{
+					folderIndex = mailIndex.getFolderIndex(folderName);
+				}
+
+				check.mailUpdate.setUnreadUids(folderIndex, fc.uids);
+
+				for (PendingMail p : fc.pendingMails)
+				{
+					check.mailUpdate.addNewMail(folderIndex, p.uid);
+					check.pendingMails.add(p);
+				}
+			}
+
+			/****************************************************
+			 * (6) FETCH UNREAD MAILS THAT HAVE NOT BEEN CACHED *
+			 ****************************************************/
+
+			final List<Mail> newMails = new ArrayList<Mail>();
+
+			/* Gmail message IDs of the unread mails, to show a mail with several labels only once */
+			final Set<Long> gmailMessageIds = new HashSet<Long>();
+
+			if (gmailExtensions)
+			{
+				synchronized (mailsLock)
+				{
+					for (Mail m = mailIndex.first(); m != null; m = mailIndex.higher(m.sequenceNumber))
+					{
+						if (m.gmailMessageId >= 0)
+						{
+							gmailMessageIds.add(m.gmailMessageId);
+						}
+					}
+				}
+			}
+
+			/* new mails are created in increasing sequence number order of their positions */
+			for (int j = 0; j < check.mailUpdate.getNumNewMails(); j++)
+			{
+				checkIfInterrupted();
+
+				final PendingMail p = check.pendingMails.get(j);
+
+				if ((p.cached == null) && (p.message == null))
+				{
+					/* message no longer exists */
+					continue;
+				}
+
+				final long gmailMessageId = (p.cached != null) ? p.cached.gmailMessageId :
+						((p.message instanceof IMAPMessage) ? ((IMAPMessage) p.message).getGmailMessageId() : -1L);
+
+				if ((gmailMessageId >= 0) && !gmailMessageIds.add(gmailMessageId))
+				{
+					/* same mail under another label; its summary is still cached, so that it */
+					/* is not fetched again, only to be skipped, whenever its folder changes   */
+					if (useCache && (p.cached == null))
+					{
+						final Mail d = new Mail(this, p.message, p.folderName, p.uidValidity, p.uid, 0); /* throws MessagingException */
+						mailCache.put(p.folderName, p.uidValidity, p.uid,
+								new Mail(this, d.from, d.to, d.date, d.subject, null, d.gmailMessageId, 0));
+					}
+
+					continue;
+				}
+
+				final int seq;
+
+				synchronized (lastSequenceNumberLock)
+				{
+					seq = ++lastSequenceNumber;
+				}
+
+				final Mail m;
+
+				if (p.cached != null)
+				{
+					m = new Mail(this, p.cached, p.folderName, p.uidValidity, p.uid, seq);
+
+					if (useCache && (p.cached.getResolvedSnippet() == null))
+					{
+						/* cache the mail that can resolve its snippet, so that the snippet is saved once resolved */
+						mailCache.put(p.folderName, p.uidValidity, p.uid, m);
+					}
+				}
+				else
+				{
+					/* only the envelope is read here; the snippet is resolved lazily */
+					m = new Mail(this, p.message, p.folderName, p.uidValidity, p.uid, seq); /* throws MessagingException */
+
+					if (useCache)
+					{
+						mailCache.put(p.folderName, p.uidValidity, p.uid, m);
+					}
+				}
+
+				check.mailUpdate.setNewMail(j, m);
+				newMails.add(m);
+			}
+
+			check.pendingMails.clear();
+			final boolean newUnreadMails = !newMails.isEmpty();
+
+			/*************************
+			 * (7) UPDATE MAIL INDEX *
+			 *************************/
+
+			synchronized (mailsLock)
+			{
+				/* only the mail check that still owns the account may update it */
+				checkIfInterrupted();
+
+				mailIndex.update(check.mailUpdate);
+				properties.setInt("unread.mails", mailIndex.size());
+
+				/* the folder statuses are remembered together with the mail index */
+				lastFolderStatus.clear();
+				lastFolderStatus.putAll(check.newFolderStatus);
+				lastFolderSkips.clear();
+				lastFolderSkips.putAll(check.newFolderSkips);
+
+				/* from here on, the mail check is no longer aborted, so that */
+				/* the new mails just added to the index are also reported    */
+				check.published = true;
+			}
+
+			if (useCache)
+			{
+				if (foldersToCheck == null)
+				{
+					mailCache.retainFolders(folderNames);
+				}
+
+				mailCache.save();
+			}
+
+			final long uiRefreshStart = MailCheckStatistics.start();
+			properties.setString("status", "<html>Mail check completed</html>");
+			listener.statusChanged(this);
+			listener.unreadMailsChanged(this);
+
+			/********************
+			 * (8) ISSUE ALERTS *
+			 ********************/
+
+			if (newUnreadMails)
+			{
+				properties.setBoolean("new.unread.mails", true);
+			}
+
+			listener.mailsUpdated(this, newMails);
+
+			statistics.record(MailCheckStatistics.Phase.UI_REFRESH, uiRefreshStart);
+			statistics.record(MailCheckStatistics.Phase.MAIL_CHECK, mailCheckStart);
+			statistics.countTraffic(mailStore);
+
+			/***********************************
+			 * (9) REGISTER MAIL CHECK SUCCESS *
+			 ***********************************/
+
+			registerMailCheckSuccess(foldersToCheck == null, newUnreadMails);
+			refreshIdleLoops();
+		}
+		catch (Exception e)
+		{
+			if ((e instanceof InterruptedException) ||
+					(mailCheckThread.get() != Thread.currentThread()))
+			{
+				/* mail check has been interrupted, or aborted (closing its connections) */
+				if (environment.debug)
+				{
+					environment.logger.log("[%s] Mail check #%d interruption (%s)",
+							properties.getString("username"), mailCheckId, e.toString());
+				}
+			}
+			else
+			{
+				if (environment.debug)
+				{
+					environment.logger.log("[%s] Mail check #%d exception caught (%s)",
+							properties.getString("username"), mailCheckId, e.toString());
+				}
+
+				registerMailCheckFailure("Mail check failed", mailStore);
+			}
+
+			statistics.countTraffic(mailStore);
+		}
+	}
+
+
+	/**
+	 * Get the number of consecutive mail checks that have skipped the specified folder
+	 * as unchanged.
+	 * The caller must hold <code>mailsLock</code>.
+	 *
+	 * @param folderName
+	 *     name of the folder
+	 * @return
+	 *     number of consecutive skips; zero if the folder was searched in the last mail check
+	 */
+	private int getFolderSkips(
+			final String folderName)
+	{
+		final Integer skips = lastFolderSkips.get(folderName);
+		return (skips == null) ? 0 : skips;
+	}
+
+
+	/**
+	 * Retain the cached unread mails of the specified folder in the specified mail check,
+	 * without fetching them from the server.
+	 *
+	 * @param check
+	 *     mail check
+	 * @param folderName
+	 *     name of the folder
+	 */
+	private void retainCachedMails(
+			final MailCheck check,
+			final String folderName)
+	{
+		synchronized (mailsLock)
+		{
+			check.mailUpdate.retain(mailIndex.getFolderIndex(folderName));
+		}
+	}
+
+
+	/**
+	 * Register a successful mail check by updating the last mail check attempt and success times.
+	 * The last mail check attempt time is not updated for a partial mail check,
+	 * so that the next full mail check is not postponed.
+	 * This method can be called on any thread.
+	 *
+	 * @param fullCheck
+	 *     was the mail check a full mail check of all monitored folders?
+	 * @param newUnreadMails
+	 *     were new unread mails found?
+	 */
+	private void registerMailCheckSuccess(
+			final boolean fullCheck,
+			final boolean newUnreadMails)
+	{
+		final long time = System.currentTimeMillis();
+		mailCheckPolicy.registerSuccess(fullCheck, newUnreadMails);
+
+		/* update account properties */
+		if (fullCheck)
+		{
+			properties.setLong("last.mail.check.attempt", time);
+		}
+
+		properties.setLong("last.mail.check.success", time);
+		properties.setBoolean("error", false);
+		properties.setString("error.message", "");
+		properties.setString("status", "<html>Waiting for next mail check</html>");
+		listener.statusChanged(this);
+		listener.unreadMailsChanged(this);
+	}
+
+
+	/**
+	 * Register a failed mail check by updating the last mail check attempt time,
+	 * and setting the given error message.
+	 * The specified mail store, if any, is also closed.
+	 * This method can be called on any thread.
+	 *
+	 * @param error
+	 *     error message (must not be null)
+	 * @param mailStore
+	 *     mail store to be closed if any; null otherwise
+	 */
+	private void registerMailCheckFailure(
+			final String error,
+			final Store mailStore)
+	{
+		/* trigger a new login attempt */
+		currentMailStore = null;
+		mailCheckPolicy.registerFailure();
+		statistics.registerError();
+
+		/* update account properties */
+		properties.setLong("last.mail.check.attempt", System.currentTimeMillis());
+		properties.setBoolean("error", true);
+		properties.setString("error.message", error);
+		properties.setString("status", String.format("<html><font color='red'>%s</font></html>", getFailureStatus(error)));
+		listener.statusChanged(this);
+		listener.unreadMailsChanged(this);
+
+		/* close mail store, if any */
+		closeMailStore(mailStore);
+	}
+
+
+	/**
+	 * Get the status message for a failed mail check or login,
+	 * noting if the account is no longer being retried for a while.
+	 *
+	 * @param error
+	 *     error message
+	 * @return
+	 *     status message
+	 */
+	private String getFailureStatus(
+			final String error)
+	{
+		if (mailCheckPolicy.isCircuitOpen())
+		{
+			return String.format("%s; retrying in %s", error,
+					MailCheckEnvironment.timeDurationString(mailCheckPolicy.getDelay()));
+		}
+
+		return error;
+	}
+
+
+	/**
+	 * Close the specified mail store.
+	 * The mail store is aborted if it does not close before the mail store deadline.
+	 * This method runs on a background thread of the scheduler.
+	 *
+	 * @param mailStore
+	 *     mail store to be closed.
+	 */
+	private void closeMailStore(
+			final Store mailStore)
+	{
+		if (mailStore != null)
+		{
+			environment.scheduler.execute(new Runnable()
+			{
+				public void run()
+				{
+					final Future<?> deadline = scheduleMailStoreDeadline(mailStore, "Close");
+
+					try
+					{
+						mailStore.close();
+					}
+					catch (Exception e)
+					{
+						/* ignore */
+					}
+					finally
+					{
+						deadline.cancel(false);
+					}
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Set a deadline for an operation on the specified mail store, such as a login or logout,
+	 * that may block on the server. If the deadline expires, the mail store is aborted.
+	 *
+	 * @param mailStore
+	 *     mail store
+	 * @param operation
+	 *     name of the operation, for debugging
+	 * @return
+	 *     future to be cancelled when the operation completes
+	 */
+	private Future<?> scheduleMailStoreDeadline(
+			final Store mailStore,
+			final String operation)
+	{
+		return environment.scheduler.scheduleDeadline(new Runnable()
+		{
+			public void run()
+			{
+				if (environment.debug)
+				{
+					environment.logger.log("[%s] %s of mail store aborted (unresponsive)", properties.getString("username"), operation);
+				}
+
+				abortMailStore(mailStore);
+			}
+		},
+		environment.properties.getLong("mail.store.timeout.milliseconds"));
+	}
+
+
+	/**
+	 * Abort the specified mail store by closing the sockets of all its connections,
+	 * without logging out. Threads blocked on the mail store, such as mail checks,
+	 * IDLE loops, and logouts, get a connection failure and return.
+	 * This method does not block, and can be called on any thread.
+	 *
+	 * @param mailStore
+	 *     mail store to be aborted; null if none
+	 */
+	private static void abortMailStore(
+			final Store mailStore)
+	{
+		if (mailStore instanceof IMAPStore)
+		{
+			((IMAPStore) mailStore).abort();
+		}
+	}
+
+
+	/**
+	 * Create a new mail store for this email account.
+	 * This method can be called on any thread.
+	 */
+	private void createNewMailStore()
+	{
+		/* get username for login */
+		String username = properties.getString("username");
+
+		if (!username.contains("@"))
+		{
+			/* treat as Gmail account */
+			username += environment.properties.getString("gmail.username.suffix");
+		}
+
+		/* mail server parameters */
+		final String protocol = environment.properties.getString("incoming.protocol");
+		final String server = environment.properties.getString("incoming.server");
+		final int port = environment.properties.getInt("incoming.port");
+
+		Store mailStore = null;
+
+		try
+		{
+			listener.loginStarted(this);
+			properties.setString("status", "<html><font color='blue'>Logging in...</font></html>");
+			listener.statusChanged(this);
+
+			/* create new mail store, keeping enough pooled connections for parallel folder checks */
+			final Properties sessionProperties = new Properties(System.getProperties());
+			sessionProperties.setProperty(String.format("mail.%s.connectionpoolsize", protocol),
+					Integer.toString(Math.max(1, environment.properties.getInt("mail.check.parallel.folders"))));
+			sessionProperties.setProperty(String.format("mail.%s.connectiontimeout", protocol),
+					Long.toString(environment.properties.getLong("mail.store.timeout.milliseconds")));
+			sessionProperties.setProperty(String.format("mail.%s.recycleresponses", protocol), "true");
+
+			final Session session = Session.getInstance(sessionProperties, null);
+			session.setDebug(false);
+
+			mailStore = session.getStore(protocol); /* throws NoSuchProviderException */
+
+			final Future<?> deadline = scheduleMailStoreDeadline(mailStore, "Login");
+
+			try
+			{
+				mailStore.connect(
+						server,
+						port,
+						username,
+						properties.getString("password")); /* throws AuthenticationFailedException, MessagingException, IllegalStateException */
+			}
+			finally
+			{
+				deadline.cancel(false);
+			}
+
+			if (mailStore instanceof IMAPStore)
+			{
+				statistics.recordMilliseconds(MailCheckStatistics.Phase.CONNECT, ((IMAPStore) mailStore).getConnectTime());
+				statistics.recordMilliseconds(MailCheckStatistics.Phase.LOGIN, ((IMAPStore) mailStore).getLoginTime());
+			}
+
+			registerMailStoreCreationSuccess(mailStore);
+		}
+		catch (Exception e)
+		{
+			if (environment.debug)
+			{
+				environment.logger.log("[%s] Mail store creation failure (%s)", properties.getString("username"), e.toString());
+			}
+
+			if (e instanceof NoSuchProviderException)
+			{
+				registerMailStoreCreationFailure(
+						String.format("(INTERNAL) Invalid incoming mail protocol \"%s\" (%s).", protocol, e.toString()),
+						mailStore);
+			}
+			else if (e instanceof AuthenticationFailedException)
+			{
+				registerMailStoreCreationFailure(
+						"Failed to connect to the Gmail server." +
+						"\nPlease check that IMAP access is enabled for your Gmail account " +
+						"(Settings > Forwarding and POP/IMAP > IMAP Access), and that your username and password are correct.",
+						mailStore);
+			}
+			else
+			{
+				registerMailStoreCreationFailure(String.format(
+						"Failed to connect to the Gmail server because of an unexpected error (%s).\n" +
+						"Please ensure that %s has internet access to the Gmail IMAP server at %s port %d.",
+						e.toString(), environment.name, server, port),
+						mailStore);
+			}
+		}
+	}
+
+
+	/**
+	 * Register successful creation of a new mail store.
+	 * This method can be called on any thread.
+	 *
+	 * @param mailStore
+	 *     mail store that was created
+	 */
+	private void registerMailStoreCreationSuccess(
+			final Store mailStore)
+	{
+		final int mailStoreId;
+		final Store previousMailStore;
+
+		synchronized (currentMailStoreIdLock)
+		{
+			mailStoreId = ++currentMailStoreId;
+			previousMailStore = currentMailStore;
+			currentMailStore = mailStore;
+
+			/* IDLE loops on the previous mail store, if any, are no longer current */
+			idleFolders.clear();
+		}
+
+		/* closing the previous mail store ends its IDLE loops */
+		closeMailStore(previousMailStore);
+
+		if (environment.debug)
+		{
+			environment.logger.log("[%s] Mail store #%d creation success", properties.getString("username"), mailStoreId);
+		}
+
+		refreshIdleLoops();
+
+		properties.setString("status", "<html><font color='blue'>Login successful</font></html>");
+		listener.statusChanged(this);
+		enable();
+		listener.loginCompleted(this, null);
+	}
+
+
+	/**
+	 * Register failure in creating a new mail store.
+	 * This method can be called on any thread.
+	 *
+	 * @param error
+	 *     error message
+	 * @param mailStore
+	 *     mail store that was created
+	 */
+	private void registerMailStoreCreationFailure(
+			final String error,
+			final Store mailStore)
+	{
+		/* trigger a new login attempt, closing the previous mail store if any */
+		final Store previousMailStore = currentMailStore;
+		currentMailStore = null;
+
+		if (previousMailStore != mailStore)
+		{
+			closeMailStore(previousMailStore);
+		}
+
+		/* close mail store, if any */
+		closeMailStore(mailStore);
+		mailCheckPolicy.registerFailure();
+		statistics.registerError();
+
+		/* update account properties */
+		properties.setLong("last.mail.check.attempt", System.currentTimeMillis());
+		properties.setBoolean("error", true);
+		properties.setString("error.message", "Login failed");
+		properties.setString("status", String.format("<html><font color='red'>%s</font></html>", getFailureStatus("Login failed")));
+		listener.statusChanged(this);
+		listener.unreadMailsChanged(this);
+		listener.loginCompleted(this, error);
+	}
+
+
+	/**
+	 * Start an IDLE loop for each monitored folder that does not already have one
+	 * on the current mail store, and stop the IDLE loops of folders that are no longer monitored.
+	 * This method can be called on any thread.
+	 */
+	void refreshIdleLoops()
+	{
+		final List<MailLabel> mailLabels = (List<MailLabel>) properties.get("mail.labels.object");
+		final Set<String> folderNames = new HashSet<String>();
+
+		for (MailLabel l : mailLabels)
+		{
+			folderNames.add(l.folder);
+		}
+
+		synchronized (currentMailStoreIdLock)
+		{
+			final Store mailStore = currentMailStore;
+
+			if (mailStore == null)
+			{
+				return;
+			}
+
+			/* stop IDLE loops of folders that are no longer monitored */
+			for (Iterator<Map.Entry<String,IMAPFolder>> i = idleFolders.entrySet().iterator(); i.hasNext(); )
+			{
+				final Map.Entry<String,IMAPFolder> me = i.next();
+
+				if (!folderNames.contains(me.getKey()))
+				{
+					i.remove();
+
+					/* closing the folder ends its IDLE command */
+					final IMAPFolder folder = me.getValue();
+
+					environment.scheduler.execute(new Runnable()
+					{
+						public void run()
+						{
+							closeFolder(folder);
+						}
+					});
+				}
+			}
+
+			/* start IDLE loops of newly monitored folders */
+			for (String folderName : folderNames)
+			{
+				if (idleFolders.containsKey(folderName))
+				{
+					continue;
+				}
+
+				final IMAPFolder folder;
+
+				try
+				{
+					folder = (IMAPFolder) mailStore.getFolder(folderName); /* throws MessagingException, IllegalStateException */
+				}
+				catch (Exception e)
+				{
+					continue;
+				}
+
+				idleFolders.put(folderName, folder);
+
+				if (!startNewIdleLoop(folder, folderName))
+				{
+					idleFolders.remove(folderName);
+
+					if (environment.debug)
+					{
+						environment.logger.log("[%s] No IDLE thread or connection available for folder \"%s\"", properties.getString("username"), folderName);
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Start a new loop that calls the IMAP IDLE command iteratively on the specified folder.
+	 * The folder has its own connection, drawn from the connection pool of the mail store.
+	 * A NOOP is issued periodically to end the IDLE command, which is then reissued,
+	 * so that the server does not drop the connection.
+	 * This method runs on a thread of the bounded IDLE pool of the scheduler;
+	 * if no such thread, or no connection of the connection budget, is available, new mails are picked up by periodic mail checks only.
+	 *
+	 * @param folder
+	 *     folder to be monitored
+	 * @param folderName
+	 *     name of the folder to be monitored
+	 * @return
+	 *     true if the loop was started; false otherwise
+	 */
+	private boolean startNewIdleLoop(
+			final IMAPFolder folder,
+			final String folderName)
+	{
+		return environment.scheduler.startIdleLoop(environment.properties.getString("incoming.server"), new Runnable()
+		{
+			/**
+			 * Check if this IDLE loop is still current, i.e. its folder is still monitored
+			 * on the current mail store.
+			 *
+			 * @return
+			 *     true if this IDLE loop is still current; false otherwise
+			 */
+			private boolean isCurrent()
+			{
+				synchronized (currentMailStoreIdLock)
+				{
+					return (idleFolders.get(folderName) == folder);
+				}
+			}
+
+
+			public void run()
+			{
+				/* push notifications trigger a mail check of this folder only */
+				folder.addMessageCountListener(new MessageCountListener()
+				{
+					public void messagesAdded(MessageCountEvent e)
+					{
+						checkFolderNow(folderName);
+					}
+
+					public void messagesRemoved(MessageCountEvent e)
+					{
+						checkFolderNow(folderName);
+					}
+				});
+
+				/* keepalive: end the IDLE command with a NOOP, so that it is reissued; */
+				/* a connection that does not respond in time is dead, so the mail    */
+				/* store is aborted, ending this loop and the next mail check with it  */
+				final Future<?> keepAlive = environment.scheduler.scheduleWithFixedDelay(new Runnable()
+				{
+					public void run()
+					{
+						final Future<?> deadline = scheduleMailStoreDeadline(folder.getStore(), "IDLE keepalive");
+
+						try
+						{
+							if (folder.isOpen())
+							{
+								folder.getMessageCount(); /* throws MessagingException */
+							}
+						}
+						catch (Exception e)
+						{
+							/* ignore */
+						}
+						finally
+						{
+							deadline.cancel(false);
+						}
+					}
+				},
+				environment.properties.getLong("mail.idle.keepalive.milliseconds"));
+
+				try
+				{
+					while (isCurrent())
+					{
+						Debug.sleep(10 * REFRESH_INTERVAL_MILLISECONDS);
+
+						try
+						{
+							if (!folder.isOpen())
+							{
+								if (!folder.exists()) /* throws MessagingException */
+								{
+									continue;
+								}
+
+								folder.open(Folder.READ_ONLY); /* throws MessagingException */
+							}
+
+							if (environment.debug)
+							{
+								environment.logger.log("[%s] IDLE for folder \"%s\" called", properties.getString("username"), folderName);
+							}
+
+							folder.idle(); /* throws MessagingException, IllegalStateException */
+
+							if (environment.debug)
+							{
+								environment.logger.log("[%s] IDLE for folder \"%s\" returned", properties.getString("username"), folderName);
+							}
+						}
+						catch (Exception e)
+						{
+							/* ignore */
+							if (environment.debug)
+							{
+								environment.logger.log("[%s] IDLE for folder \"%s\" exception caught (%s)", properties.getString("username"), folderName, e.toString());
+							}
+						}
+					}
+				}
+				finally
+				{
+					keepAlive.cancel(false);
+					closeFolder(folder);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Enable the account, and check for unread mails right away.
+	 * This method can be called on any thread.
+	 *
+	 * @return
+	 *     true if the account is enabled; false if its username or password is missing
+	 */
+	boolean enable()
+	{
+		if (properties.getString("username").isEmpty() ||
+				properties.getString("password").isEmpty())
+		{
+			return false;
+		}
+
+		if (!properties.getBoolean("enabled"))
+		{
+			properties.setString("status", "<html>Waiting for next mail check</html>");
+			listener.statusChanged(this);
+			checkMailNow = true;
+			mailCheckPolicy.reset();
+			properties.setBoolean("enabled", true);
+			scheduleMailCheck();
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Disable the account.
+	 * This method can be called on any thread.
+	 */
+	void disable()
+	{
+		properties.setBoolean("error", false);
+		properties.setBoolean("enabled", false);
+		properties.setString("status", "<html><font color='red'>Disabled</font></html>");
+		listener.statusChanged(this);
+		listener.unreadMailsChanged(this);
+		scheduleMailCheck();
+	}
+
+
+	/**
+	 * Log in again with the current login credentials, e.g. after they have been edited.
+	 * The account is disabled until the login succeeds, and is enabled after that.
+	 * This method can be called on any thread.
+	 */
+	void login()
+	{
+		disable();
+		mailCheckPolicy.reset();
+
+		environment.scheduler.scheduleBudgeted(
+				this,
+				environment.properties.getString("incoming.server"),
+				1,
+				true,
+				new Runnable()
+				{
+					public void run()
+					{
+						createNewMailStore();
+					}
+				},
+				0L);
+	}
+
+
+	/**
+	 * Check if this account is logged in, i.e. has a current mail store.
+	 *
+	 * @return
+	 *     true if this account is logged in; false otherwise
+	 */
+	boolean isLoggedIn()
+	{
+		return (currentMailStore != null);
+	}
+
+
+	/**
+	 * Remove this account: disable it, unregister it from the scheduler,
+	 * log out, and delete its mail summary cache.
+	 * This method can be called on any thread.
+	 */
+	void remove()
+	{
+		disable();
+		environment.scheduler.unregister(this);
+		closeMailStore(currentMailStore);
+		mailCache.delete();
+	}
+
+
+	/**
+	 * Check for unread mails now, if the login credentials have been verified.
+	 */
+	void checkMailNow()
+	{
+		checkMailNow = true;
+		scheduleMailCheck();
+	}
+
+
+	/**
+	 * Check for unread mails in the specified folder now, following a push notification
+	 * from the server. The other folders are not checked, unless a full mail check is due.
+	 *
+	 * @param folderName
+	 *     name of the folder to be checked
+	 */
+	private void checkFolderNow(
+			final String folderName)
+	{
+		synchronized (pushedFolders)
+		{
+			pushedFolders.add(folderName);
+		}
+
+		scheduleMailCheck();
+	}
+
+
+	/**
+	 * Compare this account to the specified account by account ID.
+	 */
+	public int compareTo(
+			MailAccount o)
+	{
+		if (accountId < o.accountId) return -1;
+		if (accountId > o.accountId) return 1;
+		return 0;
+	}
+
+
+	/**
+	 * Check for equality between this account and the specified account by account ID.
+	 */
+	@Override
+	public boolean equals(
+			Object obj)
+	{
+		if (obj instanceof MailAccount)
+		{
+			return (accountId == ((MailAccount) obj).accountId);
+		}
+		else
+		{
+			return false;
+		}
+	}
+
+
+	/**
+	 * Generate hash code for this account, using the account ID.
+	 */
+	@Override
+	public int hashCode()
+	{
+		return accountId;
+	}
+
+
+	/**
+	 * Get total number of mails.
+	 * This method can be called on any thread.
+	 *
+	 * @return
+	 *     total number of mails
+	 */
+	int getTotalNumMails()
+	{
+		synchronized (mailsLock)
+		{
+			return mailIndex.size();
+		}
+	}
+
+
+	/**
+	 * Get the first mail.
+	 * This method can be called on any thread.
+	 *
+	 * @return
+	 *     first mail; null if there are no mails
+	 */
+	Mail getFirstMail()
+	{
+		synchronized (mailsLock)
+		{
+			return mailIndex.first();
+		}
+	}
+
+
+	/**
+	 * Get the last mail.
+	 * This method can be called on any thread.
+	 *
+	 * @return
+	 *     last mail; null if there are no mails
+	 */
+	Mail getLastMail()
+	{
+		synchronized (mailsLock)
+		{
+			return mailIndex.last();
+		}
+	}
+
+
+	/**
+	 * Get the next mail that comes after the specified mail.
+	 * This method can be called on any thread.
+	 *
+	 * @param m
+	 *     mail
+	 * @return
+	 *     next mail that comes after <code>m</code>; null if there is none
+	 */
+	Mail getNextMail(
+			final Mail m)
+	{
+		/* mails are ordered by account, then by sequence number */
+		final int c = m.account.compareTo(this);
+
+		synchronized (mailsLock)
+		{
+			if (c == 0)
+			{
+				return mailIndex.higher(m.sequenceNumber);
+			}
+
+			return (c < 0) ? mailIndex.first() : null;
+		}
+	}
+
+
+	/**
+	 * Get the previous mail that comes before the specified mail.
+	 * This method can be called on any thread.
+	 *
+	 * @param m
+	 *     mail
+	 * @return
+	 *     previous mail that comes before <code>m</code>; null if there is none
+	 */
+	Mail getPreviousMail(
+			final Mail m)
+	{
+		/* mails are ordered by account, then by sequence number */
+		final int c = m.account.compareTo(this);
+
+		synchronized (mailsLock)
+		{
+			if (c == 0)
+			{
+				return mailIndex.lower(m.sequenceNumber);
+			}
+
+			return (c > 0) ? mailIndex.last() : null;
+		}
+	}
+
+	/******************
+	 * NESTED CLASSES *
+	 ******************/
+
+	/**
+	 * State of a single mail check.
+	 * An aborted mail check may still be running when the next one starts,
+	 * so each mail check keeps its work in progress here rather than in the account.
+	 */
+	private static class MailCheck
+	{
+		/** mail checker thread running the mail check */
+		final Thread thread;
+
+		/** mail store used by the mail check, to be aborted if the mail check becomes unresponsive */
+		volatile Store store = null;
+
+		/** changes to the unread mails */
+		final UnreadMailIndex.Update mailUpdate = new UnreadMailIndex.Update();
+
+		/** pending new mails in <code>mailUpdate</code>, by position */
+		final List<PendingMail> pendingMails = new ArrayList<PendingMail>();
+
+		/** folder name ---> folder status mapping */
+		final Map<String,Status> newFolderStatus = new HashMap<String,Status>();
+
+		/** folder name ---> number of consecutive skips of the folder as unchanged */
+		final Map<String,Integer> newFolderSkips = new HashMap<String,Integer>();
+
+		/** have the results been published to the account? (guarded by <code>mailsLock</code>) */
+		boolean published = false;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param thread
+		 *     mail checker thread running the mail check
+		 */
+		MailCheck(
+				final Thread thread)
+		{
+			this.thread = thread;
+		}
+	}
+
+
+	/**
+	 * Check of a single folder in the current mail check.
+	 * The fields are written by the thread running the folder check, and read by
+	 * the mail checker thread only after the folder check has completed.
+	 */
+	private static class FolderCheck
+	{
+		/** name of the folder */
+		final String folderName;
+
+		/** folder */
+		final IMAPFolder folder;
+
+		/** search term for the unread mails */
+		final SearchTerm searchTerm;
+
+		/** fetch profile for the new unread mails */
+		final FetchProfile fetchProfile;
+
+		/** is the folder checked because of a push notification (so it is searched even if its status is unchanged)? */
+		final boolean pushed;
+
+		/** folder status; null if not available */
+		Status status = null;
+
+		/** is the folder unchanged since the last mail check? */
+		boolean unchanged = false;
+
+		/** number of consecutive mail checks, including this one, that skipped the folder as unchanged */
+		int skips = 0;
+
+		/** sorted UIDs of the unseen mails; null if the folder does not exist */
+		long[] uids = null;
+
+		/** new mails not yet in the mail index, in increasing UID order */
+		PendingMail[] pendingMails = null;
+
+		/** exception thrown by the folder check, if any */
+		Exception exception = null;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param folderName
+		 *     name of the folder
+		 * @param folder
+		 *     folder
+		 * @param searchTerm
+		 *     search term for the unread mails
+		 * @param fetchProfile
+		 *     fetch profile for the new unread mails
+		 * @param pushed
+		 *     is the folder checked because of a push notification?
+		 */
+		FolderCheck(
+				final String folderName,
+				final IMAPFolder folder,
+				final SearchTerm searchTerm,
+				final FetchProfile fetchProfile,
+				final boolean pushed)
+		{
+			this.folderName = folderName;
+			this.folder = folder;
+			this.searchTerm = searchTerm;
+			this.fetchProfile = fetchProfile;
+			this.pushed = pushed;
+		}
+	}
+
+
+	/**
+	 * New mail pending creation in the current mail check.
+	 */
+	private static class PendingMail
+	{
+		/** name of the folder containing the mail */
+		final String folderName;
+
+		/** UIDVALIDITY of the folder */
+		final long uidValidity;
+
+		/** UID of the mail */
+		final long uid;
+
+		/** cached summary of the mail, if any */
+		Mail cached = null;
+
+		/** message fetched from the server, if the mail is not cached */
+		Message message = null;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param folderName
+		 *     name of the folder containing the mail
+		 * @param uidValidity
+		 *     UIDVALIDITY of the folder
+		 * @param uid
+		 *     UID of the mail
+		 */
+		PendingMail(
+				final String folderName,
+				final long uidValidity,
+				final long uid)
+		{
+			this.folderName = folderName;
+			this.uidValidity = uidValidity;
+			this.uid = uid;
+		}
+	}
+
+
+	/**
+	 * Listener notified of changes to a mail account.
+	 * The methods are called on the mail checker threads of the scheduler, or on the
+	 * thread that changed the account; implementations must not block for long.
+	 */
+	static interface Listener
+	{
+		/**
+		 * The status of the account (the "status", "error", and "enabled" properties)
+		 * has changed.
+		 *
+		 * @param ac
+		 *     account
+		 */
+		void statusChanged(
+				final MailAccount ac);
+
+
+		/**
+		 * The number of unread mails of the account, or its error state, may have changed.
+		 *
+		 * @param ac
+		 *     account
+		 */
+		void unreadMailsChanged(
+				final MailAccount ac);
+
+
+		/**
+		 * A mail check has completed successfully, and the unread mails of the account
+		 * have been updated.
+		 *
+		 * @param ac
+		 *     account
+		 * @param newMails
+		 *     new unread mails found by the mail check, in increasing sequence number order;
+		 *     empty if there are none
+		 */
+		void mailsUpdated(
+				final MailAccount ac,
+				final List<Mail> newMails);
+
+
+		/**
+		 * A login has started.
+		 *
+		 * @param ac
+		 *     account
+		 */
+		void loginStarted(
+				final MailAccount ac);
+
+
+		/**
+		 * A login has completed.
+		 * The account has already been enabled if the login was successful.
+		 *
+		 * @param ac
+		 *     account
+		 * @param error
+		 *     error message if the login failed; null if it was successful
+		 */
+		void loginCompleted(
+				final MailAccount ac,
+				final String error);
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.freeshell.zs.gmailassistant;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.freeshell.zs.common.Logger;
+import org.freeshell.zs.common.ResourceManipulator;
+import org.freeshell.zs.common.SimpleProperties;
+import org.freeshell.zs.common.TerminatingException;
+
+
+/**
+ * Program-wide state shared by the mail checks of all accounts: the program
+ * properties, the debug logger, and the mail check scheduler.
+ * Unlike the main GmailAssistant form, it does not depend on AWT or Swing,
+ * so that the mail checks can also be run headless (see {@link GmailAssistantDaemon}).
+ */
+class MailCheckEnvironment
+{
+	/** default program properties file */
+	static final String DEFAULT_PROGRAM_PROPERTIES =
+			"/org/freeshell/zs/gmailassistant/resources/program.properties.txt";
+
+	/** program name */
+	final String name;
+
+	/** program properties */
+	final SimpleProperties properties;
+
+	/** is debug mode on? */
+	final boolean debug;
+
+	/** logger used when debug mode is on; null otherwise */
+	final Logger logger;
+
+	/** scheduler for the mail checks of all accounts */
+	final MailCheckScheduler scheduler;
+
+
+	/**
+	 * Constructor.
+	 * The mail check scheduler is created with the given program properties.
+	 *
+	 * @param properties
+	 *      program properties
+	 * @param logger
+	 *      logger to be used in debug mode; null if debug mode is off
+	 */
+	MailCheckEnvironment(
+			final SimpleProperties properties,
+			final Logger logger)
+	{
+		this.name = properties.getString("name");
+		this.properties = properties;
+		this.debug = (logger != null);
+		this.logger = logger;
+		this.scheduler = new MailCheckScheduler(properties);
+	}
+
+
+	/**
+	 * Load the default program properties, compiling the regex patterns
+	 * (keys ending with ".pattern") into ".pattern.object" properties.
+	 *
+	 * @return
+	 *      default program properties
+	 * @throws org.freeshell.zs.common.TerminatingException
+	 *      if the properties cannot be loaded
+	 */
+	static SimpleProperties loadProgramProperties()
+	{
+		/* load default program properties */
+		final SimpleProperties properties;
+
+		try
+		{
+			properties = new SimpleProperties(ResourceManipulator.resourceAsString(DEFAULT_PROGRAM_PROPERTIES));
+		}
+		catch (Exception e)
+		{
+			throw new TerminatingException(String.format("(INTERNAL) Failed to load default program properties (%s).", e.toString()));
+		}
+
+		/* compile regex patterns, if any */
+		final List<String> patterns = new ArrayList<String>();
+
+		for (String k : properties.keySet())
+		{
+			if (k.endsWith(".pattern"))
+			{
+				patterns.add(k);
+			}
+		}
+
+		for (String k: patterns)
+		{
+			final String v = properties.getString(k);
+
+			try
+			{
+				properties.set(k + ".object", Pattern.compile(v));
+			}
+			catch (Exception e)
+			{
+				throw new TerminatingException(String.format("(INTERNAL) Failed to compile regex pattern \"%s\" (%s).", v, e.toString()));
+			}
+		}
+
+		return properties;
+	}
+
+
+	/**
+	 * Provide a string description for a specified time duration.
+	 *
+	 * @param millis
+	 *      time duration in milliseconds
+	 * @return
+	 *      string description for the specified time duration (e.g. "5 minutes", "1 hour")
+	 */
+	static String timeDurationString(
+			final long millis)
+	{
+		String s;
+
+		final long t = (millis == Long.MIN_VALUE) ? Long.MAX_VALUE : Math.abs(millis);
+		final long seconds = t / 1000L;
+		final long minutes = t / 60000L;
+		final long hours = t / 3600000L;
+		final long days = t / 86400000L;
+
+		if (days >= 2)
+		{
+			s = days + " days";
+		}
+		else if (hours >= 2)
+		{
+			s = hours + " hours";
+		}
+		else if (minutes >= 2)
+		{
+			s = minutes + " minutes";
+		}
+		else if (seconds >= 2)
+		{
+			s = seconds + " seconds";
+		}
+		else if (t > 0)
+		{
+			s = "1 second";
+		}
+		else
+		{
+			s = "0 seconds";
+		}
+
+		return s;
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.freeshell.zs.gmailassistant;
+
+import java.util.Random;
+
+
+/**
+ * Decide when the next full mail check of an account is due.
+ * <ul>
+ * <li>The mail check interval adapts to the account's activity: it is shortened
+ *     after a mail check that finds new unread mails, and lengthened after a quiet one,
+ *     within limits relative to the configured mail check interval.</li>
+ * <li>After a failed mail check, the account is retried with exponential backoff,
+ *     starting from a tenth of the configured mail check interval.</li>
+ * <li>After too many consecutive failures, the circuit breaker opens and the account
+ *     is not retried for a long time; the next failure after that reopens it at once.</li>
+ * <li>Every delay is randomized (jitter), and the first mail checks of the accounts
+ *     are staggered, so that the mail checks of many accounts do not align.</li>
+ * </ul>
+ * All the methods of this class are thread-safe.
+ */
+class MailCheckPolicy
+{
+	/** factor by which the interval is shortened after new unread mails are found */
+	private static final double SHORTEN_FACTOR = 0.5;
+
+	/** factor by which the interval is lengthened after a quiet mail check */
+	private static final double LENGTHEN_FACTOR = 1.25;
+
+	/** environment shared by the mail checks of all accounts */
+	private final MailCheckEnvironment environment;
+
+	/** random number generator for jitter */
+	private final Random random = new Random();
+
+	/** current interval, as a fraction of the configured mail check interval */
+	private double intervalFactor = 1.0;
+
+	/** number of consecutive failed mail checks */
+	private int consecutiveFailures = 0;
+
+	/** is the circuit breaker open? */
+	private boolean circuitOpen = false;
+
+	/** jitter factor applied to the next delay, e.g. 1.05 for 5% longer */
+	private double jitterFactor = 1.0;
+
+	/** time of the first mail check, to stagger the first mail checks of the accounts */
+	private long firstMailCheckTime;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param environment
+	 *      environment shared by the mail checks of all accounts
+	 * @param staggerIndex
+	 *      number of accounts whose first mail checks precede that of this account
+	 */
+	MailCheckPolicy(
+			final MailCheckEnvironment environment,
+			final int staggerIndex)
+	{
+		this.environment = environment;
+
+		firstMailCheckTime = System.currentTimeMillis() +
+				staggerIndex * environment.properties.getLong("mail.check.stagger.milliseconds");
+	}
+
+
+	/**
+	 * Get the time at which the next full mail check is due.
+	 *
+	 * @param lastAttemptTime
+	 *      time of the last mail check attempt; zero if there has been none
+	 * @return
+	 *      time at which the next full mail check is due
+	 */
+	synchronized long getNextMailCheckTime(
+			final long lastAttemptTime)
+	{
+		if (lastAttemptTime == 0L)
+		{
+			return firstMailCheckTime;
+		}
+
+		return lastAttemptTime + (long) (getDelay() * jitterFactor);
+	}
+
+
+	/**
+	 * Register a successful mail check.
+	 *
+	 * @param fullCheck
+	 *      was the mail check a full mail check of all monitored folders?
+	 * @param newUnreadMails
+	 *      were new unread mails found?
+	 */
+	synchronized void registerSuccess(
+			final boolean fullCheck,
+			final boolean newUnreadMails)
+	{
+		consecutiveFailures = 0;
+		circuitOpen = false;
+
+		if (environment.properties.getBoolean("mail.check.adaptive"))
+		{
+			final double min = environment.properties.getInt("mail.check.adaptive.min.percent") / 100.0;
+			final double max = environment.properties.getInt("mail.check.adaptive.max.percent") / 100.0;
+
+			if (newUnreadMails)
+			{
+				intervalFactor = Math.max(min, intervalFactor * SHORTEN_FACTOR);
+			}
+			else if (fullCheck)
+			{
+				intervalFactor = Math.min(max, intervalFactor * LENGTHEN_FACTOR);
+			}
+		}
+		else
+		{
+			intervalFactor = 1.0;
+		}
+
+		updateJitter();
+	}
+
+
+	/**
+	 * Register a failed mail check or login.
+	 */
+	synchronized void registerFailure()
+	{
+		consecutiveFailures++;
+
+		if (consecutiveFailures >= environment.properties.getInt("mail.check.breaker.threshold"))
+		{
+			circuitOpen = true;
+		}
+
+		updateJitter();
+	}
+
+
+	/**
+	 * Reset the policy, e.g. when the account is reenabled or its settings are changed,
+	 * so that the account is not penalized for its past failures.
+	 */
+	synchronized void reset()
+	{
+		intervalFactor = 1.0;
+		consecutiveFailures = 0;
+		circuitOpen = false;
+		jitterFactor = 1.0;
+	}
+
+
+	/**
+	 * Is the circuit breaker open, i.e. has the account failed too many times in a row?
+	 *
+	 * @return
+	 *      true if the circuit breaker is open
+	 */
+	synchronized boolean isCircuitOpen()
+	{
+		return circuitOpen;
+	}
+
+
+	/**
+	 * Get the delay between the last mail check attempt and the next full mail check,
+	 * without jitter.
+	 *
+	 * @return
+	 *      delay in milliseconds
+	 */
+	synchronized long getDelay()
+	{
+		final long interval = environment.properties.getLong("mail.check.interval.milliseconds");
+
+		if (circuitOpen)
+		{
+			return environment.properties.getLong("mail.check.breaker.open.milliseconds");
+		}
+
+		if (consecutiveFailures > 0)
+		{
+			/* exponential backoff, capped at the configured interval */
+			final int exponent = Math.min(consecutiveFailures - 1, 30);
+			return Math.min(interval, (interval / 10) << exponent);
+		}
+
+		return (long) (interval * intervalFactor);
+	}
+
+
+	/**
+	 * Choose a new jitter factor for the next delay.
+	 */
+	private void updateJitter()
+	{
+		final double jitter = environment.properties.getInt("mail.check.jitter.percent") / 100.0;
+		jitterFactor = 1.0 + jitter * (2.0 * random.nextDouble() - 1.0);
+	}
+}
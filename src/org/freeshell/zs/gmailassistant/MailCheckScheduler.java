@@ -0,0 +1,562 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.freeshell.zs.gmailassistant;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.freeshell.zs.common.SimpleProperties;
+
+
+/**
+ * Schedule the mail checks of all accounts on a small, fixed number of threads.
+ * Pending mail checks are kept in a priority queue keyed on their scheduled times,
+ * so an idle account costs no thread at all. IDLE loops, which must block on the
+ * server, run on a separate bounded pool; accounts that cannot obtain an IDLE
+ * thread simply rely on periodic mail checks.
+ * Operations that may block on the server are given deadlines, which expire on a
+ * dedicated watchdog thread; the expiry action closes the sockets involved, so that
+ * the blocked threads are returned to their pools instead of being leaked.
+ * Mail checks, logins and IDLE loops draw on a global connection budget
+ * (see {@link ConnectionBudget}); mail checks and logins that are due wait their turn
+ * in weighted fair order when the budget is exhausted.
+ */
+class MailCheckScheduler
+{
+	/** number of threads for closing mail stores */
+	private static final int NUM_BACKGROUND_THREADS = 2;
+
+	/** executor for mail checks and logins, ordered by scheduled time */
+	private final ScheduledThreadPoolExecutor checkExecutor;
+
+	/** bounded executor for IDLE loops; rejects new loops when all threads are busy */
+	private final ThreadPoolExecutor idleExecutor;
+
+	/** executor for background tasks that may block, such as closing mail stores */
+	private final ThreadPoolExecutor backgroundExecutor;
+
+	/** executor for folder checks that run in parallel within a mail check */
+	private final ThreadPoolExecutor folderExecutor;
+
+	/** single-thread executor for deadline expiry actions, which must never block */
+	private final ScheduledThreadPoolExecutor watchdogExecutor;
+
+	/** registered accounts */
+	private final Set<MailAccount> accounts = new CopyOnWriteArraySet<MailAccount>();
+
+	/** number of expired deadlines */
+	private final AtomicInteger numExpiredDeadlines = new AtomicInteger();
+
+	/** number of aborted mail checks whose threads have not returned yet */
+	private final AtomicInteger numAbortedMailChecks = new AtomicInteger();
+
+	/** global budget for the server connections of all accounts */
+	private final ConnectionBudget budget;
+
+	/** is a dispatch scheduled for logins held back by the login rate limit? */
+	private final AtomicBoolean loginDispatchPending = new AtomicBoolean();
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param properties
+	 *      program properties
+	 */
+	MailCheckScheduler(
+			final SimpleProperties properties)
+	{
+		checkExecutor = new ScheduledThreadPoolExecutor(
+				Math.max(1, properties.getInt("mail.check.threads")),
+				new NamedThreadFactory("Mail checker"));
+
+		idleExecutor = new ThreadPoolExecutor(
+				0,
+				Math.max(1, properties.getInt("mail.idle.threads")),
+				60L,
+				TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new NamedThreadFactory("IDLE"));
+
+		backgroundExecutor = new ThreadPoolExecutor(
+				NUM_BACKGROUND_THREADS,
+				NUM_BACKGROUND_THREADS,
+				0L,
+				TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new NamedThreadFactory("Background"));
+
+		final int folderThreads = Math.max(1, properties.getInt("mail.check.folder.threads"));
+
+		folderExecutor = new ThreadPoolExecutor(
+				folderThreads,
+				folderThreads,
+				60L,
+				TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new NamedThreadFactory("Folder checker"));
+
+		folderExecutor.allowCoreThreadTimeOut(true);
+
+		watchdogExecutor = new ScheduledThreadPoolExecutor(
+				1,
+				new NamedThreadFactory("Watchdog"));
+
+		budget = new ConnectionBudget(properties);
+	}
+
+
+	/**
+	 * Register the specified account with the scheduler.
+	 *
+	 * @param ac
+	 *      account to be registered
+	 */
+	void register(
+			final MailAccount ac)
+	{
+		accounts.add(ac);
+	}
+
+
+	/**
+	 * Get the number of accounts registered with the scheduler.
+	 *
+	 * @return
+	 *      number of registered accounts
+	 */
+	int getNumAccounts()
+	{
+		return accounts.size();
+	}
+
+
+	/**
+	 * Unregister the specified account from the scheduler.
+	 *
+	 * @param ac
+	 *      account to be unregistered
+	 */
+	void unregister(
+			final MailAccount ac)
+	{
+		accounts.remove(ac);
+		budget.removeTenant(ac);
+	}
+
+
+	/**
+	 * Schedule the specified task, which connects to a mail server, to run on a mail
+	 * checker thread once the given delay has elapsed and the connection budget admits it.
+	 * Until then, the task waits in weighted fair order with the tasks of other accounts.
+	 *
+	 * @param ac
+	 *      account on whose behalf the task is run
+	 * @param host
+	 *      host to which the task connects
+	 * @param connections
+	 *      number of connections used by the task
+	 * @param login
+	 *      does the task log in?
+	 * @param task
+	 *      task to be run
+	 * @param delayMilliseconds
+	 *      delay in milliseconds
+	 * @return
+	 *      future representing the scheduled task
+	 */
+	Future<?> scheduleBudgeted(
+			final MailAccount ac,
+			final String host,
+			final int connections,
+			final boolean login,
+			final Runnable task,
+			final long delayMilliseconds)
+	{
+		final BudgetedTask t = new BudgetedTask(task, ac, host, connections, login);
+
+		t.timer = checkExecutor.schedule(new Runnable()
+		{
+			public void run()
+			{
+				budget.enqueue(t.request);
+				dispatch();
+			}
+		},
+		Math.max(0L, delayMilliseconds),
+		TimeUnit.MILLISECONDS);
+
+		return t;
+	}
+
+
+	/**
+	 * Run the queued tasks that the connection budget admits, each on a mail checker thread.
+	 * If a login is held back by the login rate limit only, another dispatch is scheduled
+	 * for when it can be admitted.
+	 * This method can be called on any thread.
+	 */
+	private void dispatch()
+	{
+		ConnectionBudget.Request r;
+
+		while ((r = budget.poll()) != null)
+		{
+			final ConnectionBudget.Request admitted = r;
+
+			checkExecutor.execute(new Runnable()
+			{
+				public void run()
+				{
+					final long start = System.currentTimeMillis();
+
+					try
+					{
+						admitted.task.run();
+					}
+					finally
+					{
+						budget.release(admitted, System.currentTimeMillis() - start);
+						dispatch();
+					}
+				}
+			});
+		}
+
+		final long delay = budget.getLoginDelay();
+
+		if ((delay >= 0L) && loginDispatchPending.compareAndSet(false, true))
+		{
+			checkExecutor.schedule(new Runnable()
+			{
+				public void run()
+				{
+					loginDispatchPending.set(false);
+					dispatch();
+				}
+			},
+			delay,
+			TimeUnit.MILLISECONDS);
+		}
+	}
+
+
+	/**
+	 * Schedule the specified task to run repeatedly on a mail checker thread,
+	 * with the given delay between the end of one run and the start of the next.
+	 *
+	 * @param task
+	 *      task to be run
+	 * @param delayMilliseconds
+	 *      delay in milliseconds
+	 * @return
+	 *      future representing the scheduled task
+	 */
+	Future<?> scheduleWithFixedDelay(
+			final Runnable task,
+			final long delayMilliseconds)
+	{
+		final long delay = Math.max(1L, delayMilliseconds);
+		return checkExecutor.scheduleWithFixedDelay(task, delay, delay, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Start the specified IDLE loop on the bounded IDLE pool.
+	 * The loop holds a connection of the connection budget for as long as it runs.
+	 *
+	 * @param host
+	 *      host to which the loop connects
+	 * @param loop
+	 *      IDLE loop to be run
+	 * @return
+	 *      true if the loop was started; false if all IDLE threads are busy,
+	 *      or if the host has no connection left in the connection budget
+	 */
+	boolean startIdleLoop(
+			final String host,
+			final Runnable loop)
+	{
+		if (!budget.tryAcquireConnection(host))
+		{
+			return false;
+		}
+
+		try
+		{
+			idleExecutor.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						loop.run();
+					}
+					finally
+					{
+						budget.releaseConnection(host);
+					}
+				}
+			});
+
+			return true;
+		}
+		catch (RejectedExecutionException e)
+		{
+			budget.releaseConnection(host);
+			return false;
+		}
+	}
+
+
+	/**
+	 * Run the specified task on a background thread.
+	 *
+	 * @param task
+	 *      task to be run
+	 */
+	void execute(
+			final Runnable task)
+	{
+		backgroundExecutor.execute(task);
+	}
+
+
+	/**
+	 * Submit the specified folder check task to run on a folder checker thread.
+	 * Folder checker threads are shared by all accounts; a mail check that submits
+	 * folder check tasks must not rely on them starting promptly.
+	 *
+	 * @param task
+	 *      task to be run
+	 * @return
+	 *      future representing the submitted task
+	 */
+	Future<?> submitFolderCheck(
+			final Runnable task)
+	{
+		return folderExecutor.submit(task);
+	}
+
+
+	/**
+	 * Remove the specified folder check task, if it has not started yet.
+	 *
+	 * @param f
+	 *      future returned when the task was submitted
+	 * @return
+	 *      true if the task was removed before it started; false otherwise
+	 */
+	boolean removeFolderCheck(
+			final Future<?> f)
+	{
+		return (f instanceof Runnable) && folderExecutor.remove((Runnable) f);
+	}
+
+
+	/**
+	 * Set a deadline for an operation that may block on the server.
+	 * Unless the returned future is cancelled within the specified time, the given
+	 * expiry action is run on the watchdog thread. The expiry action must not block;
+	 * it typically closes the sockets on which the operation is blocked.
+	 *
+	 * @param expiry
+	 *      action to be run when the deadline expires
+	 * @param timeoutMilliseconds
+	 *      time allowed for the operation, in milliseconds
+	 * @return
+	 *      future to be cancelled when the operation completes
+	 */
+	Future<?> scheduleDeadline(
+			final Runnable expiry,
+			final long timeoutMilliseconds)
+	{
+		return watchdogExecutor.schedule(new Runnable()
+		{
+			public void run()
+			{
+				numExpiredDeadlines.incrementAndGet();
+
+				try
+				{
+					expiry.run();
+				}
+				catch (Exception e)
+				{
+					/* ignore */
+				}
+			}
+		},
+		Math.max(0L, timeoutMilliseconds),
+		TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Register that a mail check has been aborted, and that its thread
+	 * is expected to return once its connections have been closed.
+	 */
+	void registerAbortedMailCheck()
+	{
+		numAbortedMailChecks.incrementAndGet();
+	}
+
+
+	/**
+	 * Register that the thread of an aborted mail check has returned.
+	 */
+	void registerAbortedMailCheckReturn()
+	{
+		numAbortedMailChecks.decrementAndGet();
+	}
+
+
+	/**
+	 * Get a one-line summary of the live threads of the scheduler, for the debug console.
+	 *
+	 * @return
+	 *      summary of live threads
+	 */
+	String getThreadStatus()
+	{
+		return String.format(
+				"Threads: mail checker %d (%d busy, %d aborted), IDLE %d, folder checker %d (%d busy), " +
+				"background %d (%d busy, %d queued); expired deadlines %d; budget: %s",
+				checkExecutor.getPoolSize(),
+				checkExecutor.getActiveCount(),
+				numAbortedMailChecks.get(),
+				idleExecutor.getActiveCount(),
+				folderExecutor.getPoolSize(),
+				folderExecutor.getActiveCount(),
+				backgroundExecutor.getPoolSize(),
+				backgroundExecutor.getActiveCount(),
+				backgroundExecutor.getQueue().size(),
+				numExpiredDeadlines.get(),
+				budget.getStatus());
+	}
+
+
+	/**
+	 * Task that waits for its turn in the connection budget before it runs.
+	 * Cancelling the task also removes it from the budget queues.
+	 */
+	private class BudgetedTask
+			extends FutureTask<Object>
+	{
+		/** request for a share of the connection budget */
+		final ConnectionBudget.Request request;
+
+		/** future of the delay before the task is queued */
+		volatile Future<?> timer;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param task
+		 *      task to be run
+		 * @param ac
+		 *      account on whose behalf the task is run
+		 * @param host
+		 *      host to which the task connects
+		 * @param connections
+		 *      number of connections used by the task
+		 * @param login
+		 *      does the task log in?
+		 */
+		BudgetedTask(
+				final Runnable task,
+				final MailAccount ac,
+				final String host,
+				final int connections,
+				final boolean login)
+		{
+			super(task, null);
+			request = new ConnectionBudget.Request(this, ac, host, connections, login);
+		}
+
+
+		@Override
+		public boolean cancel(
+				final boolean mayInterruptIfRunning)
+		{
+			final Future<?> f = timer;
+
+			if (f != null)
+			{
+				f.cancel(false);
+			}
+
+			final boolean cancelled = super.cancel(mayInterruptIfRunning);
+			budget.remove(request);
+			return cancelled;
+		}
+	}
+
+
+	/**
+	 * Thread factory that creates named daemon threads.
+	 */
+	private static class NamedThreadFactory
+			implements ThreadFactory
+	{
+		/** prefix for thread names */
+		private final String prefix;
+
+		/** number of threads created */
+		private final AtomicInteger count = new AtomicInteger();
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param prefix
+		 *      prefix for thread names
+		 */
+		NamedThreadFactory(
+				final String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+
+		public Thread newThread(
+				final Runnable r)
+		{
+			final Thread t = new Thread(r, String.format("%s #%d", prefix, count.incrementAndGet()));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
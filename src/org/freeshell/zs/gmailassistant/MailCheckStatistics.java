@@ -0,0 +1,374 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.freeshell.zs.gmailassistant;
+
+import com.sun.mail.imap.IMAPStore;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.mail.Store;
+
+
+/**
+ * Latency histograms and counters for the mail checks of an account.
+ * Each phase of a mail check (see {@link Phase}) feeds a histogram with power-of-two
+ * buckets in milliseconds, so recording a sample is a handful of atomic operations and
+ * allocates nothing. Traffic is counted per mail store, as the number of response bytes
+ * read and the number of commands (round trips) sent.
+ * Comparing the phases tells network time (connect), server time (login, search, fetch),
+ * and client time (UI refresh) apart.
+ * All the methods of this class are thread-safe.
+ */
+class MailCheckStatistics
+{
+	/** number of histogram buckets: &lt;1 ms, then [2^(i-1), 2^i) ms, up to &gt;= 2^18 ms */
+	private static final int NUM_BUCKETS = 20;
+
+	/** phases */
+	private static final Phase[] PHASES = Phase.values();
+
+	/** bucket counts, NUM_BUCKETS per phase */
+	private final AtomicLongArray counts = new AtomicLongArray(PHASES.length * NUM_BUCKETS);
+
+	/** total time in milliseconds, per phase */
+	private final AtomicLongArray totals = new AtomicLongArray(PHASES.length);
+
+	/** maximum time in milliseconds, per phase */
+	private final AtomicLongArray maxima = new AtomicLongArray(PHASES.length);
+
+	/** number of failed mail checks and logins */
+	private final AtomicLong errors = new AtomicLong();
+
+	/** number of response bytes read */
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	/** number of commands sent */
+	private final AtomicLong commands = new AtomicLong();
+
+	/** mail store whose traffic was last counted */
+	private Store trafficStore = null;
+
+	/** number of response bytes read by <code>trafficStore</code> when last counted */
+	private long trafficStoreBytesRead = 0L;
+
+	/** number of commands sent by <code>trafficStore</code> when last counted */
+	private long trafficStoreCommands = 0L;
+
+	/** mutex lock for <code>trafficStore</code> and its counts */
+	private final Object trafficLock = new Object();
+
+
+	/**
+	 * Get the current time, for timing a phase with {@link #record(Phase, long)}.
+	 *
+	 * @return
+	 *      current value of the system timer, in nanoseconds
+	 */
+	static long start()
+	{
+		return System.nanoTime();
+	}
+
+
+	/**
+	 * Record the time taken by a phase that started at the specified time.
+	 *
+	 * @param phase
+	 *      phase
+	 * @param startNanoTime
+	 *      start time of the phase, as returned by {@link #start()}
+	 * @return
+	 *      current value of the system timer, to be used as the start time of the next phase
+	 */
+	long record(
+			final Phase phase,
+			final long startNanoTime)
+	{
+		final long now = System.nanoTime();
+		recordMilliseconds(phase, (now - startNanoTime) / 1000000L);
+		return now;
+	}
+
+
+	/**
+	 * Record the time taken by a phase.
+	 *
+	 * @param phase
+	 *      phase
+	 * @param milliseconds
+	 *      time taken, in milliseconds; ignored if negative
+	 */
+	void recordMilliseconds(
+			final Phase phase,
+			final long milliseconds)
+	{
+		if (milliseconds < 0L)
+		{
+			return;
+		}
+
+		final int p = phase.ordinal();
+		final int bucket = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(milliseconds));
+
+		counts.incrementAndGet(p * NUM_BUCKETS + bucket);
+		totals.addAndGet(p, milliseconds);
+
+		for (long max = maxima.get(p); (milliseconds > max) && !maxima.compareAndSet(p, max, milliseconds); max = maxima.get(p))
+		{
+			/* retry */
+		}
+	}
+
+
+	/**
+	 * Record a failed mail check or login.
+	 */
+	void registerError()
+	{
+		errors.incrementAndGet();
+	}
+
+
+	/**
+	 * Count the traffic of the specified mail store since it was last counted.
+	 * The traffic of a new mail store is counted from its creation.
+	 *
+	 * @param mailStore
+	 *      mail store; ignored if null or not an IMAP store
+	 */
+	void countTraffic(
+			final Store mailStore)
+	{
+		if (!(mailStore instanceof IMAPStore))
+		{
+			return;
+		}
+
+		final IMAPStore s = (IMAPStore) mailStore;
+		final long storeBytesRead = s.getBytesRead();
+		final long storeCommands = s.getCommandCount();
+
+		synchronized (trafficLock)
+		{
+			if (trafficStore != mailStore)
+			{
+				trafficStore = mailStore;
+				trafficStoreBytesRead = 0L;
+				trafficStoreCommands = 0L;
+			}
+
+			bytesRead.addAndGet(Math.max(0L, storeBytesRead - trafficStoreBytesRead));
+			commands.addAndGet(Math.max(0L, storeCommands - trafficStoreCommands));
+			trafficStoreBytesRead = Math.max(trafficStoreBytesRead, storeBytesRead);
+			trafficStoreCommands = Math.max(trafficStoreCommands, storeCommands);
+		}
+	}
+
+
+	/**
+	 * Get a summary of the statistics, one line per phase that has samples,
+	 * giving the number of samples, mean, percentiles (as bucket upper bounds),
+	 * maximum, and the nonempty histogram buckets.
+	 *
+	 * @param title
+	 *      title of the summary, e.g. the account username
+	 * @return
+	 *      multi-line summary
+	 */
+	String getSummary(
+			final String title)
+	{
+		final StringBuilder sb = new StringBuilder();
+		final long checks = getCount(Phase.MAIL_CHECK);
+
+		sb.append(String.format(Locale.ENGLISH,
+				"%s: %d mail checks, %d errors, %d bytes read, %d round trips",
+				title, checks, errors.get(), bytesRead.get(), commands.get()));
+
+		if (checks > 0L)
+		{
+			sb.append(String.format(Locale.ENGLISH, " (%d bytes, %d round trips per mail check)",
+					bytesRead.get() / checks, commands.get() / checks));
+		}
+
+		sb.append('\n');
+
+		for (Phase phase : PHASES)
+		{
+			final long n = getCount(phase);
+
+			if (n == 0L)
+			{
+				continue;
+			}
+
+			final int p = phase.ordinal();
+
+			sb.append(String.format(Locale.ENGLISH,
+					"  %-15s n=%-6d mean=%d ms  p50%s  p90%s  p99%s  max=%d ms  [",
+					phase.description,
+					n,
+					totals.get(p) / n,
+					getPercentile(phase, n, 0.50),
+					getPercentile(phase, n, 0.90),
+					getPercentile(phase, n, 0.99),
+					maxima.get(p)));
+
+			String separator = "";
+
+			for (int i = 0; i < NUM_BUCKETS; i++)
+			{
+				final long c = counts.get(p * NUM_BUCKETS + i);
+
+				if (c > 0L)
+				{
+					sb.append(separator).append(getBucketBound(i)).append(':').append(c);
+					separator = " ";
+				}
+			}
+
+			sb.append("]\n");
+		}
+
+		return sb.toString();
+	}
+
+
+	/**
+	 * Get the number of samples of the specified phase.
+	 *
+	 * @param phase
+	 *      phase
+	 * @return
+	 *      number of samples
+	 */
+	private long getCount(
+			final Phase phase)
+	{
+		final int p = phase.ordinal();
+		long n = 0L;
+
+		for (int i = 0; i < NUM_BUCKETS; i++)
+		{
+			n += counts.get(p * NUM_BUCKETS + i);
+		}
+
+		return n;
+	}
+
+
+	/**
+	 * Get the specified percentile of the specified phase, as the bound of its bucket.
+	 *
+	 * @param phase
+	 *      phase
+	 * @param n
+	 *      number of samples
+	 * @param fraction
+	 *      percentile as a fraction, e.g. 0.9 for the 90th percentile
+	 * @return
+	 *      bucket bound, e.g. "&lt;64 ms"
+	 */
+	private String getPercentile(
+			final Phase phase,
+			final long n,
+			final double fraction)
+	{
+		final int p = phase.ordinal();
+		final long rank = Math.max(1L, (long) Math.ceil(n * fraction));
+		long seen = 0L;
+		int i = 0;
+
+		for (; i < NUM_BUCKETS - 1; i++)
+		{
+			seen += counts.get(p * NUM_BUCKETS + i);
+
+			if (seen >= rank)
+			{
+				break;
+			}
+		}
+
+		return getBucketBound(i) + " ms";
+	}
+
+
+	/**
+	 * Get the bound of the specified histogram bucket.
+	 *
+	 * @param bucket
+	 *      bucket index
+	 * @return
+	 *      "&lt;" followed by the exclusive upper bound, or "&gt;=" followed by the
+	 *      lower bound for the last bucket
+	 */
+	private static String getBucketBound(
+			final int bucket)
+	{
+		if (bucket == NUM_BUCKETS - 1)
+		{
+			return ">=" + (1L << (bucket - 1));
+		}
+
+		return "<" + (1L << bucket);
+	}
+
+
+	/******************
+	 * NESTED CLASSES *
+	 ******************/
+
+	/**
+	 * Phases of a mail check.
+	 */
+	enum Phase
+	{
+		CONNECT("Connect"),
+		LOGIN("Login"),
+		FOLDER_OPEN("Folder open"),
+		SEARCH("Search"),
+		UID_RESOLUTION("UID resolution"),
+		ENVELOPE_FETCH("Envelope fetch"),
+		SNIPPET_FETCH("Snippet fetch"),
+		UI_REFRESH("UI refresh"),
+		MAIL_CHECK("Mail check");
+
+		/** description of this phase */
+		final String description;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param description
+		 *      description of this phase
+		 */
+		Phase(
+				final String description)
+		{
+			this.description = description;
+		}
+	}
+}
@@ -0,0 +1,509 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.freeshell.zs.gmailassistant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.freeshell.zs.common.Encryptor;
+import org.freeshell.zs.common.FileIO;
+
+
+/**
+ * Persistent cache of the summaries (from, to, date, subject, snippet) of the unread mails
+ * of an account, keyed by (folder, UIDVALIDITY, UID), so that these mails need not be
+ * fetched from the server again after a restart or a new login.
+ * The cache is kept in memory, and saved to a file next to the profile of the account
+ * (see {@link MailAccount#getMailCacheFile()}), encrypted with the account password.
+ *
+ * <p>Instances of this class are thread-safe.</p>
+ */
+class MailSummaryCache
+{
+	/** cache file format version */
+	private static final int VERSION = 3;
+
+	/** environment shared by the mail checks of all accounts */
+	private final MailCheckEnvironment environment;
+
+	/** account to which the cached mails belong */
+	private final MailAccount account;
+
+	/** folder name ---> cached mail summaries mapping */
+	private final Map<String,FolderSummaries> folders = new HashMap<String,FolderSummaries>();
+
+	/** cache file; null if the cache has not been opened */
+	private File file = null;
+
+	/** password for encrypting the cache file */
+	private String password = null;
+
+	/** has the cache changed since it was last saved? */
+	private boolean dirty = false;
+
+	/** is a save of the cache pending on a background thread? */
+	private boolean savePending = false;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param environment
+	 *     environment shared by the mail checks of all accounts
+	 * @param account
+	 *     account to which the cached mails belong
+	 */
+	MailSummaryCache(
+			final MailCheckEnvironment environment,
+			final MailAccount account)
+	{
+		this.environment = environment;
+		this.account = account;
+	}
+
+
+	/**
+	 * Open the cache stored in the specified file, if it is not already open.
+	 * If the file cannot be read or decrypted, the cache starts out empty.
+	 *
+	 * @param file
+	 *     cache file
+	 * @param password
+	 *     password for decrypting and encrypting the cache file
+	 */
+	synchronized void open(
+			final File file,
+			final String password)
+	{
+		if (file.equals(this.file) && password.equals(this.password))
+		{
+			return;
+		}
+
+		this.file = file;
+		this.password = password;
+		folders.clear();
+		dirty = false;
+
+		if (!file.isFile())
+		{
+			return;
+		}
+
+		try
+		{
+			/* read salt and ciphertext */
+			final int saltLength = environment.properties.getInt("encryption.salt.length");
+			final byte[] salt = new byte[saltLength];
+			final byte[] ciphertextBytes = new byte[(int) file.length() - saltLength];
+			final FileInputStream fis = new FileInputStream(file);
+
+			try
+			{
+				FileIO.blockingRead(fis, salt, 0, saltLength);
+				FileIO.blockingRead(fis, ciphertextBytes, 0, ciphertextBytes.length);
+			}
+			finally
+			{
+				fis.close();
+			}
+
+			/* decrypt and parse cache */
+			final byte[] cleartextBytes = Encryptor.decrypt(
+					salt,
+					environment.properties.getInt("encryption.salt.iterations"),
+					password,
+					ciphertextBytes);
+
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream(cleartextBytes));
+
+			if (in.readInt() != VERSION)
+			{
+				return;
+			}
+
+			for (int numFolders = in.readInt(); numFolders > 0; numFolders--)
+			{
+				final String folderName = in.readUTF();
+				final FolderSummaries fs = new FolderSummaries(in.readLong());
+
+				for (int numMails = in.readInt(); numMails > 0; numMails--)
+				{
+					final long uid = in.readLong();
+					final String from = in.readUTF();
+					final String to = in.readUTF();
+					final Date date = new Date(in.readLong());
+					final String subject = in.readUTF();
+					final long gmailMessageId = in.readLong();
+					final String snippet = in.readBoolean() ? in.readUTF() : null;
+
+					/* a snippet that was never resolved is resolved on demand, by folder and UID */
+					fs.mails.put(uid, new Mail(account, from, to, date, subject, snippet, gmailMessageId, 0));
+				}
+
+				folders.put(folderName, fs);
+			}
+
+			Arrays.fill(cleartextBytes, (byte) 0x00);
+		}
+		catch (Exception e)
+		{
+			/* unreadable cache (e.g. password changed); start afresh */
+			folders.clear();
+
+			if (environment.debug)
+			{
+				environment.logger.log("Failed to read mail summary cache \"%s\" (%s)", file.getPath(), e.toString());
+			}
+		}
+	}
+
+
+	/**
+	 * Get the cached summary of the specified mail.
+	 *
+	 * @param folderName
+	 *     name of the folder containing the mail
+	 * @param uidValidity
+	 *     UIDVALIDITY of the folder
+	 * @param uid
+	 *     UID of the mail
+	 * @return
+	 *     cached mail summary; null if the mail is not in the cache
+	 */
+	synchronized Mail get(
+			final String folderName,
+			final long uidValidity,
+			final long uid)
+	{
+		final FolderSummaries fs = folders.get(folderName);
+
+		if ((fs == null) || (fs.uidValidity != uidValidity))
+		{
+			return null;
+		}
+
+		return fs.mails.get(uid);
+	}
+
+
+	/**
+	 * Add the summary of the specified mail to the cache.
+	 *
+	 * @param folderName
+	 *     name of the folder containing the mail
+	 * @param uidValidity
+	 *     UIDVALIDITY of the folder
+	 * @param uid
+	 *     UID of the mail
+	 * @param m
+	 *     mail
+	 */
+	synchronized void put(
+			final String folderName,
+			final long uidValidity,
+			final long uid,
+			final Mail m)
+	{
+		FolderSummaries fs = folders.get(folderName);
+
+		if ((fs == null) || (fs.uidValidity != uidValidity))
+		{
+			fs = new FolderSummaries(uidValidity);
+			folders.put(folderName, fs);
+		}
+
+		fs.mails.put(uid, m);
+		dirty = true;
+	}
+
+
+	/**
+	 * Retain only the summaries of the specified mails of a folder,
+	 * discarding all summaries of the folder if its UIDVALIDITY has changed.
+	 *
+	 * @param folderName
+	 *     name of the folder
+	 * @param uidValidity
+	 *     UIDVALIDITY of the folder
+	 * @param uids
+	 *     UIDs of the mails to be retained, in increasing order
+	 */
+	synchronized void retain(
+			final String folderName,
+			final long uidValidity,
+			final long[] uids)
+	{
+		final FolderSummaries fs = folders.get(folderName);
+
+		if (fs == null)
+		{
+			return;
+		}
+
+		if (fs.uidValidity != uidValidity)
+		{
+			folders.remove(folderName);
+			dirty = true;
+			return;
+		}
+
+		for (Iterator<Long> i = fs.mails.keySet().iterator(); i.hasNext(); )
+		{
+			if (Arrays.binarySearch(uids, i.next()) < 0)
+			{
+				i.remove();
+				dirty = true;
+			}
+		}
+	}
+
+
+	/**
+	 * Retain only the summaries of the specified folders.
+	 *
+	 * @param folderNames
+	 *     names of the folders to be retained
+	 */
+	synchronized void retainFolders(
+			final Collection<String> folderNames)
+	{
+		if (folders.keySet().retainAll(folderNames))
+		{
+			dirty = true;
+		}
+	}
+
+
+	/**
+	 * Save the cache to its file on a background thread, if it has changed.
+	 */
+	synchronized void save()
+	{
+		if (!dirty || savePending || (file == null))
+		{
+			return;
+		}
+
+		savePending = true;
+
+		environment.scheduler.execute(new Runnable()
+		{
+			public void run()
+			{
+				write();
+			}
+		});
+	}
+
+
+	/**
+	 * Write the cache to its file.
+	 * The file is written to a temporary file first, and then renamed.
+	 * This method runs on a background thread of the scheduler.
+	 */
+	private void write()
+	{
+		final File f;
+		final String pw;
+		final byte[] cleartextBytes;
+
+		/* serialize cache */
+		synchronized (this)
+		{
+			savePending = false;
+			dirty = false;
+			f = file;
+			pw = password;
+
+			if (f == null)
+			{
+				/* cache deleted */
+				return;
+			}
+
+			try
+			{
+				final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				final DataOutputStream out = new DataOutputStream(bos);
+				out.writeInt(VERSION);
+				out.writeInt(folders.size());
+
+				for (Map.Entry<String,FolderSummaries> me : folders.entrySet())
+				{
+					final FolderSummaries fs = me.getValue();
+					out.writeUTF(me.getKey());
+					out.writeLong(fs.uidValidity);
+					out.writeInt(fs.mails.size());
+
+					for (Map.Entry<Long,Mail> e : fs.mails.entrySet())
+					{
+						final Mail m = e.getValue();
+						final String snippet = m.getResolvedSnippet();
+						out.writeLong(e.getKey());
+						out.writeUTF(truncate(m.from));
+						out.writeUTF(truncate(m.to));
+						out.writeLong(m.date.getTime());
+						out.writeUTF(truncate(m.subject));
+						out.writeLong(m.gmailMessageId);
+						out.writeBoolean(snippet != null);
+
+						if (snippet != null)
+						{
+							out.writeUTF(truncate(snippet));
+						}
+					}
+				}
+
+				out.close();
+				cleartextBytes = bos.toByteArray();
+			}
+			catch (IOException e)
+			{
+				return;
+			}
+		}
+
+		/* encrypt and write cache */
+		final File temp = new File(f.getPath() + ".tmp");
+
+		try
+		{
+			final byte[] salt = new byte[environment.properties.getInt("encryption.salt.length")];
+
+			final byte[] ciphertextBytes = Encryptor.encrypt(
+					salt,
+					environment.properties.getInt("encryption.salt.iterations"),
+					pw,
+					cleartextBytes);
+
+			Arrays.fill(cleartextBytes, (byte) 0x00);
+
+			final FileOutputStream fos = new FileOutputStream(temp);
+
+			try
+			{
+				fos.write(salt);
+				fos.write(ciphertextBytes);
+			}
+			finally
+			{
+				fos.close();
+			}
+
+			if (!temp.renameTo(f))
+			{
+				f.delete();
+
+				if (!temp.renameTo(f))
+				{
+					throw new IOException(String.format("Failed to rename \"%s\" to \"%s\".", temp.getPath(), f.getPath()));
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			temp.delete();
+
+			if (environment.debug)
+			{
+				environment.logger.log("Failed to write mail summary cache \"%s\" (%s)", f.getPath(), e.toString());
+			}
+		}
+	}
+
+
+	/**
+	 * Close the cache and delete its file, e.g. when the account is removed.
+	 */
+	synchronized void delete()
+	{
+		if (file != null)
+		{
+			file.delete();
+		}
+
+		file = null;
+		password = null;
+		folders.clear();
+		dirty = false;
+	}
+
+
+	/**
+	 * Truncate the specified string so that its modified UTF-8 encoding
+	 * fits in <code>DataOutputStream.writeUTF()</code>.
+	 *
+	 * @param s
+	 *     string to be truncated
+	 * @return
+	 *     truncated string
+	 */
+	private static String truncate(
+			final String s)
+	{
+		/* each character takes at most 3 bytes */
+		return (s.length() <= 21845) ? s : s.substring(0, 21845);
+	}
+
+	/******************
+	 * NESTED CLASSES *
+	 ******************/
+
+	/**
+	 * Cached mail summaries of a folder.
+	 */
+	private static class FolderSummaries
+	{
+		/** UIDVALIDITY of the folder */
+		final long uidValidity;
+
+		/** UID ---> mail summary mapping */
+		final Map<Long,Mail> mails = new HashMap<Long,Mail>();
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param uidValidity
+		 *     UIDVALIDITY of the folder
+		 */
+		FolderSummaries(
+				final long uidValidity)
+		{
+			this.uidValidity = uidValidity;
+		}
+	}
+}
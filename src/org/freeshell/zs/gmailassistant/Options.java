@@ -323,6 +323,7 @@ class Options
 		/* "Mail Check" options */
 		parent.properties.setLong("mail.check.interval.milliseconds", Long.parseLong(SwingManipulator.getTextJTextField(mailIntervalField).trim()));
 		parent.properties.setLong("mail.check.timeout.milliseconds", Long.parseLong(SwingManipulator.getTextJTextField(mailTimeoutField).trim()));
+		parent.rescheduleMailChecks();
 
 		/* "Alerts" options */
 		parent.properties.setBoolean("alert.popup.persistent.messages", persistentBox.isSelected());
@@ -22,7 +22,6 @@
 
 package org.freeshell.zs.gmailassistant;
 
-import org.freeshell.zs.common.Encryptor;
 import java.awt.Image;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -30,8 +29,6 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -46,9 +43,7 @@ import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import org.freeshell.zs.common.Debug;
-import org.freeshell.zs.common.FileIO;
 import org.freeshell.zs.common.SimpleProperties;
-import org.freeshell.zs.common.StringManipulator;
 import org.freeshell.zs.common.SwingManipulator;
 import org.freeshell.zs.common.TerminatingException;
 
@@ -224,12 +219,8 @@ class ProfileLoader
 						continue NextProfile;
 					}
 
-					final int firstByteMarker;
-					byte[] salt = null;
-					byte[] ciphertextBytes = null;
-					final int lastByteMarker;
+					ProfileReader.Profile profile = null;
 					char[] password = null;
-					byte[] cleartextBytes = null;
 
 					try
 					{
@@ -257,74 +248,13 @@ class ProfileLoader
 						 **********************/
 
 						SwingManipulator.updateLabel(loadError, "<html><font color='blue'>Reading file contents...</font></html>");
-
-						try
-						{
-							final FileInputStream fis = new FileInputStream(f);
-							final int length = (int) f.length();
-
-							/* read first byte marker */
-							firstByteMarker = fis.read();
-
-							if (firstByteMarker == -1)
-							{
-								throw new IOException("Encountered premature EOF.");
-							}
-
-							/* read salt */
-							final int saltLength = parent.properties.getInt("encryption.salt.length");
-							salt = new byte[saltLength];
-							FileIO.blockingRead(fis, salt, 0, saltLength);
-
-							/* read ciphertext */
-							final int ciphertextLength = length - 2 - saltLength;
-							ciphertextBytes = new byte[ciphertextLength];
-							FileIO.blockingRead(fis, ciphertextBytes, 0, ciphertextLength);
-
-							/* read first byte marker */
-							lastByteMarker = fis.read();
-
-							if (lastByteMarker == -1)
-							{
-								throw new IOException("Encountered premature EOF.");
-							}
-
-							try
-							{
-								fis.close();
-							}
-							catch (Exception e)
-							{
-								/* ignore */
-							}
-						}
-						catch (Exception e)
-						{
-							throw new TerminatingException(String.format(
-									"Failed to read file contents of profile \"%s\" (%s).\nPlease check that the file exists and can be read.",
-									f.getPath(), e.toString()));
-						}
-
-						/******************
-						 * CHECK VALIDITY *
-						 ******************/
-
-						SwingManipulator.updateLabel(loadError, "<html><font color='blue'>Checking validity...</font></html>");
-						final int withPasswordByteMarker = parent.properties.getInt("profile.with.password.byte.marker");
-						final int withoutPasswordByteMarker = parent.properties.getInt("profile.without.password.byte.marker");
-
-						if ((firstByteMarker != lastByteMarker) ||
-								((firstByteMarker != withPasswordByteMarker) &&
-								(firstByteMarker != withoutPasswordByteMarker)))
-						{
-							throw new TerminatingException(String.format("Malformed profile \"%s\".", f.getPath()));
-						}
+						profile = parent.profileReader.read(f);
 
 						/******************************************
 						 * PROMPT USER FOR PASSWORD, IF NECESSARY *
 						 ******************************************/
 
-						if (firstByteMarker == withPasswordByteMarker)
+						if (profile.passwordProtected)
 						{
 							promptResponded = false;
 
@@ -368,125 +298,30 @@ class ProfileLoader
 						 *******************/
 
 						SwingManipulator.updateLabel(loadError, "<html><font color='blue'>Decrypting profile...</font></html>");
-						final int iterations = parent.properties.getInt("encryption.salt.iterations");
+						final String[] cleartext;
 
 						try
 						{
-							cleartextBytes = Encryptor.decrypt(salt, iterations, String.valueOf(password), ciphertextBytes);
+							cleartext = parent.profileReader.decrypt(profile, password);
 						}
-						catch (Exception e)
+						catch (TerminatingException e)
 						{
 							synchronized (files)
 							{
 								files.addFirst(f);
 							}
 
-							throw new TerminatingException(String.format(
-									"Failed to decrypt profile \"%s\".\nPlease check that the provided password is correct.",
-									f.getPath()));
+							throw e;
 						}
 
-						final String charset = parent.properties.getString("profile.charset");
-						String[] cleartext = new String(cleartextBytes, charset).split("[\n\r\u0085\u2028\u2028]++");
-
 						/***************************************
 						 * LOAD PROGRAM AND ACCOUNT PROPERTIES *
 						 ***************************************/
 
 						SwingManipulator.updateLabel(loadError, "<html><font color='blue'>Parsing profile...</font></html>");
 
-						/* convert profile from an older program version, if necessary */
-						final String version = parent.properties.getString("version");
-						String profileVersion = version; /* assume current version first */
-
-						for (String s : cleartext)
-						{
-							if (s.startsWith("<") && s.endsWith(">"))
-							{
-								profileVersion = s.substring(1, s.length() - 1);
-							}
-						}
-
-						if (!profileVersion.equals(version))
-						{
-							updateProfile(cleartext, profileVersion);
-						}
-
-						/* parse each line in the profile file */
-						final List<SimpleProperties> accounts = new ArrayList<SimpleProperties>();
-						SimpleProperties current = null;
 						final List<String> errors = new ArrayList<String>();
-
-						for (String s : cleartext)
-						{
-							if (s.isEmpty() || s.startsWith("#"))
-							{
-								/* ignore empty lines and comments */
-							}
-							else if (s.startsWith("<") && s.endsWith(">"))
-							{
-								/* ignore program version */
-							}
-							else if (s.startsWith("[") && s.endsWith("]"))
-							{
-								/* start recording properties for a new account */
-								final String username = s.substring(1, s.length() - 1);
-								current = new SimpleProperties(parent.defaultAccountProperties);
-								current.setString("username", username);
-								accounts.add(current);
-							}
-							else if (s.contains(":"))
-							{
-								/* process "key:value" pair */
-								final String[] kv = StringManipulator.parseKeyValueString(s);
-
-								if (current == null)
-								{
-									/* program property */
-									if (parent.savedProgramProperties.get(kv[0]) == null)
-									{
-										if (parent.properties.get(kv[0]) == null)
-										{
-											errors.add(String.format("\"%s\" is not a valid program property.", kv[0]));
-										}
-										else
-										{
-											errors.add(String.format("\"%s\" is not a valid saved program property.", kv[0]));
-										}
-									}
-									else
-									{
-										parent.properties.set(kv[0], kv[1]);
-									}
-								}
-								else
-								{
-									/* account property */
-									if ("password".equals(kv[0]))
-									{
-										current.set(kv[0], kv[1]);
-									}
-									else
-									{
-										if (parent.savedAccountProperties.get(kv[0]) == null)
-										{
-											if (current.get(kv[0]) == null)
-											{
-												errors.add(String.format("\"%s\" is not a valid account property.", kv[0]));
-											}
-											else
-											{
-												errors.add(String.format("\"%s\" is not a valid saved account property.", kv[0]));
-											}
-										}
-										else
-										{
-											current.set(kv[0], kv[1]);
-										}
-									}
-								}
-							}
-						}
+						final List<SimpleProperties> accounts = parent.profileReader.parse(profile.file, cleartext, errors);
 
 						SwingManipulator.updateLabel(loadError, "<html><font color='blue'>Profile loaded</font></html>");
 
@@ -557,12 +392,9 @@ class ProfileLoader
 							Arrays.fill(password, '\0');
 						}
 
-						for (byte[] b : new byte[][] {salt, ciphertextBytes, cleartextBytes})
+						if (profile != null)
 						{
-							if (b != null)
-							{
-								Arrays.fill(b, (byte) 0x00);
-							}
+							profile.clear();
 						}
 
 						SwingManipulator.setVisibleWindow(ProfileLoader.this, false);
@@ -634,22 +466,6 @@ class ProfileLoader
 		}
 	}
 
-
-	/**
-	 * Update the specified profile data to the current program version.
-	 *
-	 * @param profile
-	 *      profile data to be updated
-	 * @param version
-	 *      program version associated with the given profile data
-	 */
-	private void updateProfile(
-			final String[] profile,
-			final String version)
-	{
-		/* nothing to do */
-	}
-
 	/***************************
 	 * NETBEANS-GENERATED CODE *
 	 ***************************/
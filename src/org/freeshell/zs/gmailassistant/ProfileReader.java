@@ -0,0 +1,431 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.freeshell.zs.gmailassistant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.freeshell.zs.common.Encryptor;
+import org.freeshell.zs.common.FileIO;
+import org.freeshell.zs.common.ResourceManipulator;
+import org.freeshell.zs.common.SimpleProperties;
+import org.freeshell.zs.common.StringManipulator;
+import org.freeshell.zs.common.TerminatingException;
+
+
+/**
+ * Read, decrypt, and parse profiles.
+ * This class does not depend on AWT or Swing, so that profiles can also be loaded
+ * headless (see {@link GmailAssistantDaemon}); the "Load Profile" form only adds
+ * the file chooser, the password prompt, and the progress reporting.
+ */
+class ProfileReader
+{
+	/** program properties, updated with the program properties in the loaded profiles */
+	final SimpleProperties properties;
+
+	/** default account properties */
+	final SimpleProperties defaultAccountProperties;
+
+	/** program properties that can be saved and loaded */
+	final SimpleProperties savedProgramProperties;
+
+	/** account properties that can be saved and loaded */
+	final SimpleProperties savedAccountProperties;
+
+
+	/**
+	 * Constructor.
+	 * The default account properties, and the keys of the saved program and account
+	 * properties, are loaded from the resources named in the program properties.
+	 *
+	 * @param properties
+	 *      program properties
+	 * @throws org.freeshell.zs.common.TerminatingException
+	 *      if the properties cannot be loaded
+	 */
+	ProfileReader(
+			final SimpleProperties properties)
+	{
+		this.properties = properties;
+
+		/* load default account properties */
+		try
+		{
+			defaultAccountProperties = new SimpleProperties(ResourceManipulator.resourceAsString(properties.getString("account.properties")));
+		}
+		catch (Exception e)
+		{
+			throw new TerminatingException(String.format("(INTERNAL) Failed to load default account properties (%s).", e.toString()));
+		}
+
+		/* keys of program properties that can be saved/loaded in the profile */
+		try
+		{
+			savedProgramProperties = new SimpleProperties(ResourceManipulator.resourceAsString(properties.getString("saved.program.properties")));
+		}
+		catch (Exception e)
+		{
+			throw new TerminatingException(String.format("(INTERNAL) Failed to load saved program properties (%s).", e.toString()));
+		}
+
+		/* keys of account properties that should be saved/loaded in the profile */
+		try
+		{
+			savedAccountProperties = new SimpleProperties(ResourceManipulator.resourceAsString(properties.getString("saved.account.properties")));
+		}
+		catch (Exception e)
+		{
+			throw new TerminatingException(String.format("(INTERNAL) Failed to load saved account properties (%s).", e.toString()));
+		}
+	}
+
+
+	/**
+	 * Read the contents of the specified profile file, and check its validity.
+	 *
+	 * @param f
+	 *      profile file
+	 * @return
+	 *      encrypted profile
+	 * @throws org.freeshell.zs.common.TerminatingException
+	 *      if the file cannot be read, or is malformed
+	 */
+	Profile read(
+			final File f)
+	{
+		final int firstByteMarker;
+		final byte[] salt;
+		final byte[] ciphertextBytes;
+		final int lastByteMarker;
+
+		/**********************
+		 * READ FILE CONTENTS *
+		 **********************/
+
+		try
+		{
+			final FileInputStream fis = new FileInputStream(f);
+			final int length = (int) f.length();
+
+			/* read first byte marker */
+			firstByteMarker = fis.read();
+
+			if (firstByteMarker == -1)
+			{
+				throw new IOException("Encountered premature EOF.");
+			}
+
+			/* read salt */
+			final int saltLength = properties.getInt("encryption.salt.length");
+			salt = new byte[saltLength];
+			FileIO.blockingRead(fis, salt, 0, saltLength);
+
+			/* read ciphertext */
+			final int ciphertextLength = length - 2 - saltLength;
+			ciphertextBytes = new byte[ciphertextLength];
+			FileIO.blockingRead(fis, ciphertextBytes, 0, ciphertextLength);
+
+			/* read first byte marker */
+			lastByteMarker = fis.read();
+
+			if (lastByteMarker == -1)
+			{
+				throw new IOException("Encountered premature EOF.");
+			}
+
+			try
+			{
+				fis.close();
+			}
+			catch (Exception e)
+			{
+				/* ignore */
+			}
+		}
+		catch (Exception e)
+		{
+			throw new TerminatingException(String.format(
+					"Failed to read file contents of profile \"%s\" (%s).\nPlease check that the file exists and can be read.",
+					f.getPath(), e.toString()));
+		}
+
+		/******************
+		 * CHECK VALIDITY *
+		 ******************/
+
+		final int withPasswordByteMarker = properties.getInt("profile.with.password.byte.marker");
+		final int withoutPasswordByteMarker = properties.getInt("profile.without.password.byte.marker");
+
+		if ((firstByteMarker != lastByteMarker) ||
+				((firstByteMarker != withPasswordByteMarker) &&
+				(firstByteMarker != withoutPasswordByteMarker)))
+		{
+			Arrays.fill(salt, (byte) 0x00);
+			Arrays.fill(ciphertextBytes, (byte) 0x00);
+			throw new TerminatingException(String.format("Malformed profile \"%s\".", f.getPath()));
+		}
+
+		return new Profile(f, (firstByteMarker == withPasswordByteMarker), salt, ciphertextBytes);
+	}
+
+
+	/**
+	 * Decrypt the specified profile.
+	 *
+	 * @param profile
+	 *      encrypted profile
+	 * @param password
+	 *      profile password; empty if the profile is not protected by a password
+	 * @return
+	 *      lines of the decrypted profile
+	 * @throws org.freeshell.zs.common.TerminatingException
+	 *      if the profile cannot be decrypted with the given password
+	 * @throws java.io.UnsupportedEncodingException
+	 *      if the profile character set is not supported
+	 */
+	String[] decrypt(
+			final Profile profile,
+			final char[] password)
+			throws UnsupportedEncodingException
+	{
+		final int iterations = properties.getInt("encryption.salt.iterations");
+		final byte[] cleartextBytes;
+
+		try
+		{
+			cleartextBytes = Encryptor.decrypt(profile.salt, iterations, String.valueOf(password), profile.ciphertextBytes);
+		}
+		catch (Exception e)
+		{
+			throw new TerminatingException(String.format(
+					"Failed to decrypt profile \"%s\".\nPlease check that the provided password is correct.",
+					profile.file.getPath()));
+		}
+
+		try
+		{
+			final String charset = properties.getString("profile.charset");
+			return new String(cleartextBytes, charset).split("[\n\r\u0085\u2028\u2028]++");
+		}
+		finally
+		{
+			Arrays.fill(cleartextBytes, (byte) 0x00);
+		}
+	}
+
+
+	/**
+	 * Parse the specified decrypted profile.
+	 * Program properties in the profile are applied to the program properties right away;
+	 * account properties are returned, one set for each account in the profile, each
+	 * recording the profile file (see {@link GmailAssistant#setProfileFile(File)}).
+	 *
+	 * @param file
+	 *      profile file
+	 * @param cleartext
+	 *      lines of the decrypted profile
+	 * @param errors
+	 *      list to which the errors encountered are added
+	 * @return
+	 *      properties of the accounts in the profile, based on the default account properties
+	 */
+	List<SimpleProperties> parse(
+			final File file,
+			final String[] cleartext,
+			final List<String> errors)
+	{
+		/* convert profile from an older program version, if necessary */
+		final String version = properties.getString("version");
+		String profileVersion = version; /* assume current version first */
+
+		for (String s : cleartext)
+		{
+			if (s.startsWith("<") && s.endsWith(">"))
+			{
+				profileVersion = s.substring(1, s.length() - 1);
+			}
+		}
+
+		if (!profileVersion.equals(version))
+		{
+			updateProfile(cleartext, profileVersion);
+		}
+
+		/* parse each line in the profile file */
+		final List<SimpleProperties> accounts = new ArrayList<SimpleProperties>();
+		SimpleProperties current = null;
+
+		for (String s : cleartext)
+		{
+			if (s.isEmpty() || s.startsWith("#"))
+			{
+				/* ignore empty lines and comments */
+			}
+			else if (s.startsWith("<") && s.endsWith(">"))
+			{
+				/* ignore program version */
+			}
+			else if (s.startsWith("[") && s.endsWith("]"))
+			{
+				/* start recording properties for a new account */
+				final String username = s.substring(1, s.length() - 1);
+				current = new SimpleProperties(defaultAccountProperties);
+				current.setString("username", username);
+				current.set("profile.file.object", file);
+				accounts.add(current);
+			}
+			else if (s.contains(":"))
+			{
+				/* process "key:value" pair */
+				final String[] kv = StringManipulator.parseKeyValueString(s);
+
+				if (current == null)
+				{
+					/* program property */
+					if (savedProgramProperties.get(kv[0]) == null)
+					{
+						if (properties.get(kv[0]) == null)
+						{
+							errors.add(String.format("\"%s\" is not a valid program property.", kv[0]));
+						}
+						else
+						{
+							errors.add(String.format("\"%s\" is not a valid saved program property.", kv[0]));
+						}
+					}
+					else
+					{
+						properties.set(kv[0], kv[1]);
+					}
+				}
+				else
+				{
+					/* account property */
+					if ("password".equals(kv[0]))
+					{
+						current.set(kv[0], kv[1]);
+					}
+					else
+					{
+						if (savedAccountProperties.get(kv[0]) == null)
+						{
+							if (current.get(kv[0]) == null)
+							{
+								errors.add(String.format("\"%s\" is not a valid account property.", kv[0]));
+							}
+							else
+							{
+								errors.add(String.format("\"%s\" is not a valid saved account property.", kv[0]));
+							}
+						}
+						else
+						{
+							current.set(kv[0], kv[1]);
+						}
+					}
+				}
+			}
+		}
+
+		return accounts;
+	}
+
+
+	/**
+	 * Update the specified profile data to the current program version.
+	 *
+	 * @param profile
+	 *      profile data to be updated
+	 * @param version
+	 *      program version associated with the given profile data
+	 */
+	private void updateProfile(
+			final String[] profile,
+			final String version)
+	{
+		/* nothing to do */
+	}
+
+	/******************
+	 * NESTED CLASSES *
+	 ******************/
+
+	/**
+	 * Encrypted profile, as read from a profile file.
+	 */
+	static class Profile
+	{
+		/** profile file */
+		final File file;
+
+		/** is the profile protected by a password? */
+		final boolean passwordProtected;
+
+		/** salt for decrypting */
+		private final byte[] salt;
+
+		/** encrypted contents of the profile */
+		private final byte[] ciphertextBytes;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param file
+		 *      profile file
+		 * @param passwordProtected
+		 *      is the profile protected by a password?
+		 * @param salt
+		 *      salt for decrypting
+		 * @param ciphertextBytes
+		 *      encrypted contents of the profile
+		 */
+		private Profile(
+				final File file,
+				final boolean passwordProtected,
+				final byte[] salt,
+				final byte[] ciphertextBytes)
+		{
+			this.file = file;
+			this.passwordProtected = passwordProtected;
+			this.salt = salt;
+			this.ciphertextBytes = ciphertextBytes;
+		}
+
+
+		/**
+		 * Clear the salt and the encrypted contents of the profile from memory.
+		 */
+		void clear()
+		{
+			Arrays.fill(salt, (byte) 0x00);
+			Arrays.fill(ciphertextBytes, (byte) 0x00);
+		}
+	}
+}
@@ -573,6 +573,7 @@ class ProfileSaver
 						profileFile.getPath(), e.toString()));
 			}
 
+			parent.setProfileFile(profileFile);
 			SwingManipulator.updateLabel(filenameError, "<html><font color='blue'>Profile saved</font></html>");
 			SwingManipulator.setVisibleWindow(this, false);
 		}
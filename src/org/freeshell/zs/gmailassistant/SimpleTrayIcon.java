@@ -26,11 +26,10 @@ import java.awt.Dimension;
 import java.awt.Image;
 import java.awt.TrayIcon;
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import javax.imageio.ImageIO;
 import javax.swing.SwingUtilities;
-import org.freeshell.zs.common.Debug;
 
 
 /**
@@ -39,17 +38,14 @@ import org.freeshell.zs.common.Debug;
 class SimpleTrayIcon
 		extends TrayIcon
 {
-	/** refresh interval in milliseconds */
-	private static final long REFRESH_INTERVAL_MILLISECONDS = 200L;
-
 	/** number of iterations to blink */
 	private static final int BLINK_ITERATIONS = 5;
 
 	/** blinking interval in milliseconds */
 	private static final long BLINK_INTERVAL_MILLISECONDS = 200L;
 
-	/** queued actions to be performed by the timer */
-	private final Queue<ActionType> actions = new ArrayDeque<ActionType>();
+	/** queued actions to be performed by the thread for handling tray icon state */
+	private final BlockingQueue<ActionType> actions = new LinkedBlockingQueue<ActionType>();
 
 
 	/**
@@ -121,9 +117,13 @@ class SimpleTrayIcon
 				{
 					final ActionType action;
 
-					synchronized (actions)
+					try
+					{
+						action = actions.take();
+					}
+					catch (InterruptedException e)
 					{
-						action = actions.poll();
+						continue;
 					}
 
 					if (action == ActionType.NORMAL)
@@ -222,8 +222,6 @@ class SimpleTrayIcon
 							/* ignore */
 						}
 					}
-
-					Debug.sleep(REFRESH_INTERVAL_MILLISECONDS);
 				}
 			}
 		}).start();
@@ -235,10 +233,7 @@ class SimpleTrayIcon
 	 */
 	void setNormalIcon()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.NORMAL);
-		}
+		actions.add(ActionType.NORMAL);
 	}
 
 
@@ -247,10 +242,7 @@ class SimpleTrayIcon
 	 */
 	void setHotIcon()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.HOT);
-		}
+		actions.add(ActionType.HOT);
 	}
 
 
@@ -259,10 +251,7 @@ class SimpleTrayIcon
 	 */
 	void setErrorIcon()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.SET_ERROR);
-		}
+		actions.add(ActionType.SET_ERROR);
 	}
 
 
@@ -271,10 +260,7 @@ class SimpleTrayIcon
 	 */
 	void clearErrorIcon()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.CLEAR_ERROR);
-		}
+		actions.add(ActionType.CLEAR_ERROR);
 	}
 
 
@@ -283,10 +269,7 @@ class SimpleTrayIcon
 	 */
 	void blinkIcon()
 	{
-		synchronized (actions)
-		{
-			actions.add(ActionType.BLINK);
-		}
+		actions.add(ActionType.BLINK);
 	}
 
 
@@ -295,11 +278,8 @@ class SimpleTrayIcon
 	 */
 	void terminate()
 	{
-		synchronized (actions)
-		{
-			actions.clear();
-			actions.add(ActionType.TERMINATE);
-		}
+		actions.clear();
+		actions.add(ActionType.TERMINATE);
 	}
 
 	/******************
@@ -0,0 +1,511 @@
+/**
+ * GmailAssistant 2.0 (2008-09-07)
+ * Copyright 2008 Zach Scrivena
+ * zachscrivena@gmail.com
+ * http://gmailassistant.sourceforge.net/
+ *
+ * Notifier for multiple Gmail and Google Apps email accounts.
+ *
+ * TERMS AND CONDITIONS:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2,
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.freeshell.zs.gmailassistant;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ * Index of the unread mails of an account, keyed by (folder, UID).
+ * Folder names are interned to small integers, and the UIDs of each folder are kept in
+ * a sorted <code>long</code> array, so that the index is updated by linear merges.
+ * The unread mails are also kept in an array sorted by sequence number, for navigation.
+ *
+ * <p>Instances of this class are not thread-safe; access must be synchronized externally.</p>
+ */
+class UnreadMailIndex
+{
+	/** empty UID array */
+	private static final long[] NO_UIDS = new long[0];
+
+	/** empty mail array */
+	private static final Mail[] NO_MAILS = new Mail[0];
+
+	/** folder name ---> folder index mapping */
+	private final Map<String,Integer> folderIndices = new HashMap<String,Integer>();
+
+	/** sorted UIDs of the unread mails, by folder index */
+	private long[][] folderUids = new long[0][];
+
+	/** unread mails corresponding to <code>folderUids</code>, by folder index */
+	private Mail[][] folderMails = new Mail[0][];
+
+	/** all unread mails, sorted by sequence number */
+	private Mail[] mails = NO_MAILS;
+
+	/** number of unread mails */
+	private int size = 0;
+
+
+	/**
+	 * Get the index of the specified folder, assigning a new index if necessary.
+	 *
+	 * @param folderName
+	 *     name of the folder
+	 * @return
+	 *     index of the folder
+	 */
+	int getFolderIndex(
+			final String folderName)
+	{
+		Integer i = folderIndices.get(folderName);
+
+		if (i == null)
+		{
+			i = folderIndices.size();
+			folderIndices.put(folderName, i);
+			folderUids = Arrays.copyOf(folderUids, i + 1);
+			folderMails = Arrays.copyOf(folderMails, i + 1);
+			folderUids[i] = NO_UIDS;
+			folderMails[i] = NO_MAILS;
+		}
+
+		return i;
+	}
+
+
+	/**
+	 * Get the UIDs that are not yet in the index, among the specified UIDs of a folder.
+	 *
+	 * @param folder
+	 *     index of the folder
+	 * @param uids
+	 *     UIDs of the folder, in increasing order
+	 * @return
+	 *     UIDs that are not yet in the index, in increasing order
+	 */
+	long[] getUncachedUids(
+			final int folder,
+			final long[] uids)
+	{
+		final long[] cached = folderUids[folder];
+		final long[] uncached = new long[uids.length];
+		int n = 0;
+		int j = 0;
+
+		for (long uid : uids)
+		{
+			while ((j < cached.length) && (cached[j] < uid))
+			{
+				j++;
+			}
+
+			if ((j < cached.length) && (cached[j] == uid))
+			{
+				j++;
+			}
+			else
+			{
+				uncached[n++] = uid;
+			}
+		}
+
+		return (n == uids.length) ? uncached : Arrays.copyOf(uncached, n);
+	}
+
+
+	/**
+	 * Apply the changes found by a mail check.
+	 * For each folder, mails whose UIDs are no longer unread are removed, and new mails are added.
+	 * Folders that are neither checked nor retained in the update are emptied.
+	 *
+	 * @param u
+	 *     changes to be applied
+	 */
+	void update(
+			final Update u)
+	{
+		/* removed mails, for filtering the sequence-ordered array */
+		final Map<Mail,Object> removed = new IdentityHashMap<Mail,Object>();
+
+		/* have the new mails been added to their folders? */
+		final boolean[] added = new boolean[u.numNewMails];
+		int numAdded = 0;
+
+		for (int f = 0; f < folderUids.length; f++)
+		{
+			if ((f < u.retained.length) && u.retained[f])
+			{
+				continue;
+			}
+
+			final long[] unread = ((f < u.unreadUids.length) && (u.unreadUids[f] != null)) ? u.unreadUids[f] : NO_UIDS;
+			final long[] oldUids = folderUids[f];
+			final Mail[] oldMails = folderMails[f];
+			final long[] newUids = new long[unread.length];
+			final Mail[] newMails = new Mail[unread.length];
+			int n = 0;
+			int j = 0;
+			int k = nextNewMail(u, f, 0);
+
+			for (long uid : unread)
+			{
+				while ((j < oldUids.length) && (oldUids[j] < uid))
+				{
+					removed.put(oldMails[j++], null);
+				}
+
+				while ((k < u.numNewMails) && (u.newUids[k] < uid))
+				{
+					k = nextNewMail(u, f, k + 1);
+				}
+
+				if ((j < oldUids.length) && (oldUids[j] == uid))
+				{
+					newUids[n] = uid;
+					newMails[n++] = oldMails[j++];
+				}
+				else if ((k < u.numNewMails) && (u.newUids[k] == uid) && (u.newMails[k] != null))
+				{
+					newUids[n] = uid;
+					newMails[n++] = u.newMails[k];
+					added[k] = true;
+					numAdded++;
+				}
+			}
+
+			while (j < oldUids.length)
+			{
+				removed.put(oldMails[j++], null);
+			}
+
+			folderUids[f] = (n == 0) ? NO_UIDS : ((n == newUids.length) ? newUids : Arrays.copyOf(newUids, n));
+			folderMails[f] = (n == 0) ? NO_MAILS : ((n == newMails.length) ? newMails : Arrays.copyOf(newMails, n));
+		}
+
+		/* rebuild the sequence-ordered array: surviving mails, followed by the new mails */
+		if (removed.isEmpty() && (numAdded == 0))
+		{
+			return;
+		}
+
+		final Mail[] result = new Mail[size - removed.size() + numAdded];
+		int n = 0;
+
+		for (int i = 0; i < size; i++)
+		{
+			if (!removed.containsKey(mails[i]))
+			{
+				result[n++] = mails[i];
+			}
+		}
+
+		for (int k = 0; k < u.numNewMails; k++)
+		{
+			if (added[k])
+			{
+				result[n++] = u.newMails[k];
+			}
+		}
+
+		mails = result;
+		size = n;
+	}
+
+
+	/**
+	 * Get the position of the next new mail of the specified folder in an update.
+	 *
+	 * @param u
+	 *     update
+	 * @param folder
+	 *     index of the folder
+	 * @param start
+	 *     position at which to start searching
+	 * @return
+	 *     position of the next new mail of the folder; <code>u.numNewMails</code> if there is none
+	 */
+	private static int nextNewMail(
+			final Update u,
+			final int folder,
+			final int start)
+	{
+		int k = start;
+
+		while ((k < u.numNewMails) && (u.newFolders[k] != folder))
+		{
+			k++;
+		}
+
+		return k;
+	}
+
+
+	/**
+	 * Get the number of unread mails.
+	 *
+	 * @return
+	 *     number of unread mails
+	 */
+	int size()
+	{
+		return size;
+	}
+
+
+	/**
+	 * Get the unread mail with the lowest sequence number.
+	 *
+	 * @return
+	 *     first unread mail; null if there are no unread mails
+	 */
+	Mail first()
+	{
+		return (size == 0) ? null : mails[0];
+	}
+
+
+	/**
+	 * Get the unread mail with the highest sequence number.
+	 *
+	 * @return
+	 *     last unread mail; null if there are no unread mails
+	 */
+	Mail last()
+	{
+		return (size == 0) ? null : mails[size - 1];
+	}
+
+
+	/**
+	 * Get the unread mail with the lowest sequence number greater than the specified one.
+	 *
+	 * @param sequenceNumber
+	 *     sequence number
+	 * @return
+	 *     next unread mail; null if there is none
+	 */
+	Mail higher(
+			final int sequenceNumber)
+	{
+		final int i = search(sequenceNumber);
+		final int next = (i >= 0) ? (i + 1) : -(i + 1);
+		return (next < size) ? mails[next] : null;
+	}
+
+
+	/**
+	 * Get the unread mail with the highest sequence number lower than the specified one.
+	 *
+	 * @param sequenceNumber
+	 *     sequence number
+	 * @return
+	 *     previous unread mail; null if there is none
+	 */
+	Mail lower(
+			final int sequenceNumber)
+	{
+		final int i = search(sequenceNumber);
+		final int previous = (i >= 0) ? (i - 1) : (-(i + 1) - 1);
+		return (previous >= 0) ? mails[previous] : null;
+	}
+
+
+	/**
+	 * Binary search for the specified sequence number among the unread mails.
+	 *
+	 * @param sequenceNumber
+	 *     sequence number
+	 * @return
+	 *     position of the mail with the sequence number, if found;
+	 *     otherwise, (-(insertion point) - 1)
+	 */
+	private int search(
+			final int sequenceNumber)
+	{
+		int low = 0;
+		int high = size - 1;
+
+		while (low <= high)
+		{
+			final int mid = (low + high) >>> 1;
+			final int s = mails[mid].sequenceNumber;
+
+			if (s < sequenceNumber)
+			{
+				low = mid + 1;
+			}
+			else if (s > sequenceNumber)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+
+		return -(low + 1);
+	}
+
+	/******************
+	 * NESTED CLASSES *
+	 ******************/
+
+	/**
+	 * Changes to the unread mails found by a single mail check.
+	 * Instances of this class are reused across mail checks by calling <code>clear()</code>.
+	 */
+	static class Update
+	{
+		/** sorted UIDs of the unread mails, by folder index; null for folders that were not checked */
+		private long[][] unreadUids = new long[0][];
+
+		/** should the unread mails be retained unchanged, by folder index? */
+		private boolean[] retained = new boolean[0];
+
+		/** folder indices of the new mails */
+		private int[] newFolders = new int[16];
+
+		/** UIDs of the new mails */
+		private long[] newUids = new long[16];
+
+		/** new mails; null for mails not yet created */
+		private Mail[] newMails = new Mail[16];
+
+		/** number of new mails */
+		private int numNewMails = 0;
+
+
+		/**
+		 * Clear all changes.
+		 */
+		void clear()
+		{
+			Arrays.fill(unreadUids, null);
+			Arrays.fill(retained, false);
+			Arrays.fill(newMails, 0, numNewMails, null);
+			numNewMails = 0;
+		}
+
+
+		/**
+		 * Ensure that the per-folder arrays can hold the specified folder index.
+		 *
+		 * @param folder
+		 *     index of the folder
+		 */
+		private void ensureFolder(
+				final int folder)
+		{
+			if (folder >= unreadUids.length)
+			{
+				unreadUids = Arrays.copyOf(unreadUids, folder + 1);
+				retained = Arrays.copyOf(retained, folder + 1);
+			}
+		}
+
+
+		/**
+		 * Retain the unread mails of the specified folder unchanged.
+		 *
+		 * @param folder
+		 *     index of the folder
+		 */
+		void retain(
+				final int folder)
+		{
+			ensureFolder(folder);
+			retained[folder] = true;
+		}
+
+
+		/**
+		 * Set the UIDs of all unread mails of the specified folder.
+		 *
+		 * @param folder
+		 *     index of the folder
+		 * @param uids
+		 *     UIDs of all unread mails, in increasing order
+		 */
+		void setUnreadUids(
+				final int folder,
+				final long[] uids)
+		{
+			ensureFolder(folder);
+			unreadUids[folder] = uids;
+		}
+
+
+		/**
+		 * Add a new mail to be created, for the specified folder and UID.
+		 * New mails of the same folder must be added in increasing UID order.
+		 *
+		 * @param folder
+		 *     index of the folder
+		 * @param uid
+		 *     UID of the new mail
+		 * @return
+		 *     position of the new mail, for <code>setNewMail()</code>
+		 */
+		int addNewMail(
+				final int folder,
+				final long uid)
+		{
+			if (numNewMails == newUids.length)
+			{
+				final int capacity = 2 * numNewMails;
+				newFolders = Arrays.copyOf(newFolders, capacity);
+				newUids = Arrays.copyOf(newUids, capacity);
+				newMails = Arrays.copyOf(newMails, capacity);
+			}
+
+			newFolders[numNewMails] = folder;
+			newUids[numNewMails] = uid;
+			return numNewMails++;
+		}
+
+
+		/**
+		 * Set the new mail at the specified position.
+		 * New mails must be set in increasing sequence number order of their positions.
+		 *
+		 * @param position
+		 *     position returned by <code>addNewMail()</code>
+		 * @param m
+		 *     new mail
+		 */
+		void setNewMail(
+				final int position,
+				final Mail m)
+		{
+			newMails[position] = m;
+		}
+
+
+		/**
+		 * Get the number of new mails.
+		 *
+		 * @return
+		 *     number of new mails
+		 */
+		int getNumNewMails()
+		{
+			return numNewMails;
+		}
+	}
+}